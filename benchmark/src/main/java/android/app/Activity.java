@@ -0,0 +1,17 @@
+package android.app;
+
+/**
+ * JVM fake of the Android Activity, only what the library uses.
+ */
+public class Activity {
+
+    private final Application mApplication;
+
+    public Activity(final Application application) {
+        mApplication = application;
+    }
+
+    public final Application getApplication() {
+        return mApplication;
+    }
+}
@@ -0,0 +1,38 @@
+package android.app;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM fake of the Android Application, only what the library uses.
+ */
+public class Application {
+
+    public interface ActivityLifecycleCallbacks {
+        void onActivityCreated(Activity activity, Bundle savedInstanceState);
+
+        void onActivityStarted(Activity activity);
+
+        void onActivityResumed(Activity activity);
+
+        void onActivityPaused(Activity activity);
+
+        void onActivityStopped(Activity activity);
+
+        void onActivitySaveInstanceState(Activity activity, Bundle outState);
+
+        void onActivityDestroyed(Activity activity);
+    }
+
+    private final List<ActivityLifecycleCallbacks> mCallbacks = new ArrayList<>();
+
+    public void registerActivityLifecycleCallbacks(final ActivityLifecycleCallbacks callback) {
+        mCallbacks.add(callback);
+    }
+
+    public void unregisterActivityLifecycleCallbacks(final ActivityLifecycleCallbacks callback) {
+        mCallbacks.remove(callback);
+    }
+}
@@ -0,0 +1,45 @@
+package android.os;
+
+import java.util.HashMap;
+
+/**
+ * JVM fake of the Android Bundle, backed by a HashMap.
+ */
+public final class Bundle {
+
+    private final HashMap<String, Object> mMap;
+
+    public Bundle() {
+        mMap = new HashMap<>();
+    }
+
+    public Bundle(final Bundle b) {
+        mMap = new HashMap<>(b.mMap);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    public void putAll(final Bundle b) {
+        mMap.putAll(b.mMap);
+    }
+
+    public void putInt(final String key, final int value) {
+        mMap.put(key, value);
+    }
+
+    public int getInt(final String key) {
+        final Object value = mMap.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle" + mMap;
+    }
+}
@@ -0,0 +1,131 @@
+package android.os;
+
+/**
+ * JVM fake of the Android Handler, enqueues into a fake {@link Looper}.
+ */
+public class Handler {
+
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    private final Looper mLooper;
+
+    private final Callback mCallback;
+
+    public Handler() {
+        this(Looper.myLooper(), null);
+    }
+
+    public Handler(final Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(final Looper looper, final Callback callback) {
+        mLooper = looper;
+        mCallback = callback;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public void handleMessage(final Message msg) {
+    }
+
+    public void dispatchMessage(final Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else if (mCallback == null || !mCallback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage() {
+        final Message m = Message.obtain();
+        m.target = this;
+        return m;
+    }
+
+    public final Message obtainMessage(final int what) {
+        final Message m = obtainMessage();
+        m.what = what;
+        return m;
+    }
+
+    public final Message obtainMessage(final int what, final Object obj) {
+        final Message m = obtainMessage(what);
+        m.obj = obj;
+        return m;
+    }
+
+    public final Message obtainMessage(final int what, final int arg1, final int arg2) {
+        final Message m = obtainMessage(what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    public final Message obtainMessage(final int what, final int arg1, final int arg2, final Object obj) {
+        final Message m = obtainMessage(what, arg1, arg2);
+        m.obj = obj;
+        return m;
+    }
+
+    public final boolean sendMessage(final Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(final int what) {
+        return sendMessage(obtainMessage(what));
+    }
+
+    public final boolean sendEmptyMessageDelayed(final int what, final long delayMillis) {
+        return sendMessageDelayed(obtainMessage(what), delayMillis);
+    }
+
+    public final boolean sendMessageDelayed(final Message msg, final long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public boolean sendMessageAtTime(final Message msg, final long uptimeMillis) {
+        msg.target = this;
+        mLooper.enqueue(msg, uptimeMillis);
+        return true;
+    }
+
+    public final boolean sendMessageAtFrontOfQueue(final Message msg) {
+        return sendMessageAtTime(msg, 0);
+    }
+
+    public final boolean post(final Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(final Runnable r, final long delayMillis) {
+        final Message m = obtainMessage();
+        m.callback = r;
+        return sendMessageDelayed(m, delayMillis);
+    }
+
+    public final void removeCallbacks(final Runnable r) {
+        mLooper.removeCallbacks(this, r);
+    }
+
+    public final void removeMessages(final int what) {
+        mLooper.remove(this, what, null);
+    }
+
+    public final void removeMessages(final int what, final Object obj) {
+        mLooper.remove(this, what, obj);
+    }
+
+    public final void removeCallbacksAndMessages(final Object token) {
+        // the library only removes everything
+        mLooper.removeAll(this);
+    }
+
+    public final boolean hasMessages(final int what) {
+        return mLooper.has(this, what);
+    }
+}
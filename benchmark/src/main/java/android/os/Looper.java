@@ -0,0 +1,151 @@
+package android.os;
+
+/**
+ * JVM fake of the Android Looper. There is no loop thread - the benchmark thread calls
+ * {@link #drain()} to deliver every message which is due, like one turn of the real loop.
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+
+    private static Looper sMainLooper;
+
+    final Thread mThread;
+
+    // sorted by time, guarded by this
+    private Message mMessages;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (sMainLooper == null) {
+            sMainLooper = new Looper();
+        }
+        return sMainLooper;
+    }
+
+    public static Looper myLooper() {
+        final Looper looper = sThreadLocal.get();
+        if (looper == null && sMainLooper != null) {
+            // the fake main looper belongs to whichever thread drains it
+            return sMainLooper;
+        }
+        return looper;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    synchronized void enqueue(final Message msg, final long when) {
+        msg.when = when;
+        if (mMessages == null || when < mMessages.when) {
+            msg.next = mMessages;
+            mMessages = msg;
+            return;
+        }
+        Message prev = mMessages;
+        while (prev.next != null && prev.next.when <= when) {
+            prev = prev.next;
+        }
+        msg.next = prev.next;
+        prev.next = msg;
+    }
+
+    synchronized void removeAll(final Handler handler) {
+        Message prev = null;
+        Message m = mMessages;
+        while (m != null) {
+            final Message next = m.next;
+            if (m.target == handler) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                m.recycle();
+            } else {
+                prev = m;
+            }
+            m = next;
+        }
+    }
+
+    synchronized void remove(final Handler handler, final int what, final Object obj) {
+        Message prev = null;
+        Message m = mMessages;
+        while (m != null) {
+            final Message next = m.next;
+            if (m.target == handler && m.what == what && m.callback == null && (obj == null || m.obj == obj)) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                m.recycle();
+            } else {
+                prev = m;
+            }
+            m = next;
+        }
+    }
+
+    synchronized void removeCallbacks(final Handler handler, final Runnable r) {
+        Message prev = null;
+        Message m = mMessages;
+        while (m != null) {
+            final Message next = m.next;
+            if (m.target == handler && m.callback == r) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                m.recycle();
+            } else {
+                prev = m;
+            }
+            m = next;
+        }
+    }
+
+    synchronized boolean has(final Handler handler, final int what) {
+        for (Message m = mMessages; m != null; m = m.next) {
+            if (m.target == handler && m.what == what && m.callback == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fake-only: delivers every message which is due and recycles it.
+     * @return number of delivered messages
+     */
+    public int drain() {
+        int count = 0;
+        while (true) {
+            final Message msg;
+            synchronized (this) {
+                msg = mMessages;
+                if (msg == null || msg.when > SystemClock.uptimeMillis()) {
+                    return count;
+                }
+                mMessages = msg.next;
+                msg.next = null;
+            }
+            msg.target.dispatchMessage(msg);
+            msg.recycle();
+            count++;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package android.os;
+
+/**
+ * JVM fake of the Android Message used to run benchmarks without a device.
+ * Pooled like the platform class, so allocation measurements stay comparable.
+ */
+public final class Message {
+
+    private static final int MAX_POOL_SIZE = 50;
+
+    private static final Object sPoolSync = new Object();
+
+    private static Message sPool;
+
+    private static int sPoolSize = 0;
+
+    public int what;
+
+    public int arg1;
+
+    public int arg2;
+
+    public Object obj;
+
+    long when;
+
+    Bundle data;
+
+    Handler target;
+
+    Runnable callback;
+
+    Message next;
+
+    public static Message obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                final Message m = sPool;
+                sPool = m.next;
+                m.next = null;
+                sPoolSize--;
+                return m;
+            }
+        }
+        return new Message();
+    }
+
+    public static Message obtain(final Message orig) {
+        final Message m = obtain();
+        m.what = orig.what;
+        m.arg1 = orig.arg1;
+        m.arg2 = orig.arg2;
+        m.obj = orig.obj;
+        if (orig.data != null) {
+            m.data = new Bundle(orig.data);
+        }
+        m.target = orig.target;
+        m.callback = orig.callback;
+        return m;
+    }
+
+    public long getWhen() {
+        return when;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public Bundle getData() {
+        if (data == null) {
+            data = new Bundle();
+        }
+        return data;
+    }
+
+    public Bundle peekData() {
+        return data;
+    }
+
+    public void setData(final Bundle data) {
+        this.data = data;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+
+    public void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        obj = null;
+        when = 0;
+        data = null;
+        target = null;
+        callback = null;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package android.os;
+
+/**
+ * JVM fake of the Android SystemClock.
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static void sleep(final long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package android.util;
+
+/**
+ * JVM fake of the Android Log, writes to stderr.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int v(final String tag, final String msg) {
+        return println("V", tag, msg);
+    }
+
+    public static int d(final String tag, final String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(final String tag, final String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(final String tag, final String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return println("W", tag, msg + '\n' + tr);
+    }
+
+    public static int e(final String tag, final String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return println("E", tag, msg + '\n' + tr);
+    }
+
+    private static int println(final String priority, final String tag, final String msg) {
+        System.err.println(priority + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
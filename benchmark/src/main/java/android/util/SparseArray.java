@@ -0,0 +1,28 @@
+package android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM fake of the Android SparseArray, backed by a HashMap.
+ */
+public class SparseArray<E> {
+
+    private final Map<Integer, E> mValues = new HashMap<>();
+
+    public E get(final int key) {
+        return mValues.get(key);
+    }
+
+    public void put(final int key, final E value) {
+        mValues.put(key, value);
+    }
+
+    public void remove(final int key) {
+        mValues.remove(key);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+}
@@ -0,0 +1,104 @@
+package eu.inloop.localmessagemanager.benchmark;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import eu.inloop.localmessagemanager.LocalMessage;
+import eu.inloop.localmessagemanager.LocalMessageCallback;
+import eu.inloop.localmessagemanager.LocalMessageManager;
+
+/**
+ * Throughput of send() followed by delivery to 1, 10 and 100 listeners.
+ * Every invocation sends a batch of messages and drains the fake main Looper once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int MESSAGE_ID = 1;
+
+    // below the Message pool size, so a drained batch is fully recycled
+    private static final int BATCH = 32;
+
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    private LocalMessageManager mManager;
+
+    private Looper mLooper;
+
+    private LocalMessageCallback[] mCallbacks;
+
+    private long mSum;
+
+    @Setup
+    public void setUp() {
+        mManager = LocalMessageManager.getInstance();
+        mLooper = Looper.getMainLooper();
+        mCallbacks = new LocalMessageCallback[listeners];
+        for (int i = 0; i < listeners; i++) {
+            mCallbacks[i] = new LocalMessageCallback() {
+                @Override
+                public void handleMessage(@NonNull final LocalMessage localMessage) {
+                    mSum += localMessage.getArg1() + localMessage.getLong();
+                }
+            };
+            mManager.addListener(MESSAGE_ID, mCallbacks[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mManager.removeListeners(MESSAGE_ID);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sendInt() {
+        for (int i = 0; i < BATCH; i++) {
+            mManager.send(MESSAGE_ID, i);
+        }
+        mLooper.drain();
+        return mSum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sendLong() {
+        for (int i = 0; i < BATCH; i++) {
+            mManager.send(MESSAGE_ID, (long) i);
+        }
+        mLooper.drain();
+        return mSum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sendConflated() {
+        for (int i = 0; i < BATCH; i++) {
+            mManager.sendConflated(MESSAGE_ID, i);
+        }
+        mLooper.drain();
+        return mSum;
+    }
+}
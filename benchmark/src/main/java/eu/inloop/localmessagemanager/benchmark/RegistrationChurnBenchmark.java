@@ -0,0 +1,106 @@
+package eu.inloop.localmessagemanager.benchmark;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.inloop.localmessagemanager.LocalMessage;
+import eu.inloop.localmessagemanager.LocalMessageCallback;
+import eu.inloop.localmessagemanager.LocalMessageManager;
+
+/**
+ * Listeners being added and removed by three threads while a fourth thread dispatches.
+ * Measures both registration throughput and dispatch throughput under contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationChurnBenchmark {
+
+    private static final int MESSAGE_ID = 1;
+
+    private static final int UNIVERSAL_LISTENERS = 10;
+
+    private LocalMessageManager mManager;
+
+    private Looper mLooper;
+
+    private LocalMessageCallback[] mUniversal;
+
+    private long mSum;
+
+    @State(Scope.Thread)
+    public static class Registrar {
+
+        private static final AtomicInteger sNextId = new AtomicInteger(1000);
+
+        final int id = sNextId.incrementAndGet();
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull final LocalMessage localMessage) {
+            }
+        };
+    }
+
+    @Setup
+    public void setUp() {
+        mManager = LocalMessageManager.getInstance();
+        mLooper = Looper.getMainLooper();
+        mUniversal = new LocalMessageCallback[UNIVERSAL_LISTENERS];
+        for (int i = 0; i < UNIVERSAL_LISTENERS; i++) {
+            mUniversal[i] = new LocalMessageCallback() {
+                @Override
+                public void handleMessage(@NonNull final LocalMessage localMessage) {
+                    mSum += localMessage.getArg1();
+                }
+            };
+            mManager.addListener(mUniversal[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (final LocalMessageCallback callback : mUniversal) {
+            mManager.removeListener(callback);
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public void register(final Registrar registrar) {
+        mManager.addListener(registrar.id, registrar.callback);
+        mManager.addListener(MESSAGE_ID, registrar.callback);
+        mManager.removeListener(MESSAGE_ID, registrar.callback);
+        mManager.removeListener(registrar.id, registrar.callback);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public long dispatch() {
+        mManager.send(MESSAGE_ID, 1);
+        mLooper.drain();
+        return mSum;
+    }
+}
@@ -0,0 +1,139 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link IntListenerMap} with the SparseArray previously used for specific listeners.
+ * Results are written to logcat, the test fails only if a lookup misses. Lookups are counted
+ * inside the timed loops and checked after them, so that assertions aren't part of the timings.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntListenerMapBenchmark {
+
+    private static final String TAG = "IntListenerMapBenchmark";
+
+    private static final int LOOKUPS = 1000000;
+
+    private static final LocalMessageCallback[] LISTENERS = new LocalMessageCallback[]{new LocalMessageCallback() {
+        @Override
+        public void handleMessage(@NonNull LocalMessage localMessage) {
+        }
+    }};
+
+    @Test
+    public void compare10Ids() {
+        compare(10);
+    }
+
+    @Test
+    public void compare1kIds() {
+        compare(1000);
+    }
+
+    @Test
+    public void compare50kIds() {
+        compare(50000);
+    }
+
+    private void compare(final int idCount) {
+        final int[] ids = createIds(idCount);
+
+        // warm up both implementations before measuring
+        runSparseArray(ids);
+        runIntListenerMap(ids);
+
+        final long[] sparseArray = runSparseArray(ids);
+        final long[] intListenerMap = runIntListenerMap(ids);
+
+        Log.d(TAG, idCount + " IDs - SparseArray: put " + sparseArray[0] + " ns, get " + sparseArray[1]
+                + " ns, remove " + sparseArray[2] + " ns; IntListenerMap: put " + intListenerMap[0]
+                + " ns, get " + intListenerMap[1] + " ns, remove " + intListenerMap[2] + " ns");
+    }
+
+    @NonNull
+    private long[] runSparseArray(@NonNull final int[] ids) {
+        final long[] result = new long[3];
+        final SparseArray<LocalMessageCallback[]> map = new SparseArray<>();
+
+        long start = System.nanoTime();
+        for (final int id : ids) {
+            map.put(id, LISTENERS);
+        }
+        result[0] = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (map.get(ids[i % ids.length]) != null) {
+                found++;
+            }
+        }
+        result[1] = System.nanoTime() - start;
+        assertEquals(LOOKUPS, found);
+
+        start = System.nanoTime();
+        for (final int id : ids) {
+            map.delete(id);
+        }
+        result[2] = System.nanoTime() - start;
+        return result;
+    }
+
+    @NonNull
+    private long[] runIntListenerMap(@NonNull final int[] ids) {
+        final long[] result = new long[3];
+        final IntListenerMap map = new IntListenerMap();
+
+        long start = System.nanoTime();
+        for (final int id : ids) {
+            map.put(id, LISTENERS);
+        }
+        result[0] = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (map.get(ids[i % ids.length]) != null) {
+                found++;
+            }
+        }
+        result[1] = System.nanoTime() - start;
+        assertEquals(LOOKUPS, found);
+
+        start = System.nanoTime();
+        for (final int id : ids) {
+            map.remove(id);
+        }
+        result[2] = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Generates distinct IDs spread like resource IDs and in random registration order.
+     */
+    @NonNull
+    private static int[] createIds(final int count) {
+        final Random random = new Random(count);
+        final int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = 0x7f000000 | (i * 97 + random.nextInt(97));
+        }
+        for (int i = count - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
+        return ids;
+    }
+}
@@ -1,7 +1,14 @@
 package eu.inloop.localmessagemanager;
 
+import android.app.Instrumentation;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -9,9 +16,27 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class LMMInstrumentedTest {
@@ -130,9 +155,1242 @@ public class LMMInstrumentedTest {
         SystemClock.sleep(50);
     }
 
+    @Test
+    public void executorDeliveryTest() throws Exception {
+        final int messageId = 4;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        LocalMessageManager.getInstance().addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                assertNotSame("Delivered on the main thread!", Looper.getMainLooper().getThread(), Thread.currentThread());
+                assertEquals(messageId, localMessage.getId());
+                LocalMessageManager.getInstance().removeListener(messageId, this);
+                latch.countDown();
+            }
+        }, DeliveryTarget.executor(executor));
+
+        LocalMessageManager.getInstance().send(messageId);
+
+        assertTrue("Did not receive message!", latch.await(1, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void conflatedMessageTest() {
+        final int messageId = 5;
+        final int[] received = new int[2];
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received[0]++;
+                received[1] = localMessage.getArg1();
+            }
+        };
+        LocalMessageManager.getInstance().addListener(messageId, callback);
+
+        for (int i = 1; i <= 100; i++) {
+            LocalMessageManager.getInstance().sendConflated(messageId, i);
+        }
+
+        SystemClock.sleep(50);
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+
+        assertEquals("Did not receive the latest value!", 100, received[1]);
+        assertTrue("Received more messages than sent!", received[0] <= 100);
+    }
+
+    @Test
+    public void conflationSlotRemovalTest() {
+        final int messageId = 41;
+        final int keys = 100;
+        final ConflationQueue queue = new ConflationQueue();
+        final Message[] messages = new Message[keys];
+        for (int key = 0; key < keys; key++) {
+            final ConflationQueue.Slot slot = queue.offer(messageId, key, key, 0, null);
+            assertNotNull(slot);
+            assertNull("Waiting pair was not conflated!", queue.offer(messageId, key, key, 1, null));
+            messages[key] = Message.obtain();
+            messages[key].what = messageId;
+            messages[key].obj = slot;
+        }
+        assertEquals(keys, queue.size());
+
+        // every other pair first, the remaining ones must still be found after the removals
+        for (int key = 0; key < keys; key += 2) {
+            assertTrue(ConflationQueue.resolve(messages[key]));
+            assertEquals(1, messages[key].arg2);
+        }
+        for (int key = 1; key < keys; key += 2) {
+            assertNull("Waiting pair was lost!", queue.offer(messageId, key, key, 2, null));
+            assertTrue(ConflationQueue.resolve(messages[key]));
+            assertEquals(2, messages[key].arg2);
+        }
+        assertEquals("Delivered pairs were kept!", 0, queue.size());
+        assertNotNull("Delivered pair was not sent again!", queue.offer(messageId, 0, 0, 3, null));
+    }
+
+    @Test
+    public void stickyMessageTest() {
+        final int messageId = 6;
+        final int messageArg = 42;
+
+        mReceivedAllMessages = false;
+        LocalMessageManager.getInstance().sendSticky(messageId, messageArg);
+        SystemClock.sleep(50);
+
+        LocalMessageManager.getInstance().addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                mReceivedAllMessages = localMessage.getArg1() == messageArg;
+                LocalMessageManager.getInstance().removeListener(messageId, this);
+            }
+        });
+
+        SystemClock.sleep(50);
+        LocalMessageManager.getInstance().removeSticky(messageId);
+
+        assertTrue("Did not receive sticky message!", mReceivedAllMessages);
+    }
+
+    @Test
+    public void primitivePayloadAllocationTest() {
+        final int messageId = 7;
+        final int debouncedId = 38;
+        final int throttledId = 39;
+        final long[] received = new long[1];
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received[0] += localMessage.getLong();
+            }
+        };
+        LocalMessageManager.getInstance().addListener(messageId, callback);
+
+        final Runnable sendBatch = new Runnable() {
+            @Override
+            public void run() {
+                // stay below the Message and payload pool sizes
+                for (int i = 0; i < 20; i++) {
+                    LocalMessageManager.getInstance().send(messageId, (long) i);
+                    // after the first calls these only replace the payloads of the waiting timed messages
+                    LocalMessageManager.getInstance().sendDebounced(debouncedId, 10000);
+                    LocalMessageManager.getInstance().sendThrottled(throttledId, 10000);
+                }
+            }
+        };
+
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        // warm up the pools
+        instrumentation.runOnMainSync(sendBatch);
+        instrumentation.waitForIdleSync();
+
+        final int[] allocations = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            instrumentation.runOnMainSync(sendBatch);
+            instrumentation.waitForIdleSync();
+        }
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.stopAllocCounting();
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+        LocalMessageManager.getInstance().cancel(debouncedId);
+        LocalMessageManager.getInstance().cancel(throttledId);
+
+        assertEquals("Wrong sum of long arguments!", 11 * 190, received[0]);
+        assertEquals("Sending and delivering allocated objects!", 0, allocations[0]);
+    }
+
+    @Test
+    public void reentrantSendNowTest() {
+        final int outerId = 8;
+        final int innerId = 9;
+        final int[] received = new int[2];
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                if (localMessage.getId() == outerId) {
+                    LocalMessageManager.getInstance().sendNow(innerId, -1);
+                    // the nested delivery must not overwrite this message
+                    received[0] = localMessage.getArg1();
+                } else if (localMessage.getId() == innerId) {
+                    received[1] = localMessage.getArg1();
+                }
+            }
+        };
+        LocalMessageManager.getInstance().addListener(callback);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                LocalMessageManager.getInstance().sendNow(outerId, 1);
+            }
+        });
+
+        LocalMessageManager.getInstance().removeListener(callback);
+
+        assertEquals("Outer message was overwritten!", 1, received[0]);
+        assertEquals("Did not receive nested message!", -1, received[1]);
+    }
+
+    @Test
+    public void ringBufferEngineTest() throws Exception {
+        final int messageId = 10;
+        final int producers = 4;
+        final int messagesPerProducer = 10000;
+        final CountDownLatch latch = new CountDownLatch(producers * messagesPerProducer);
+        final int[] lastValues = new int[producers];
+        final boolean[] outOfOrder = new boolean[1];
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                if (localMessage.getArg2() < lastValues[localMessage.getArg1()]) {
+                    outOfOrder[0] = true;
+                }
+                lastValues[localMessage.getArg1()] = localMessage.getArg2();
+                latch.countDown();
+            }
+        };
+        final LocalMessageManager manager = LocalMessageManager.getInstance();
+        manager.setDispatchEngine(DispatchEngine.ringBuffer(producers * messagesPerProducer, OverflowPolicy.FAIL));
+        manager.addListener(messageId, callback);
+
+        try {
+            final ExecutorService executor = Executors.newFixedThreadPool(producers);
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 1; i <= messagesPerProducer; i++) {
+                            manager.send(messageId, producer, i);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+
+            assertTrue("Did not receive all messages!", latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            manager.removeListener(messageId, callback);
+            manager.setDispatchEngine(DispatchEngine.handlerQueue());
+        }
+        assertFalse("Messages of one producer were reordered!", outOfOrder[0]);
+    }
+
+    @Test
+    public void ringBufferOverflowTest() throws Exception {
+        final int messageId = 40;
+        final List<Integer> received = new ArrayList<>();
+        final List<Integer> backgroundReceived = Collections.synchronizedList(new ArrayList<Integer>());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final LocalMessageManager manager = LocalMessageManager.create("overflow", Looper.getMainLooper());
+        manager.setDispatchEngine(DispatchEngine.ringBuffer(2, OverflowPolicy.DROP_NEWEST));
+        manager.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getArg1());
+            }
+        });
+        manager.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                backgroundReceived.add(localMessage.getArg1());
+            }
+        }, DeliveryTarget.executor(executor));
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // the main thread can't drain the ring meanwhile, the last three don't fit
+                for (int i = 0; i < 5; i++) {
+                    manager.send(messageId, i);
+                }
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        manager.close();
+
+        assertEquals(3, manager.getDroppedMessageCount());
+        assertEquals(Arrays.asList(0, 1), received);
+        assertEquals("Background lane got dropped messages!", Arrays.asList(0, 1), backgroundReceived);
+    }
+
+    @Test
+    public void isolatedInstanceTest() {
+        final int messageId = 11;
+        final int[] received = new int[2];
+        final LocalMessageManager first = LocalMessageManager.create("first", Looper.getMainLooper());
+        final LocalMessageManager second = LocalMessageManager.create("second", Looper.getMainLooper());
+
+        first.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received[0]++;
+            }
+        });
+        second.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received[1]++;
+            }
+        });
+
+        first.send(messageId);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals("Did not receive message!", 1, received[0]);
+        assertEquals("Message leaked to another instance!", 0, received[1]);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // the first message is still queued when the instance closes
+                first.send(messageId);
+                first.close();
+                first.send(messageId);
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals("Received message after close!", 1, received[0]);
+        second.close();
+    }
+
+    @Test
+    public void threadPerMessageDispatcherTest() throws Exception {
+        final int messageId = 12;
+        final int messageCount = 10;
+        final CountDownLatch latch = new CountDownLatch(messageCount);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final Dispatcher dispatcher = Dispatchers.threadPerMessage(Executors.defaultThreadFactory());
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+        LocalMessageManager.getInstance().addListener(messageId, callback, DeliveryTarget.dispatcher(dispatcher));
+
+        for (int i = 0; i < messageCount; i++) {
+            LocalMessageManager.getInstance().send(messageId, i);
+        }
+
+        assertTrue("Did not receive all messages!", latch.await(1, TimeUnit.SECONDS));
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+        assertEquals("Messages shared a thread!", messageCount, threads.size());
+    }
+
+    @Test
+    public void generatedSubscriberTest() {
+        final Receiver receiver = new Receiver();
+        final LMMInstrumentedTest_Receiver_MessageSubscriber subscriber =
+                LMMInstrumentedTest_Receiver_MessageSubscriber.register(LocalMessageManager.getInstance(), receiver);
+
+        LocalMessageManager.getInstance().send(13, 1, 2);
+        LocalMessageManager.getInstance().send(14, "payload");
+        LocalMessageManager.getInstance().send(15, 3);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        subscriber.unregister(LocalMessageManager.getInstance());
+        LocalMessageManager.getInstance().send(13, 4, 5);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals("1,2 payload 3 ", receiver.mLog.toString());
+    }
+
+    static class Receiver {
+
+        final StringBuilder mLog = new StringBuilder();
+
+        @OnMessage(13)
+        void onArgs(int arg1, int arg2) {
+            mLog.append(arg1).append(',').append(arg2).append(' ');
+        }
+
+        @OnMessage({14, 15})
+        void onAny(@NonNull LocalMessage message) {
+            mLog.append(message.getId() == 14 ? message.getObject() : message.getArg1()).append(' ');
+        }
+    }
+
+    @Test
+    public void lifecycleSubscriptionTest() {
+        final int messageId = 16;
+        final List<Integer> batch = new ArrayList<>();
+        final int[] batches = new int[1];
+
+        final LifecycleSubscription subscription = LocalMessageManager.getInstance().addLifecycleListener(new int[]{messageId},
+                new LocalMessageBatchCallback() {
+                    @Override
+                    public void handleBatch(@NonNull List<LocalMessage> localMessages) {
+                        batches[0]++;
+                        for (final LocalMessage localMessage : localMessages) {
+                            batch.add(localMessage.getArg1());
+                        }
+                    }
+
+                    @Override
+                    public void handleMessage(@NonNull LocalMessage localMessage) {
+                        batch.add(localMessage.getArg1());
+                    }
+                }, BufferPolicy.DROP_OLDEST, 2);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                subscription.pause();
+            }
+        });
+        for (int i = 1; i <= 3; i++) {
+            LocalMessageManager.getInstance().send(messageId, i);
+        }
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertTrue("Delivered while paused!", batch.isEmpty());
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                subscription.resume();
+                subscription.remove();
+            }
+        });
+
+        assertEquals("Buffer was not flushed in one batch!", 1, batches[0]);
+        assertEquals(Arrays.asList(2, 3), batch);
+        assertEquals(1, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void pendingLimitTest() {
+        final int messageId = 17;
+        final List<Integer> received = new ArrayList<>();
+        final LocalMessageManager manager = LocalMessageManager.create("limited", Looper.getMainLooper());
+        manager.setPendingLimit(3, OverflowPolicy.DROP_OLDEST);
+        manager.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getArg1());
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 10; i++) {
+                    manager.send(messageId, i);
+                }
+                assertEquals(3, manager.getPendingCount());
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals(Arrays.asList(8, 9, 10), received);
+        assertEquals(0, manager.getPendingCount());
+        assertEquals(3, manager.getPendingHighWatermark());
+        assertEquals(7, manager.getDroppedMessageCount());
+        manager.close();
+    }
+
+    @Test
+    public void pendingLimitBatchTest() {
+        final int messageId = 44;
+        final List<Integer> received = new ArrayList<>();
+        final LocalMessageManager manager = LocalMessageManager.create("limitedBatches", Looper.getMainLooper());
+        // batches are sent as carrier messages with ID 0
+        manager.setPendingLimit(0, 1, OverflowPolicy.DROP_NEWEST);
+        manager.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getArg1());
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                manager.sendBatch(new MessageBatch().add(messageId, 1));
+                manager.sendBatch(new MessageBatch().add(messageId, 2));
+                manager.send(0);
+                manager.send(0);
+                assertEquals(3, manager.getPendingCount());
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals(Arrays.asList(1, 2), received);
+        assertEquals(1, manager.getDroppedMessageCount());
+        manager.close();
+    }
+
+    @Test
+    public void weakListenerReclaimTest() {
+        final int messageId = 27;
+        final int[] fanOut = {-1};
+        final LocalMessageManager manager = LocalMessageManager.create("weak", Looper.getMainLooper());
+        manager.setMetricsSink(new MetricsSink() {
+            @Override
+            public void onMessageDispatched(int id, long queueLatencyMillis, int listeners) {
+                fanOut[0] = listeners;
+            }
+
+            @Override
+            public void onListenerHandled(int id, @NonNull LocalMessageCallback listener, long durationNanos) {
+            }
+        });
+
+        final WeakReference<LocalMessageCallback> reference = addCollectableListener(manager, messageId);
+        for (int i = 0; i < 20 && reference.get() != null; i++) {
+            Runtime.getRuntime().gc();
+            SystemClock.sleep(10);
+        }
+        assertNull("Listener was not collected!", reference.get());
+        // the cleared reference is enqueued by the runtime asynchronously
+        SystemClock.sleep(50);
+
+        manager.send(messageId);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals("Collected listener is still registered!", 0, fanOut[0]);
+        assertEquals(1, manager.getReclaimedListenerCount());
+        manager.close();
+    }
+
+    @Test
+    public void rangeAndMaskListenerTest() {
+        final List<String> received = new ArrayList<>();
+        final LocalMessageManager manager = LocalMessageManager.create("ranges", Looper.getMainLooper());
+        final LocalMessageCallback specific = recordingListener(received, "specific");
+        final LocalMessageCallback lower = recordingListener(received, "lower");
+        final LocalMessageCallback upper = recordingListener(received, "upper");
+        final LocalMessageCallback masked = recordingListener(received, "masked");
+        final LocalMessageCallback universal = recordingListener(received, "universal");
+
+        manager.addListener(universal);
+        manager.addListener(0x1005, specific);
+        // both ends are inclusive, the ranges overlap in 0x1005
+        manager.addListener(IdRange.of(0x1000, 0x1005), lower);
+        manager.addListener(IdRange.of(0x1005, 0x100f), upper);
+        // IDs 0x1??5
+        manager.addListener(0xf00f, 0x1005, masked);
+
+        for (final int id : new int[]{0x0fff, 0x1000, 0x1005, 0x1006, 0x1010, 0x1015}) {
+            manager.send(id);
+        }
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals(Arrays.asList(
+                "universal 0xfff",
+                "lower 0x1000", "universal 0x1000",
+                "specific 0x1005", "lower 0x1005", "upper 0x1005", "masked 0x1005", "universal 0x1005",
+                "upper 0x1006", "universal 0x1006",
+                "universal 0x1010",
+                "masked 0x1015", "universal 0x1015"), received);
+
+        received.clear();
+        manager.removeListener(lower);
+        manager.removeListener(upper);
+        manager.removeListener(masked);
+        manager.send(0x1005);
+        manager.send(0x1015);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals(Arrays.asList("specific 0x1005", "universal 0x1005", "universal 0x1015"), received);
+        manager.close();
+    }
+
+    @Test
+    public void deliveryMetricsTest() {
+        final int messageId = 28;
+        final int otherId = 29;
+        final int unheardId = 30;
+        final int untrackedId = 31;
+        final DeliveryMetrics metrics = new DeliveryMetrics(3, 1);
+        final LocalMessageManager manager = LocalMessageManager.create("metrics", Looper.getMainLooper());
+        manager.setMetricsSink(metrics);
+        final List<String> received = new ArrayList<>();
+        final LocalMessageCallback first = recordingListener(received, "first");
+        final LocalMessageCallback second = recordingListener(received, "second");
+        // a second listener class, beyond the tracked one
+        final LocalMessageCallback other = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+            }
+        };
+        manager.addListener(messageId, first);
+        manager.addListener(messageId, second);
+        manager.addListener(otherId, other);
+
+        manager.send(messageId);
+        manager.send(messageId);
+        manager.send(otherId);
+        manager.send(unheardId);
+        manager.send(untrackedId);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        DeliveryMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(3, snapshot.getIds().length);
+        assertEquals(2, snapshot.getMessageCount(messageId));
+        assertEquals(2.0, snapshot.getAverageFanOut(messageId), 0);
+        assertEquals(1, snapshot.getMessageCount(otherId));
+        assertEquals(1.0, snapshot.getAverageFanOut(otherId), 0);
+        assertEquals(1, snapshot.getMessageCount(unheardId));
+        assertEquals(0.0, snapshot.getAverageFanOut(unheardId), 0);
+        assertEquals("Untracked ID was counted!", 0, snapshot.getMessageCount(untrackedId));
+        assertEquals(1, snapshot.getUntrackedMessages());
+        assertEquals(5, sum(snapshot.getLatencyHistogram()));
+        assertArrayEquals(new Class<?>[]{first.getClass()}, snapshot.getListenerClasses());
+        //noinspection ConstantConditions
+        assertEquals(4, sum(snapshot.getDurationHistogram(first.getClass())));
+        assertNull(snapshot.getDurationHistogram(other.getClass()));
+        assertEquals(1, snapshot.getUntrackedListenerCalls());
+
+        metrics.reset();
+        snapshot = metrics.getSnapshot();
+        assertEquals(0, snapshot.getIds().length);
+        assertEquals(0, snapshot.getListenerClasses().length);
+        assertEquals(0, sum(snapshot.getLatencyHistogram()));
+        assertEquals(0, snapshot.getUntrackedMessages());
+        assertEquals(0, snapshot.getUntrackedListenerCalls());
+
+        // bounds are inclusive, the last bucket is unbounded
+        metrics.onMessageDispatched(messageId, 0, 3);
+        metrics.onMessageDispatched(messageId, 4, 1);
+        metrics.onMessageDispatched(messageId, 5, 2);
+        metrics.onMessageDispatched(messageId, 10000, 0);
+        metrics.onListenerHandled(messageId, first, TimeUnit.MICROSECONDS.toNanos(50));
+        metrics.onListenerHandled(messageId, first, TimeUnit.MICROSECONDS.toNanos(51));
+        metrics.onListenerHandled(messageId, first, TimeUnit.SECONDS.toNanos(1));
+        snapshot = metrics.getSnapshot();
+        assertArrayEquals(new long[]{1, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 1}, snapshot.getLatencyHistogram());
+        assertArrayEquals(new long[]{1, 1, 0, 0, 0, 0, 0, 0, 0, 1}, snapshot.getDurationHistogram(first.getClass()));
+        assertEquals(1.5, snapshot.getAverageFanOut(messageId), 0);
+        manager.close();
+    }
+
+    @Test
+    public void laneLatencyTest() throws Exception {
+        final int messageId = 42;
+        for (final boolean parallel : new boolean[]{false, true}) {
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final DeliveryTarget target = parallel ? DeliveryTarget.parallel(executor) : DeliveryTarget.executor(executor);
+            final DeliveryMetrics metrics = new DeliveryMetrics();
+            final LocalMessageManager manager = LocalMessageManager.create("latency", Looper.getMainLooper());
+            manager.setMetricsSink(metrics);
+            final CountDownLatch latch = new CountDownLatch(2);
+            manager.addListener(messageId, new LocalMessageCallback() {
+                @Override
+                public void handleMessage(@NonNull LocalMessage localMessage) {
+                    // keeps the second message waiting for the executor
+                    SystemClock.sleep(50);
+                    latch.countDown();
+                }
+            }, target);
+
+            manager.send(messageId);
+            manager.send(messageId);
+            assertTrue("Did not receive messages!", latch.await(1, TimeUnit.SECONDS));
+            // the lane reports once the listener returned
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+            manager.close();
+
+            final DeliveryMetrics.Snapshot snapshot = metrics.getSnapshot();
+            final long[] histogram = snapshot.getLatencyHistogram();
+            final long[] bounds = snapshot.getLatencyBoundsMillis();
+            // both messages are reported by the idle main thread and by the lane
+            assertEquals(4, sum(histogram));
+            long delayed = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                if (i == bounds.length || bounds[i] >= 32) {
+                    delayed += histogram[i];
+                }
+            }
+            assertEquals("Waiting for the lane was not measured!", 1, delayed);
+        }
+    }
+
+    @Test
+    public void slowListenerWatchdogTest() throws Exception {
+        final int messageId = 32;
+        final List<String> reports = Collections.synchronizedList(new ArrayList<String>());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final LocalMessageManager manager = LocalMessageManager.create("watchdog", Looper.getMainLooper());
+        // a wide margin on both sides of the budget, a busy device must not make the fast listener slow
+        final SlowListenerWatchdog watchdog = new SlowListenerWatchdog(20, new SlowListenerWatchdog.Reporter() {
+            @Override
+            public void onSlowListener(@NonNull Class<?> listenerClass, int id, long durationNanos) {
+                reports.add("slow " + id);
+            }
+
+            @Override
+            public void onListenerDemoted(@NonNull LocalMessageCallback listener) {
+                reports.add("demoted");
+            }
+        }, 8).demoteAfter(2, DeliveryTarget.executor(executor));
+        manager.setWatchdog(watchdog);
+
+        final CountDownLatch backgroundLatch = new CountDownLatch(1);
+        final Thread[] threads = new Thread[3];
+        final int[] calls = new int[1];
+        final LocalMessageCallback slow = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                threads[calls[0]++] = Thread.currentThread();
+                SystemClock.sleep(60);
+                if (calls[0] == threads.length) {
+                    backgroundLatch.countDown();
+                }
+            }
+        };
+        final LocalMessageCallback fast = recordingListener(new ArrayList<String>(), "fast");
+        manager.addListener(messageId, slow);
+        manager.addListener(messageId, fast);
+
+        manager.send(messageId);
+        manager.send(messageId);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(Arrays.asList("slow " + messageId, "slow " + messageId, "demoted"), reports);
+
+        final List<SlowListenerWatchdog.ListenerStats> statistics = watchdog.getStatistics();
+        assertEquals(2, statistics.size());
+        for (final SlowListenerWatchdog.ListenerStats stats : statistics) {
+            assertEquals(2, stats.getCalls());
+            if (stats.getListenerClass() == slow.getClass()) {
+                assertEquals(2, stats.getSlowCalls());
+                assertTrue(stats.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(60));
+                assertTrue(stats.getAverageNanos() >= TimeUnit.MILLISECONDS.toNanos(60));
+            } else {
+                assertEquals(fast.getClass(), stats.getListenerClass());
+                assertEquals(0, stats.getSlowCalls());
+            }
+        }
+
+        // the demoted listener keeps its subscription on the background target
+        manager.send(messageId);
+        assertTrue("Demoted listener did not receive message!", backgroundLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(Looper.getMainLooper().getThread(), threads[1]);
+        assertNotSame("Delivered on the main thread after demotion!", Looper.getMainLooper().getThread(), threads[2]);
+        manager.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void blockedProducerLimitChangeTest() throws Exception {
+        final int firstId = 33;
+        final int secondId = 34;
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final LocalMessageManager manager = LocalMessageManager.create("blocking", Looper.getMainLooper());
+        manager.setPendingLimit(firstId, 1, OverflowPolicy.BLOCK);
+        manager.setPendingLimit(secondId, 1, OverflowPolicy.BLOCK);
+        manager.addListener(secondId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getArg1());
+            }
+        });
+
+        // keep the main thread busy, so that nothing is drained while the producer blocks
+        final CountDownLatch mainThreadBusy = new CountDownLatch(1);
+        final CountDownLatch mainThreadRelease = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mainThreadBusy.countDown();
+                try {
+                    mainThreadRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(mainThreadBusy.await(1, TimeUnit.SECONDS));
+
+        final Throwable[] error = new Throwable[1];
+        manager.send(secondId, 1);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.send(secondId, 2);
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING) {
+            assertTrue("Producer did not block!", producer.isAlive());
+            SystemClock.sleep(1);
+        }
+
+        // shrinks the limit arrays while the producer waits
+        manager.setPendingLimit(firstId, 0, OverflowPolicy.BLOCK);
+        SystemClock.sleep(20);
+        assertEquals("Producer passed the limit!", Thread.State.WAITING, producer.getState());
+
+        mainThreadRelease.countDown();
+        producer.join(1000);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertNull(error[0]);
+        assertEquals(Arrays.asList(1, 2), received);
+        manager.close();
+    }
+
+    @Test
+    public void parallelFanOutTest() throws Exception {
+        final int messageId = 18;
+        final int listenerCount = 3;
+        final CountDownLatch started = new CountDownLatch(listenerCount);
+        final ExecutorService executor = Executors.newFixedThreadPool(listenerCount);
+        final List<LocalMessageCallback> callbacks = new ArrayList<>();
+
+        for (int i = 0; i < listenerCount; i++) {
+            final LocalMessageCallback callback = new LocalMessageCallback() {
+                @Override
+                public void handleMessage(@NonNull LocalMessage localMessage) {
+                    started.countDown();
+                    try {
+                        // every listener waits for the others, which only passes if they run concurrently
+                        started.await(1, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            callbacks.add(callback);
+            LocalMessageManager.getInstance().addListener(messageId, callback, DeliveryTarget.parallel(executor));
+        }
+
+        final ParallelDelivery delivery = LocalMessageManager.getInstance().sendParallel(messageId, "payload");
+        assertTrue("Listeners did not finish!", delivery.await(2, TimeUnit.SECONDS));
+        for (final LocalMessageCallback callback : callbacks) {
+            LocalMessageManager.getInstance().removeListener(messageId, callback);
+        }
+        executor.shutdown();
+        assertEquals(listenerCount, delivery.getListenerCount());
+        assertEquals("Listeners did not run concurrently!", 0, started.getCount());
+    }
+
+    @Test
+    public void typedEventTest() {
+        final List<String> received = new ArrayList<>();
+        final TypedCallback<CharSequence> sequenceCallback = new TypedCallback<CharSequence>() {
+            @Override
+            public void handleEvent(@NonNull CharSequence event) {
+                received.add("sequence");
+            }
+        };
+        final TypedCallback<String> stringCallback = new TypedCallback<String>() {
+            @Override
+            public void handleEvent(@NonNull String event) {
+                received.add("string");
+            }
+        };
+        LocalMessageManager.getInstance().addListener(CharSequence.class, sequenceCallback);
+        LocalMessageManager.getInstance().addListener(String.class, stringCallback);
+
+        LocalMessageManager.getInstance().post("event");
+        LocalMessageManager.getInstance().post(new StringBuilder("event"));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(Arrays.asList("string", "sequence", "sequence"), received);
+
+        LocalMessageManager.getInstance().removeListener(CharSequence.class, sequenceCallback);
+        LocalMessageManager.getInstance().post("event");
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        LocalMessageManager.getInstance().removeListener(String.class, stringCallback);
+        assertEquals(Arrays.asList("string", "sequence", "sequence", "string"), received);
+    }
+
+    @Test
+    public void debouncedMessageTest() throws Exception {
+        final int messageId = 19;
+        final int cancelledId = 20;
+        final List<Object> received = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getObject());
+                latch.countDown();
+            }
+        };
+        LocalMessageManager.getInstance().addListener(messageId, callback);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    LocalMessageManager.getInstance().sendDebounced(messageId, "query" + i, 100);
+                }
+            }
+        });
+        final ScheduledSend scheduledSend = LocalMessageManager.getInstance().sendDelayed(cancelledId, 100);
+        scheduledSend.cancel();
+        assertFalse(scheduledSend.isPending());
+
+        assertTrue("Did not receive message!", latch.await(1, TimeUnit.SECONDS));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+        assertEquals(Collections.<Object>singletonList("query4"), received);
+    }
+
+    @Test
+    public void timedSendModesTest() throws Exception {
+        final int messageId = 35;
+        final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        final LocalMessageManager manager = LocalMessageManager.create("timers", Looper.getMainLooper());
+        manager.addListener(messageId, new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getObject());
+                latch.countDown();
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final ScheduledSend cancelled = manager.sendDelayed(messageId, "cancelled", 50);
+                cancelled.cancel();
+                assertFalse(cancelled.isPending());
+                final ScheduledSend delayed = manager.sendDelayed(messageId, "delayed", 50);
+                assertSame("Delayed sends of the ID got another handle!", cancelled, delayed);
+
+                // neither mode may take over the delayed message of the same ID
+                final ScheduledSend debounced = manager.sendDebounced(messageId, "debounced", 30);
+                final ScheduledSend first = manager.sendThrottled(messageId, "throttled1", 100);
+                assertFalse("Leading throttled message was not sent right away!", first.isPending());
+                final ScheduledSend trailing = manager.sendThrottled(messageId, "throttled2", 100);
+                assertSame("Trailing message got another handle!", first, trailing);
+                assertSame(trailing, manager.sendThrottled(messageId, "throttled3", 100));
+                assertTrue(trailing.isPending());
+                assertTrue(debounced.isPending());
+                assertTrue(delayed.isPending());
+            }
+        });
+
+        assertTrue("Did not receive all messages!", latch.await(1, TimeUnit.SECONDS));
+        SystemClock.sleep(50);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(Arrays.<Object>asList("throttled1", "debounced", "delayed", "throttled3"), received);
+        manager.close();
+    }
+
+    @Test
+    public void requestResultTest() throws Exception {
+        final int messageId = 21;
+        final int unansweredId = 22;
+        final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        final ResultCallback<Integer> callback = new ResultCallback<Integer>() {
+            @Override
+            public void onResult(@Nullable Integer result) {
+                results.add(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                results.add(error.getClass());
+                latch.countDown();
+            }
+        };
+
+        LocalMessageManager.getInstance().setResponder(messageId, new LocalMessageResponder() {
+            @Override
+            public Object handleRequest(@NonNull LocalMessage request) {
+                return request.getArg1() + 42;
+            }
+        });
+        LocalMessageManager.getInstance().sendForResult(messageId, null, 1000, callback);
+        LocalMessageManager.getInstance().sendForResult(unansweredId, null, 1000, callback);
+
+        assertTrue("Did not receive results!", latch.await(2, TimeUnit.SECONDS));
+        LocalMessageManager.getInstance().removeResponder(messageId);
+        assertEquals(Arrays.<Object>asList(42, IllegalStateException.class), results);
+    }
+
+    @Test
+    public void closedRequestTest() {
+        final int messageId = 37;
+        final List<String> errors = new ArrayList<>();
+        final ResultCallback<Object> callback = new ResultCallback<Object>() {
+            @Override
+            public void onResult(@Nullable Object result) {
+                errors.add("result");
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                errors.add(error.getMessage());
+            }
+        };
+        final LocalMessageManager manager = LocalMessageManager.create("requests", Looper.getMainLooper());
+        manager.setResponder(messageId, new LocalMessageResponder() {
+            @Override
+            public Object handleRequest(@NonNull LocalMessage request) {
+                return "answer";
+            }
+        });
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // still waiting in the request queue when the manager closes
+                manager.sendForResult(messageId, null, 1000, callback);
+                manager.close();
+                manager.sendForResult(messageId, null, 1000, callback);
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(Arrays.asList("Manager requests was closed", "Manager requests was closed"), errors);
+    }
+
+    @Test
+    public void journalReplayTest() throws Exception {
+        final int messageId = 23;
+        final File directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "journal-test");
+        final File[] oldSegments = directory.listFiles();
+        if (oldSegments != null) {
+            for (final File segment : oldSegments) {
+                assertTrue(segment.delete());
+            }
+        }
+        final MessageJournal.Codec codec = new MessageJournal.Codec() {
+            @Override
+            public byte[] encode(int id, @NonNull Object payload) {
+                return payload.toString().getBytes();
+            }
+
+            @NonNull
+            @Override
+            public Object decode(int id, @NonNull byte[] data) {
+                return new String(data);
+            }
+        };
+
+        final LocalMessageManager recorder = LocalMessageManager.create("recorder", Looper.getMainLooper());
+        final MessageJournal journal = new MessageJournal(directory, codec).record(messageId);
+        recorder.setJournal(journal);
+        recorder.send(messageId, "first");
+        recorder.send(messageId, 42L);
+        recorder.send(messageId + 1, "not recorded");
+        journal.close();
+        recorder.close();
+
+        final List<String> received = new ArrayList<>();
+        final LocalMessageManager replayer = LocalMessageManager.create("replayer", Looper.getMainLooper());
+        replayer.addListener(new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getId() + ":" + localMessage.getObject() + ":" + localMessage.getLong());
+            }
+        });
+        final MessageJournal reopened = new MessageJournal(directory, codec);
+        replayer.setJournal(reopened);
+        assertEquals(reopened.getEndOffset(), reopened.replay(0, 0));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        reopened.close();
+        replayer.close();
+        assertEquals(Arrays.asList(messageId + ":first:0", messageId + ":null:42"), received);
+    }
+
+    @Test
+    public void pooledBufferTest() throws Exception {
+        final int messageId = 24;
+        final int[] received = new int[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                //noinspection ConstantConditions
+                received[0] = localMessage.getPooledBuffer().getBuffer().getInt(0);
+            }
+        };
+        final LocalMessageCallback backgroundCallback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                latch.countDown();
+            }
+        };
+        LocalMessageManager.getInstance().addListener(messageId, callback);
+        LocalMessageManager.getInstance().addListener(messageId, backgroundCallback, DeliveryTarget.executor(executor));
+
+        final PooledBuffer buffer = PooledBuffer.obtain(3000);
+        assertEquals(3000, buffer.getBuffer().limit());
+        buffer.getBuffer().putInt(0, 42);
+        LocalMessageManager.getInstance().send(messageId, buffer);
+
+        assertTrue("Did not receive message!", latch.await(1, TimeUnit.SECONDS));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+        LocalMessageManager.getInstance().removeListener(messageId, backgroundCallback);
+
+        assertEquals(42, received[0]);
+        assertEquals("Buffer was not released!", 0, buffer.getRefCount());
+        assertTrue("Buffer was not pooled!", PooledBuffer.obtain(4000) == buffer);
+        buffer.release();
+    }
+
+    @Test
+    public void pooledTimedSendTest() {
+        final int messageId = 36;
+        final PooledBuffer replaced = PooledBuffer.obtain(3000);
+        final PooledBuffer cancelled = PooledBuffer.obtain(3000);
+        final PooledBuffer queued = PooledBuffer.obtain(3000);
+        final LocalMessageManager manager = LocalMessageManager.create("pooled", Looper.getMainLooper());
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                manager.sendDebounced(messageId, replaced, 100);
+                final ScheduledSend scheduledSend = manager.sendDebounced(messageId, cancelled, 100);
+                assertEquals("Replaced buffer was not released!", 0, replaced.getRefCount());
+                scheduledSend.cancel();
+                assertEquals("Cancelled buffer was not released!", 0, cancelled.getRefCount());
+
+                manager.send(messageId, queued);
+                manager.close();
+            }
+        });
+        assertEquals("Queued buffer was not released!", 0, queued.getRefCount());
+        assertTrue("Buffer was not pooled!", PooledBuffer.obtain(3000) == queued);
+        queued.release();
+    }
+
+    @Test
+    public void messageBatchTest() {
+        final int messageId = 25;
+        final int otherId = 26;
+        final List<Integer> received = new ArrayList<>();
+        final List<Integer> batches = new ArrayList<>();
+
+        final LocalMessageCallback callback = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(localMessage.getArg1());
+            }
+        };
+        final LocalMessageBatchCallback batchCallback = new LocalMessageBatchCallback() {
+            @Override
+            public void handleBatch(@NonNull List<LocalMessage> localMessages) {
+                batches.add(localMessages.size());
+            }
+
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                batches.add(1);
+            }
+        };
+        final int[] ids = {messageId, otherId};
+        LocalMessageManager.getInstance().addListener(messageId, callback);
+        LocalMessageManager.getInstance().addListener(ids, batchCallback);
+
+        final MessageBatch batch = new MessageBatch()
+                .add(messageId, 1)
+                .add(otherId, 2)
+                .add(messageId, 3);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                LocalMessageManager.getInstance().sendBatch(batch);
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        LocalMessageManager.getInstance().removeListener(messageId, callback);
+        LocalMessageManager.getInstance().removeListener(ids, batchCallback);
+
+        assertEquals(Arrays.asList(1, 3), received);
+        assertEquals(Collections.singletonList(3), batches);
+    }
+
+    @Test
+    public void stickyQueuedMessageTest() {
+        final int messageId = 43;
+        final List<String> received = new ArrayList<>();
+        final LocalMessageCallback first = recordingListener(received, "first");
+        final LocalMessageCallback second = recordingListener(received, "second");
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                LocalMessageManager.getInstance().sendSticky(messageId, 42);
+                // the sent message is still queued and reaches the listener without a replay
+                LocalMessageManager.getInstance().addListener(messageId, first);
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        LocalMessageManager.getInstance().addListener(messageId, second);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        LocalMessageManager.getInstance().removeListener(messageId, first);
+        LocalMessageManager.getInstance().removeListener(messageId, second);
+        LocalMessageManager.getInstance().removeSticky(messageId);
+
+        assertEquals(Arrays.asList("first 0x2b", "second 0x2b"), received);
+    }
+
     private void logTime(long nanoseconds) {
         long nano = System.nanoTime() - nanoseconds;
         long ms = TimeUnit.NANOSECONDS.toMillis(nano);
         Log.d(TAG, "Received message(s) after " + nano + " nanoseconds (" + ms + " ms)");
     }
+
+    private static long sum(@NonNull long[] values) {
+        long sum = 0;
+        for (final long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @NonNull
+    private static LocalMessageCallback recordingListener(@NonNull final List<String> received, @NonNull final String name) {
+        return new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+                received.add(name + " 0x" + Integer.toHexString(localMessage.getId()));
+            }
+        };
+    }
+
+    /**
+     * Registers a weak listener in a separate frame, so that no local variable keeps it reachable.
+     */
+    @NonNull
+    private static WeakReference<LocalMessageCallback> addCollectableListener(@NonNull LocalMessageManager manager, int messageId) {
+        final LocalMessageCallback listener = new LocalMessageCallback() {
+            @Override
+            public void handleMessage(@NonNull LocalMessage localMessage) {
+            }
+        };
+        manager.addWeakListener(messageId, listener);
+        return new WeakReference<>(listener);
+    }
 }
@@ -0,0 +1,24 @@
+package eu.inloop.localmessagemanager;
+
+/**
+ * What a paused {@link LifecycleSubscription} keeps when a message arrives.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public enum BufferPolicy {
+
+    /**
+     * Keep only the latest message of every ID. When the buffer is full of other IDs, the oldest
+     * message is dropped.
+     */
+    CONFLATE,
+
+    /**
+     * Keep the latest messages, dropping the oldest one when the buffer is full.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keep the first messages, dropping new ones when the buffer is full.
+     */
+    DROP_NEWEST
+}
@@ -0,0 +1,76 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity open addressing table assigning slots to classes by identity.
+ * Used to keep per-listener-class statistics in preallocated primitive arrays.
+ * Not thread-safe, callers synchronize.
+ */
+final class ClassIndex {
+
+    @NonNull
+    private final Class<?>[] mClasses;
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    /**
+     * @param maxSize - number of distinct classes which get a slot
+     */
+    ClassIndex(final int maxSize) {
+        int capacity = 2;
+        while (capacity < maxSize * 2) {
+            capacity <<= 1;
+        }
+        mClasses = new Class<?>[capacity];
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Number of slots, indexes returned by {@link #indexOf(Class)} are below it.
+     */
+    int capacity() {
+        return mClasses.length;
+    }
+
+    /**
+     * @return slot of the class, assigning a free one on the first call, -1 once the table is full
+     */
+    int indexOf(@NonNull final Class<?> c) {
+        final int mask = mClasses.length - 1;
+        int index = System.identityHashCode(c) & mask;
+        while (true) {
+            final Class<?> slot = mClasses[index];
+            if (slot == c) {
+                return index;
+            }
+            if (slot == null) {
+                if (mSize == mMaxSize) {
+                    return -1;
+                }
+                mSize++;
+                mClasses[index] = c;
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @return class of the slot or null if the slot is free
+     */
+    @Nullable
+    Class<?> get(final int index) {
+        return mClasses[index];
+    }
+
+    void clear() {
+        Arrays.fill(mClasses, null);
+        mSize = 0;
+    }
+}
@@ -0,0 +1,32 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Forwards measurements to two sinks, used when both metrics and a watchdog are installed.
+ */
+final class CompositeMetricsSink implements MetricsSink {
+
+    @NonNull
+    private final MetricsSink mFirst;
+
+    @NonNull
+    private final MetricsSink mSecond;
+
+    CompositeMetricsSink(@NonNull final MetricsSink first, @NonNull final MetricsSink second) {
+        mFirst = first;
+        mSecond = second;
+    }
+
+    @Override
+    public void onMessageDispatched(final int id, final long queueLatencyMillis, final int fanOut) {
+        mFirst.onMessageDispatched(id, queueLatencyMillis, fanOut);
+        mSecond.onMessageDispatched(id, queueLatencyMillis, fanOut);
+    }
+
+    @Override
+    public void onListenerHandled(final int id, @NonNull final LocalMessageCallback listener, final long durationNanos) {
+        mFirst.onListenerHandled(id, listener, durationNanos);
+        mSecond.onListenerHandled(id, listener, durationNanos);
+    }
+}
@@ -0,0 +1,181 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Pending values of conflated messages for one destination queue.
+ * <p>
+ * Each distinct ID and key pair with a message waiting in the queue owns one {@link Slot}. Further
+ * sends only overwrite the slot values, so the queue holds at most one message per pair no matter
+ * how often it is sent. A slot is removed once its message is delivered, so the table only grows
+ * with the pairs waiting at the same time, and a few removed slots are kept for reuse.
+ */
+final class ConflationQueue {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MAX_FREE_SLOTS = 16;
+
+    static final class Slot {
+        @NonNull
+        final ConflationQueue queue;
+        int id;
+        int key;
+        int arg1;
+        int arg2;
+        @Nullable
+        Object obj;
+        @Nullable
+        Slot nextFree;
+
+        Slot(@NonNull final ConflationQueue queue) {
+            this.queue = queue;
+        }
+    }
+
+    // open addressing table of slots by (id, key), everything below is guarded by this
+    @NonNull
+    private Slot[] mSlots = new Slot[MIN_CAPACITY];
+
+    private int mSize;
+
+    @Nullable
+    private Slot mFreeSlots;
+
+    private int mFreeCount;
+
+    /**
+     * Stores the latest values for the pair.
+     *
+     * @return slot which has to be enqueued with a new message, or null if a message carrying
+     * the slot is still pending and will deliver the new values
+     */
+    @Nullable
+    synchronized Slot offer(final int id, final int key, final int arg1, final int arg2, @Nullable final Object obj) {
+        int index = indexOf(id, key);
+        Slot slot = mSlots[index];
+        final boolean pending = slot != null;
+        if (!pending) {
+            if ((mSize + 1) * 2 > mSlots.length) {
+                grow();
+                index = indexOf(id, key);
+            }
+            slot = obtainSlot();
+            slot.id = id;
+            slot.key = key;
+            mSlots[index] = slot;
+            mSize++;
+        }
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.obj = obj;
+        return pending ? null : slot;
+    }
+
+    /**
+     * Replaces the slot carried by the message with its latest values and removes the slot
+     * so that the next send enqueues a new message.
+     *
+     * @return false if the message doesn't carry a slot
+     */
+    static boolean resolve(@NonNull final Message msg) {
+        if (!(msg.obj instanceof Slot)) {
+            return false;
+        }
+        final Slot slot = (Slot) msg.obj;
+        slot.queue.take(slot, msg);
+        return true;
+    }
+
+    /**
+     * @return number of pairs with a message waiting in the queue
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    private synchronized void take(@NonNull final Slot slot, @NonNull final Message msg) {
+        msg.arg1 = slot.arg1;
+        msg.arg2 = slot.arg2;
+        msg.obj = slot.obj;
+        remove(slot);
+        slot.obj = null;
+        if (mFreeCount < MAX_FREE_SLOTS) {
+            slot.nextFree = mFreeSlots;
+            mFreeSlots = slot;
+            mFreeCount++;
+        }
+    }
+
+    @NonNull
+    private Slot obtainSlot() {
+        final Slot slot = mFreeSlots;
+        if (slot == null) {
+            return new Slot(this);
+        }
+        mFreeSlots = slot.nextFree;
+        slot.nextFree = null;
+        mFreeCount--;
+        return slot;
+    }
+
+    /**
+     * @return index of the pair's slot, or of the empty entry where it belongs
+     */
+    private int indexOf(final int id, final int key) {
+        final int mask = mSlots.length - 1;
+        int index = hash(id, key) & mask;
+        Slot slot;
+        while ((slot = mSlots[index]) != null) {
+            if (slot.id == id && slot.key == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Backward-shift deletion, moves the following slots of the probe run into the gap so that
+     * lookups never need tombstones.
+     */
+    private void remove(@NonNull final Slot slot) {
+        final int mask = mSlots.length - 1;
+        int gap = indexOf(slot.id, slot.key);
+        int next = (gap + 1) & mask;
+        Slot candidate;
+        while ((candidate = mSlots[next]) != null) {
+            final int home = hash(candidate.id, candidate.key) & mask;
+            // the candidate may move back unless its home lies between the gap and its position
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                mSlots[gap] = candidate;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mSlots[gap] = null;
+        mSize--;
+    }
+
+    private void grow() {
+        final Slot[] oldSlots = mSlots;
+        mSlots = new Slot[oldSlots.length * 2];
+        final int mask = mSlots.length - 1;
+        for (final Slot oldSlot : oldSlots) {
+            if (oldSlot != null) {
+                int i = hash(oldSlot.id, oldSlot.key) & mask;
+                while (mSlots[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                mSlots[i] = oldSlot;
+            }
+        }
+    }
+
+    private static int hash(final int id, final int key) {
+        final int h = (id * 31 + key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
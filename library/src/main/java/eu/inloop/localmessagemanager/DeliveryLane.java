@@ -0,0 +1,453 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Listeners of one background {@link DeliveryTarget} together with the queue feeding them.
+ */
+abstract class DeliveryLane {
+
+    @NonNull
+    final DeliveryTarget mTarget;
+
+    @NonNull
+    final LocalMessageManager mManager;
+
+    @NonNull
+    final ListenerRegistry mRegistry = new ListenerRegistry();
+
+    @NonNull
+    private final ConflationQueue mConflationQueue = new ConflationQueue();
+
+    DeliveryLane(@NonNull final DeliveryTarget target, @NonNull final LocalMessageManager manager) {
+        mTarget = target;
+        mManager = manager;
+    }
+
+    @NonNull
+    static DeliveryLane create(@NonNull final DeliveryTarget target, @NonNull final LocalMessageManager manager) {
+        final Object t = target.getTarget();
+        if (target.isParallel()) {
+            return new ParallelLane(target, manager, (Executor) t);
+        } else if (t instanceof Looper) {
+            return new LooperLane(target, manager, (Looper) t);
+        } else if (t instanceof Dispatcher) {
+            return new DispatcherLane(target, manager, (Dispatcher) t);
+        } else {
+            return new DispatcherLane(target, manager, Dispatchers.executor((Executor) t));
+        }
+    }
+
+    /**
+     * Delivers the message to this lane's listeners on the current thread.
+     * @param sentAt - uptime at which the message was handed to this lane, 0 if it wasn't measured
+     */
+    final void dispatch(@NonNull final Message msg, @NonNull final LocalMessage message, final long sentAt) {
+        if (mManager.isClosed()) {
+            PrimitivePayload.release(msg);
+            return;
+        }
+        final LocalMessageCallback recipient = ListenerRegistry.unwrap(msg, this);
+        final MetricsSink sink = mManager.getMetricsSink();
+        final long latency = ListenerRegistry.queueLatency(sink, sentAt);
+        message.setMessage(msg);
+        try {
+            final int fanOut = mRegistry.deliver(message, recipient, sink);
+            ListenerRegistry.reportDispatched(sink, msg.what, latency, fanOut);
+        } finally {
+            message.setMessage(null);
+            PrimitivePayload.release(msg);
+        }
+    }
+
+    /**
+     * Enqueues a copy of the message if this lane has listeners for its ID.
+     */
+    final void route(@NonNull final Message msg) {
+        route(msg, null);
+    }
+
+    /**
+     * Enqueues a copy of the message if this lane has listeners for its ID.
+     * @param delivery - completion signal of parallel delivery, ignored by other lanes
+     */
+    void route(@NonNull final Message msg, @Nullable final ParallelDelivery delivery) {
+        if (mRegistry.hasListeners(msg.what)) {
+            final Message copy = Message.obtain(msg);
+            PrimitivePayload.copy(copy);
+            StickyCache.onQueued(copy, this);
+            enqueue(copy);
+        }
+    }
+
+    /**
+     * Enqueues a message with the values if this lane has listeners for the ID.
+     */
+    final void route(final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+        if (mRegistry.hasListeners(id)) {
+            final Message msg = Message.obtain();
+            msg.what = id;
+            msg.arg1 = arg1;
+            msg.arg2 = arg2;
+            msg.obj = obj;
+            PrimitivePayload.copy(msg);
+            enqueue(msg);
+        }
+    }
+
+    /**
+     * Enqueues the values through this lane's conflation queue if this lane has listeners for the ID.
+     */
+    final void routeConflated(final int id, final int key, final int arg1, final int arg2, @Nullable final Object obj) {
+        if (mRegistry.hasListeners(id)) {
+            final ConflationQueue.Slot slot = mConflationQueue.offer(id, key, arg1, arg2, obj);
+            if (slot != null) {
+                final Message msg = Message.obtain();
+                msg.what = id;
+                msg.obj = slot;
+                enqueue(msg);
+            }
+        }
+    }
+
+    /**
+     * Takes ownership of the message, it is recycled after delivery.
+     */
+    abstract void enqueue(@NonNull Message msg);
+
+    /**
+     * @return current uptime if someone measures the queue latency, 0 otherwise
+     */
+    final long sendTime() {
+        // reading the clock costs more than the hand-off, only measure when someone listens
+        return mManager.getMetricsSink() != null ? SystemClock.uptimeMillis() : 0;
+    }
+
+    /**
+     * Discards pending messages where the queue allows it, the rest is skipped by {@link #dispatch}.
+     */
+    void close() {
+    }
+
+    private static final class LooperLane extends DeliveryLane implements Handler.Callback {
+
+        @NonNull
+        private final Handler mHandler;
+
+        @NonNull
+        private final LocalMessage mMessage = new LocalMessage(null);
+
+        @NonNull
+        private final QueuedPayloads mQueued = new QueuedPayloads();
+
+        LooperLane(@NonNull final DeliveryTarget target, @NonNull final LocalMessageManager manager, @NonNull final Looper looper) {
+            super(target, manager);
+            mHandler = new Handler(looper, this);
+        }
+
+        @Override
+        void enqueue(@NonNull final Message msg) {
+            mQueued.add(msg.obj);
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        void close() {
+            mHandler.removeCallbacksAndMessages(null);
+            mQueued.releaseAll();
+        }
+
+        @Override
+        public boolean handleMessage(@NonNull final Message msg) {
+            if (mQueued.remove(msg.obj)) {
+                // the lane's Handler stamped the message when it was enqueued
+                dispatch(msg, mMessage, msg.getWhen());
+            }
+            return true;
+        }
+    }
+
+    private static final class DispatcherLane extends DeliveryLane {
+
+        @NonNull
+        private final Dispatcher mDispatcher;
+
+        /**
+         * Shared by all tasks of a serial dispatcher, null otherwise.
+         */
+        @Nullable
+        private final LocalMessage mMessage;
+
+        DispatcherLane(@NonNull final DeliveryTarget target, @NonNull final LocalMessageManager manager, @NonNull final Dispatcher dispatcher) {
+            super(target, manager);
+            mDispatcher = dispatcher;
+            mMessage = dispatcher.isSerial() ? new LocalMessage(null) : null;
+        }
+
+        @Override
+        void enqueue(@NonNull final Message msg) {
+            final long sentAt = sendTime();
+            try {
+                mDispatcher.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        // concurrent dispatchers may run tasks in parallel, each task gets its own wrapper
+                        dispatch(msg, mMessage != null ? mMessage : new LocalMessage(null), sentAt);
+                        msg.recycle();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // nobody would run the task, return its payload to the pool
+                PrimitivePayload.release(msg);
+                msg.recycle();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Calls every listener of a message in its own task. Each listener has a mailbox which runs
+     * one message at a time and resubmits itself while it has more, so listeners run concurrently
+     * while every listener still sees its messages in order.
+     */
+    private static final class ParallelLane extends DeliveryLane {
+
+        @NonNull
+        private final Executor mExecutor;
+
+        /**
+         * Mailboxes of listeners with messages in flight, keyed by the listener. Guards the mailboxes.
+         */
+        @NonNull
+        private final Map<LocalMessageCallback, Mailbox> mMailboxes = new IdentityHashMap<>();
+
+        ParallelLane(@NonNull final DeliveryTarget target, @NonNull final LocalMessageManager manager, @NonNull final Executor executor) {
+            super(target, manager);
+            mExecutor = executor;
+        }
+
+        @Override
+        void route(@NonNull final Message msg, @Nullable final ParallelDelivery delivery) {
+            if (mRegistry.hasListeners(msg.what)) {
+                final Message copy = Message.obtain(msg);
+                PrimitivePayload.copy(copy);
+                StickyCache.onQueued(copy, this);
+                fanOut(copy, delivery);
+            }
+        }
+
+        @Override
+        void enqueue(@NonNull final Message msg) {
+            fanOut(msg, null);
+        }
+
+        /**
+         * Takes ownership of the message and schedules a copy of it for every listener, so that
+         * no listener shares its message with another thread.
+         */
+        private void fanOut(@NonNull final Message msg, @Nullable final ParallelDelivery delivery) {
+            try {
+                if (mManager.isClosed()) {
+                    return;
+                }
+                final LocalMessageCallback recipient = ListenerRegistry.unwrap(msg, this);
+                final List<LocalMessageCallback> listeners = new ArrayList<>();
+                if (recipient != null) {
+                    listeners.add(recipient);
+                } else {
+                    mRegistry.collect(msg.what, listeners);
+                }
+                if (delivery != null) {
+                    delivery.onScheduled(listeners.size());
+                }
+                final MetricsSink sink = mManager.getMetricsSink();
+                final Dispatch dispatch;
+                if (sink == null || listeners.isEmpty()) {
+                    ListenerRegistry.reportDispatched(sink, msg.what, 0, listeners.size());
+                    dispatch = null;
+                } else {
+                    dispatch = new Dispatch(msg.what, SystemClock.uptimeMillis(), listeners.size());
+                }
+                for (final LocalMessageCallback listener : listeners) {
+                    final Message copy = Message.obtain(msg);
+                    PrimitivePayload.copy(copy);
+                    schedule(listener, copy, delivery, dispatch);
+                }
+            } finally {
+                PrimitivePayload.release(msg);
+                msg.recycle();
+            }
+        }
+
+        private void schedule(@NonNull final LocalMessageCallback listener, @NonNull final Message msg,
+                              @Nullable final ParallelDelivery delivery, @Nullable final Dispatch dispatch) {
+            final Task task = new Task(listener, msg, delivery, dispatch);
+            // weak entries are keyed by their listener, so that all its subscriptions share one mailbox
+            final LocalMessageCallback key = ListenerArrays.unwrap(listener);
+            if (key == null) {
+                task.finish();
+                return;
+            }
+            final Mailbox mailbox;
+            synchronized (mMailboxes) {
+                final Mailbox existing = mMailboxes.get(key);
+                if (existing != null) {
+                    existing.mTasks.add(task);
+                    return;
+                }
+                mailbox = new Mailbox(key);
+                mailbox.mTasks.add(task);
+                mMailboxes.put(key, mailbox);
+            }
+            submit(mailbox);
+        }
+
+        private void submit(@NonNull final Mailbox mailbox) {
+            try {
+                mExecutor.execute(mailbox);
+            } catch (final RejectedExecutionException e) {
+                // nobody would run the mailbox again, release its messages so that awaiting senders don't hang
+                final Task[] tasks;
+                synchronized (mMailboxes) {
+                    mMailboxes.remove(mailbox.mKey);
+                    tasks = mailbox.mTasks.toArray(new Task[mailbox.mTasks.size()]);
+                    mailbox.mTasks.clear();
+                }
+                for (final Task task : tasks) {
+                    task.finish();
+                }
+                throw e;
+            }
+        }
+
+        private static final class Task {
+
+            @NonNull
+            final LocalMessageCallback mListener;
+
+            @NonNull
+            final Message mMessage;
+
+            @Nullable
+            final ParallelDelivery mDelivery;
+
+            @Nullable
+            final Dispatch mDispatch;
+
+            Task(@NonNull final LocalMessageCallback listener, @NonNull final Message msg,
+                 @Nullable final ParallelDelivery delivery, @Nullable final Dispatch dispatch) {
+                mListener = listener;
+                mMessage = msg;
+                mDelivery = delivery;
+                mDispatch = dispatch;
+            }
+
+            void finish() {
+                PrimitivePayload.release(mMessage);
+                mMessage.recycle();
+                if (mDelivery != null) {
+                    mDelivery.onHandled();
+                }
+            }
+        }
+
+        /**
+         * Measured message shared by its listener tasks. The dispatch is reported when the first
+         * listener starts, so that the latency covers the wait for the executor.
+         */
+        private static final class Dispatch {
+
+            final int mId;
+
+            final long mSentAt;
+
+            final int mFanOut;
+
+            // guarded by this
+            private boolean mReported;
+
+            Dispatch(final int id, final long sentAt, final int fanOut) {
+                mId = id;
+                mSentAt = sentAt;
+                mFanOut = fanOut;
+            }
+
+            void report(@Nullable final MetricsSink sink) {
+                synchronized (this) {
+                    if (mReported) {
+                        return;
+                    }
+                    mReported = true;
+                }
+                ListenerRegistry.reportDispatched(sink, mId, ListenerRegistry.queueLatency(sink, mSentAt), mFanOut);
+            }
+        }
+
+        private final class Mailbox implements Runnable {
+
+            @NonNull
+            private final LocalMessageCallback mKey;
+
+            /**
+             * Guarded by {@link #mMailboxes}.
+             */
+            @NonNull
+            final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+
+            /**
+             * Tasks of one mailbox never run concurrently, they can share the wrapper.
+             */
+            @NonNull
+            private final LocalMessage mMessage = new LocalMessage(null);
+
+            Mailbox(@NonNull final LocalMessageCallback key) {
+                mKey = key;
+            }
+
+            @Override
+            public void run() {
+                final Task task;
+                synchronized (mMailboxes) {
+                    task = mTasks.poll();
+                }
+                try {
+                    //noinspection ConstantConditions - a mailbox is only submitted with a task
+                    if (!mManager.isClosed()) {
+                        final MetricsSink sink = mManager.getMetricsSink();
+                        if (task.mDispatch != null) {
+                            task.mDispatch.report(sink);
+                        }
+                        mMessage.setMessage(task.mMessage);
+                        ListenerRegistry.invoke(task.mListener, mMessage, sink);
+                    }
+                } finally {
+                    mMessage.setMessage(null);
+                    task.finish();
+                    final boolean more;
+                    synchronized (mMailboxes) {
+                        more = !mTasks.isEmpty();
+                        if (!more) {
+                            mMailboxes.remove(mKey);
+                        }
+                    }
+                    if (more) {
+                        submit(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link MetricsSink} keeping primitive counters and fixed-bucket histograms.
+ * <p>
+ * All storage is preallocated, recording doesn't allocate. Message IDs and listener classes
+ * beyond the configured capacity are counted as untracked. Read the values with {@link #getSnapshot()}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class DeliveryMetrics implements MetricsSink {
+
+    /**
+     * Upper bounds of queue latency buckets in milliseconds, the last bucket is unbounded.
+     */
+    @NonNull
+    static final long[] LATENCY_BOUNDS_MILLIS = {0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512};
+
+    /**
+     * Upper bounds of listener duration buckets in microseconds, the last bucket is unbounded.
+     */
+    @NonNull
+    static final long[] DURATION_BOUNDS_MICROS = {50, 100, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    // per-ID counters, open addressing by ID, guarded by this
+    @NonNull
+    private final int[] mIds;
+    @NonNull
+    private final boolean[] mIdUsed;
+    @NonNull
+    private final long[] mMessageCounts;
+    @NonNull
+    private final long[] mFanOutTotals;
+
+    // per-listener class histograms, guarded by this
+    @NonNull
+    private final ClassIndex mListenerClasses;
+    @NonNull
+    private final long[][] mDurationHistograms;
+
+    @NonNull
+    private final long[] mLatencyHistogram = new long[LATENCY_BOUNDS_MILLIS.length + 1];
+
+    private final int mMaxIds;
+
+    private int mUsedIds;
+
+    private long mUntrackedMessages;
+
+    private long mUntrackedListenerCalls;
+
+    public DeliveryMetrics() {
+        this(256, 64);
+    }
+
+    /**
+     * @param maxIds - number of distinct message IDs tracked
+     * @param maxListenerClasses - number of distinct listener classes tracked
+     */
+    public DeliveryMetrics(final int maxIds, final int maxListenerClasses) {
+        mMaxIds = maxIds;
+        final int idCapacity = capacityFor(maxIds);
+        mIds = new int[idCapacity];
+        mIdUsed = new boolean[idCapacity];
+        mMessageCounts = new long[idCapacity];
+        mFanOutTotals = new long[idCapacity];
+
+        mListenerClasses = new ClassIndex(maxListenerClasses);
+        mDurationHistograms = new long[mListenerClasses.capacity()][DURATION_BOUNDS_MICROS.length + 1];
+    }
+
+    @Override
+    public synchronized void onMessageDispatched(final int id, final long queueLatencyMillis, final int fanOut) {
+        mLatencyHistogram[bucket(LATENCY_BOUNDS_MILLIS, queueLatencyMillis)]++;
+
+        final int index = indexOfId(id);
+        if (index < 0) {
+            mUntrackedMessages++;
+        } else {
+            mMessageCounts[index]++;
+            mFanOutTotals[index] += fanOut;
+        }
+    }
+
+    @Override
+    public synchronized void onListenerHandled(final int id, @NonNull final LocalMessageCallback listener, final long durationNanos) {
+        final int index = mListenerClasses.indexOf(listener.getClass());
+        if (index < 0) {
+            mUntrackedListenerCalls++;
+        } else {
+            mDurationHistograms[index][bucket(DURATION_BOUNDS_MICROS, durationNanos / 1000)]++;
+        }
+    }
+
+    /**
+     * Copies the current values.
+     */
+    @NonNull
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Resets all counters and histograms.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mIdUsed, false);
+        Arrays.fill(mMessageCounts, 0);
+        Arrays.fill(mFanOutTotals, 0);
+        mListenerClasses.clear();
+        for (final long[] histogram : mDurationHistograms) {
+            Arrays.fill(histogram, 0);
+        }
+        Arrays.fill(mLatencyHistogram, 0);
+        mUsedIds = 0;
+        mUntrackedMessages = 0;
+        mUntrackedListenerCalls = 0;
+    }
+
+    private int indexOfId(final int id) {
+        final int mask = mIds.length - 1;
+        final int h = id * 0x9E3779B9;
+        int index = (h ^ (h >>> 16)) & mask;
+        // the table is at least twice as large as the maximum, a free slot is always found
+        for (int i = 0; i <= mask; i++) {
+            if (!mIdUsed[index]) {
+                if (mUsedIds == mMaxIds) {
+                    return -1;
+                }
+                mUsedIds++;
+                mIdUsed[index] = true;
+                mIds[index] = id;
+                return index;
+            }
+            if (mIds[index] == id) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int bucket(@NonNull final long[] bounds, final long value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    private static int capacityFor(final int maxEntries) {
+        int capacity = 2;
+        while (capacity < maxEntries * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Immutable copy of {@link DeliveryMetrics} values.
+     */
+    public static final class Snapshot {
+
+        @NonNull
+        private final int[] mIds;
+        @NonNull
+        private final long[] mMessageCounts;
+        @NonNull
+        private final long[] mFanOutTotals;
+        @NonNull
+        private final Class<?>[] mListenerClasses;
+        @NonNull
+        private final long[][] mDurationHistograms;
+        @NonNull
+        private final long[] mLatencyHistogram;
+        private final long mUntrackedMessages;
+        private final long mUntrackedListenerCalls;
+
+        Snapshot(@NonNull final DeliveryMetrics metrics) {
+            int ids = 0;
+            for (final boolean used : metrics.mIdUsed) {
+                if (used) {
+                    ids++;
+                }
+            }
+            mIds = new int[ids];
+            mMessageCounts = new long[ids];
+            mFanOutTotals = new long[ids];
+            int i = 0;
+            for (int index = 0; index < metrics.mIds.length; index++) {
+                if (metrics.mIdUsed[index]) {
+                    mIds[i] = metrics.mIds[index];
+                    mMessageCounts[i] = metrics.mMessageCounts[index];
+                    mFanOutTotals[i] = metrics.mFanOutTotals[index];
+                    i++;
+                }
+            }
+
+            final List<Class<?>> classes = new ArrayList<>();
+            final List<long[]> histograms = new ArrayList<>();
+            for (int index = 0; index < metrics.mListenerClasses.capacity(); index++) {
+                final Class<?> listenerClass = metrics.mListenerClasses.get(index);
+                if (listenerClass != null) {
+                    classes.add(listenerClass);
+                    histograms.add(metrics.mDurationHistograms[index].clone());
+                }
+            }
+            mListenerClasses = classes.toArray(new Class<?>[classes.size()]);
+            mDurationHistograms = histograms.toArray(new long[histograms.size()][]);
+
+            mLatencyHistogram = metrics.mLatencyHistogram.clone();
+            mUntrackedMessages = metrics.mUntrackedMessages;
+            mUntrackedListenerCalls = metrics.mUntrackedListenerCalls;
+        }
+
+        /**
+         * Tracked message IDs.
+         */
+        @NonNull
+        public int[] getIds() {
+            return mIds.clone();
+        }
+
+        /**
+         * Number of delivered messages with the ID.
+         */
+        public long getMessageCount(final int id) {
+            final int index = indexOf(id);
+            return index < 0 ? 0 : mMessageCounts[index];
+        }
+
+        /**
+         * Average number of listeners a message with the ID was delivered to.
+         */
+        public double getAverageFanOut(final int id) {
+            final int index = indexOf(id);
+            return index < 0 || mMessageCounts[index] == 0 ? 0 : (double) mFanOutTotals[index] / mMessageCounts[index];
+        }
+
+        /**
+         * Histogram of queue latency, see {@link #getLatencyBoundsMillis()} for the bucket bounds.
+         */
+        @NonNull
+        public long[] getLatencyHistogram() {
+            return mLatencyHistogram.clone();
+        }
+
+        /**
+         * Inclusive upper bounds of latency buckets, the last bucket holds everything above.
+         */
+        @NonNull
+        public long[] getLatencyBoundsMillis() {
+            return LATENCY_BOUNDS_MILLIS.clone();
+        }
+
+        /**
+         * Tracked listener classes.
+         */
+        @NonNull
+        public Class<?>[] getListenerClasses() {
+            return mListenerClasses.clone();
+        }
+
+        /**
+         * Histogram of handleMessage() duration of the listener class, see {@link #getDurationBoundsMicros()}
+         * for the bucket bounds.
+         */
+        @Nullable
+        public long[] getDurationHistogram(@NonNull final Class<?> listenerClass) {
+            for (int i = 0; i < mListenerClasses.length; i++) {
+                if (mListenerClasses[i] == listenerClass) {
+                    return mDurationHistograms[i].clone();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Inclusive upper bounds of duration buckets, the last bucket holds everything above.
+         */
+        @NonNull
+        public long[] getDurationBoundsMicros() {
+            return DURATION_BOUNDS_MICROS.clone();
+        }
+
+        /**
+         * Messages whose ID didn't fit into the tracked IDs.
+         */
+        public long getUntrackedMessages() {
+            return mUntrackedMessages;
+        }
+
+        /**
+         * Listener calls whose class didn't fit into the tracked classes.
+         */
+        public long getUntrackedListenerCalls() {
+            return mUntrackedListenerCalls;
+        }
+
+        private int indexOf(final int id) {
+            for (int i = 0; i < mIds.length; i++) {
+                if (mIds[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Thread on which a listener receives its messages.
+ * Listeners registered without a target are called on the main thread.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class DeliveryTarget {
+
+    @NonNull
+    private static final DeliveryTarget MAIN_THREAD = new DeliveryTarget(Looper.getMainLooper());
+
+    @NonNull
+    private final Object mTarget;
+
+    private final boolean mParallel;
+
+    private DeliveryTarget(@NonNull final Object target) {
+        this(target, false);
+    }
+
+    private DeliveryTarget(@NonNull final Object target, final boolean parallel) {
+        mTarget = target;
+        mParallel = parallel;
+    }
+
+    /**
+     * Deliver messages on the main UI thread. This is the default.
+     */
+    @NonNull
+    public static DeliveryTarget mainThread() {
+        return MAIN_THREAD;
+    }
+
+    /**
+     * Deliver messages on the thread of the given Looper.
+     * @param looper - looper of the receiving thread
+     */
+    @NonNull
+    public static DeliveryTarget looper(@NonNull final Looper looper) {
+        if (looper == Looper.getMainLooper()) {
+            return MAIN_THREAD;
+        }
+        return new DeliveryTarget(looper);
+    }
+
+    /**
+     * Deliver messages through the given Executor. If the executor runs tasks concurrently,
+     * listeners registered with it have to be thread-safe.
+     * @param executor - executor running the listeners
+     */
+    @NonNull
+    public static DeliveryTarget executor(@NonNull final Executor executor) {
+        return new DeliveryTarget(executor);
+    }
+
+    /**
+     * Deliver every message to all listeners registered with this target concurrently, each
+     * listener in its own task on the executor. A listener still receives messages one at a time
+     * and in the order they were sent, each as its own copy of the message.
+     * Use {@link LocalMessageManager#sendParallel(int, Object)} to wait until all of them are done.
+     * @param executor - thread pool running the listeners
+     */
+    @NonNull
+    public static DeliveryTarget parallel(@NonNull final Executor executor) {
+        return new DeliveryTarget(executor, true);
+    }
+
+    /**
+     * Deliver messages through a custom dispatcher, such as {@link Dispatchers#threadPerMessage}.
+     * If the dispatcher isn't serial, listeners registered with it have to be thread-safe.
+     * @param dispatcher - dispatcher running the listeners
+     */
+    @NonNull
+    public static DeliveryTarget dispatcher(@NonNull final Dispatcher dispatcher) {
+        return new DeliveryTarget(dispatcher);
+    }
+
+    boolean isParallel() {
+        return mParallel;
+    }
+
+    boolean isMainThread() {
+        return this == MAIN_THREAD;
+    }
+
+    @NonNull
+    Object getTarget() {
+        return mTarget;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof DeliveryTarget && ((DeliveryTarget) o).mTarget == mTarget && ((DeliveryTarget) o).mParallel == mParallel;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(mTarget);
+    }
+}
@@ -0,0 +1,63 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * How messages sent by {@link LocalMessageManager#send(int)} travel to the main thread.
+ * @see LocalMessageManager#setDispatchEngine(DispatchEngine)
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class DispatchEngine {
+
+    @NonNull
+    private static final DispatchEngine HANDLER_QUEUE = new DispatchEngine(0, OverflowPolicy.FALLBACK_TO_HANDLER);
+
+    private final int mCapacity;
+
+    @NonNull
+    private final OverflowPolicy mOverflowPolicy;
+
+    private DispatchEngine(final int capacity, @NonNull final OverflowPolicy overflowPolicy) {
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Every message is an android.os.Message in the main Looper's queue. This is the default.
+     */
+    @NonNull
+    public static DispatchEngine handlerQueue() {
+        return HANDLER_QUEUE;
+    }
+
+    /**
+     * Messages are written into a preallocated ring buffer which the main thread drains in batches,
+     * with at most one Looper message per batch. Suits bursts of small messages from many threads.
+     * Sticky, conflated and synchronous messages still go through the Handler queue.
+     * @param capacity - number of slots, rounded up to a power of two
+     * @param overflowPolicy - applied when all slots are taken
+     */
+    @NonNull
+    public static DispatchEngine ringBuffer(final int capacity, @NonNull final OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (overflowPolicy == OverflowPolicy.BLOCK || overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException(overflowPolicy + " is not supported by the ring buffer");
+        }
+        return new DispatchEngine(capacity, overflowPolicy);
+    }
+
+    boolean isRingBuffer() {
+        return mCapacity > 0;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    @NonNull
+    OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+}
@@ -0,0 +1,21 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Runs delivery of messages to the listeners of a {@link DeliveryTarget}. Implementations don't
+ * depend on Android, see {@link Dispatchers} for the provided ones.
+ */
+public interface Dispatcher {
+
+    /**
+     * Schedules the task, it must not run on the calling thread before this method returns.
+     * @param task - delivers one message
+     */
+    void dispatch(@NonNull Runnable task);
+
+    /**
+     * @return true if tasks never run concurrently, delivery then reuses a single message wrapper
+     */
+    boolean isSerial();
+}
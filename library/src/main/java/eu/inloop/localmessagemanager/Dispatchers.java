@@ -0,0 +1,111 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory methods of the provided {@link Dispatcher} implementations.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Dispatchers {
+
+    private Dispatchers() {
+    }
+
+    /**
+     * Posts every message to the thread of the Looper. {@link DeliveryTarget#looper(Looper)} does
+     * the same without allocating a task per message.
+     * @param looper - looper of the receiving thread
+     */
+    @NonNull
+    public static Dispatcher handler(@NonNull final Looper looper) {
+        return new HandlerDispatcher(new Handler(looper));
+    }
+
+    /**
+     * Submits every message to the executor, which may run them concurrently.
+     * @param executor - for example a thread pool
+     */
+    @NonNull
+    public static Dispatcher executor(@NonNull final Executor executor) {
+        return new ExecutorDispatcher(executor);
+    }
+
+    /**
+     * Starts a new thread for every message. Meant for thread factories creating cheap threads,
+     * such as virtual threads on JVMs supporting them.
+     * @param threadFactory - creates the thread running one message
+     */
+    @NonNull
+    public static Dispatcher threadPerMessage(@NonNull final ThreadFactory threadFactory) {
+        return new ThreadPerMessageDispatcher(threadFactory);
+    }
+
+    private static final class HandlerDispatcher implements Dispatcher {
+
+        @NonNull
+        private final Handler mHandler;
+
+        HandlerDispatcher(@NonNull final Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void dispatch(@NonNull final Runnable task) {
+            mHandler.post(task);
+        }
+
+        @Override
+        public boolean isSerial() {
+            return true;
+        }
+    }
+
+    private static final class ExecutorDispatcher implements Dispatcher {
+
+        @NonNull
+        private final Executor mExecutor;
+
+        ExecutorDispatcher(@NonNull final Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public void dispatch(@NonNull final Runnable task) {
+            mExecutor.execute(task);
+        }
+
+        @Override
+        public boolean isSerial() {
+            return false;
+        }
+    }
+
+    private static final class ThreadPerMessageDispatcher implements Dispatcher {
+
+        @NonNull
+        private final ThreadFactory mThreadFactory;
+
+        ThreadPerMessageDispatcher(@NonNull final ThreadFactory threadFactory) {
+            mThreadFactory = threadFactory;
+        }
+
+        @Override
+        public void dispatch(@NonNull final Runnable task) {
+            final Thread thread = mThreadFactory.newThread(task);
+            if (thread == null) {
+                throw new IllegalStateException("Thread factory rejected the message");
+            }
+            thread.start();
+        }
+
+        @Override
+        public boolean isSerial() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Inclusive range of message IDs a listener can subscribe to,
+ * such as the block of IDs owned by a feature module.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class IdRange {
+
+    private final int mFrom;
+
+    private final int mTo;
+
+    private IdRange(final int from, final int to) {
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * @param from - first ID of the range
+     * @param to - last ID of the range, inclusive
+     */
+    @NonNull
+    public static IdRange of(final int from, final int to) {
+        if (from > to) {
+            throw new IllegalArgumentException("Invalid range " + from + ".." + to);
+        }
+        return new IdRange(from, to);
+    }
+
+    public int getFrom() {
+        return mFrom;
+    }
+
+    public int getTo() {
+        return mTo;
+    }
+
+    public boolean contains(final int id) {
+        return id >= mFrom && id <= mTo;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof IdRange)) {
+            return false;
+        }
+        final IdRange other = (IdRange) o;
+        return other.mFrom == mFrom && other.mTo == mTo;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mFrom + mTo;
+    }
+
+    @Override
+    public String toString() {
+        return mFrom + ".." + mTo;
+    }
+}
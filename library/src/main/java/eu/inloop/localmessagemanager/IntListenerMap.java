@@ -0,0 +1,176 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing hash map from a primitive int message ID to an immutable listener array.
+ * <p>
+ * Lookups ({@link #get(int)}) are lock-free and may run concurrently with a single writer.
+ * Writers must be serialized externally. Keys are stored in a plain int array and published
+ * through the volatile write of the value slot, so readers never observe a value without its key.
+ * Removed entries leave a tombstone behind, tombstones are dropped on the next rehash.
+ */
+final class IntListenerMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    @NonNull
+    private static final LocalMessageCallback[] TOMBSTONE = new LocalMessageCallback[0];
+
+    private static final class Table {
+        @NonNull
+        final int[] keys;
+        @NonNull
+        final AtomicReferenceArray<LocalMessageCallback[]> values;
+        final int mask;
+
+        Table(final int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    @NonNull
+    private volatile Table mTable = new Table(MIN_CAPACITY);
+
+    // live entries, guarded by the external write lock
+    private int mSize;
+
+    // live entries and tombstones, guarded by the external write lock
+    private int mUsed;
+
+    /**
+     * Returns the listeners registered for the ID or null. Safe to call from any thread.
+     */
+    @Nullable
+    LocalMessageCallback[] get(final int key) {
+        final Table table = mTable;
+        int index = hash(key) & table.mask;
+        while (true) {
+            final LocalMessageCallback[] value = table.values.get(index);
+            if (value == null) {
+                return null;
+            }
+            if (table.keys[index] == key) {
+                return value == TOMBSTONE ? null : value;
+            }
+            index = (index + 1) & table.mask;
+        }
+    }
+
+    /**
+     * Associates listeners with the ID. Callers must hold the registry write lock.
+     */
+    void put(final int key, @NonNull final LocalMessageCallback[] listeners) {
+        Table table = mTable;
+        int index = hash(key) & table.mask;
+        while (true) {
+            final LocalMessageCallback[] value = table.values.get(index);
+            if (value == null) {
+                break;
+            }
+            if (table.keys[index] == key) {
+                if (value == TOMBSTONE) {
+                    mSize++;
+                }
+                table.values.set(index, listeners);
+                return;
+            }
+            index = (index + 1) & table.mask;
+        }
+
+        if ((mUsed + 1) * 2 > table.keys.length) {
+            table = rehash(mSize + 1);
+            index = hash(key) & table.mask;
+            while (table.values.get(index) != null) {
+                index = (index + 1) & table.mask;
+            }
+        }
+        table.keys[index] = key;
+        table.values.set(index, listeners);
+        mSize++;
+        mUsed++;
+    }
+
+    /**
+     * Removes listeners of the ID. Callers must hold the registry write lock.
+     */
+    void remove(final int key) {
+        final Table table = mTable;
+        int index = hash(key) & table.mask;
+        while (true) {
+            final LocalMessageCallback[] value = table.values.get(index);
+            if (value == null) {
+                return;
+            }
+            if (table.keys[index] == key) {
+                if (value != TOMBSTONE) {
+                    table.values.set(index, TOMBSTONE);
+                    mSize--;
+                }
+                return;
+            }
+            index = (index + 1) & table.mask;
+        }
+    }
+
+    /**
+     * Number of IDs with listeners. Callers must hold the registry write lock.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * IDs with listeners. Callers must hold the registry write lock.
+     */
+    @NonNull
+    int[] keys() {
+        final Table table = mTable;
+        final int[] keys = new int[mSize];
+        int count = 0;
+        for (int i = 0; i < table.keys.length; i++) {
+            final LocalMessageCallback[] value = table.values.get(i);
+            if (value != null && value != TOMBSTONE) {
+                keys[count++] = table.keys[i];
+            }
+        }
+        return keys;
+    }
+
+    @NonNull
+    private Table rehash(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        final Table oldTable = mTable;
+        final Table newTable = new Table(capacity);
+        for (int i = 0; i < oldTable.keys.length; i++) {
+            final LocalMessageCallback[] value = oldTable.values.get(i);
+            if (value == null || value == TOMBSTONE) {
+                continue;
+            }
+            int index = hash(oldTable.keys[i]) & newTable.mask;
+            while (newTable.values.get(index) != null) {
+                index = (index + 1) & newTable.mask;
+            }
+            newTable.keys[index] = oldTable.keys[i];
+            newTable.values.lazySet(index, value);
+        }
+        mUsed = mSize;
+        // readers holding the old table keep seeing a consistent, if stale, view
+        mTable = newTable;
+        return newTable;
+    }
+
+    private static int hash(final int key) {
+        // resource IDs share their high bits, spread them over the low bits used for indexing
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
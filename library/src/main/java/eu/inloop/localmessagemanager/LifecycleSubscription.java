@@ -0,0 +1,276 @@
+package eu.inloop.localmessagemanager;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Message;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Main thread listener for a set of IDs which keeps its messages in a bounded buffer while paused
+ * and delivers them in a single batch when resumed, instead of missing them.
+ * Created by {@link LocalMessageManager#addLifecycleListener(int[], LocalMessageCallback, BufferPolicy, int)}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+@MainThread
+public final class LifecycleSubscription {
+
+    @NonNull
+    private final LocalMessageManager mManager;
+
+    @NonNull
+    private final int[] mIds;
+
+    @NonNull
+    private final LocalMessageCallback mListener;
+
+    @NonNull
+    private final BufferPolicy mPolicy;
+
+    /**
+     * Circular buffer of message copies, oldest at {@link #mHead}.
+     */
+    @NonNull
+    private final Message[] mBuffer;
+
+    private int mHead;
+
+    private int mSize;
+
+    private int mDroppedCount;
+
+    private boolean mPaused;
+
+    @Nullable
+    private Application mApplication;
+
+    @Nullable
+    private ActivityCallbacks mActivityCallbacks;
+
+    @NonNull
+    private final LocalMessageCallback mCallback = new LocalMessageCallback() {
+        @Override
+        public void handleMessage(@NonNull final LocalMessage localMessage) {
+            if (mPaused) {
+                //noinspection ConstantConditions - set during delivery
+                buffer(localMessage.getMessage());
+            } else {
+                mListener.handleMessage(localMessage);
+            }
+        }
+    };
+
+    LifecycleSubscription(@NonNull final LocalMessageManager manager, @NonNull final int[] ids, @NonNull final LocalMessageCallback listener,
+                          @NonNull final BufferPolicy policy, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mManager = manager;
+        mIds = ids.clone();
+        mListener = listener;
+        mPolicy = policy;
+        mBuffer = new Message[capacity];
+    }
+
+    void subscribe() {
+        mManager.addListener(mIds, mCallback);
+    }
+
+    /**
+     * Pauses on onStop() and resumes on onStart() of the activity, removes itself on onDestroy().
+     * Call it from onCreate(), the subscription is paused until the activity is started.
+     * @param activity - lifecycle owner
+     * @return this instance
+     */
+    @NonNull
+    public LifecycleSubscription bindTo(@NonNull final Activity activity) {
+        if (mActivityCallbacks != null) {
+            throw new IllegalStateException("Subscription is already bound to an activity");
+        }
+        mApplication = activity.getApplication();
+        mActivityCallbacks = new ActivityCallbacks(activity);
+        mApplication.registerActivityLifecycleCallbacks(mActivityCallbacks);
+        pause();
+        return this;
+    }
+
+    /**
+     * Starts buffering messages instead of delivering them.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Delivers the buffered messages as one batch - through {@link LocalMessageBatchCallback#handleBatch(List)}
+     * if the listener implements it, or one by one in the same Looper turn otherwise - and continues
+     * delivering new messages right away.
+     */
+    public void resume() {
+        mPaused = false;
+        if (mSize == 0) {
+            return;
+        }
+
+        final Message[] messages = new Message[mSize];
+        for (int i = 0; i < messages.length; i++) {
+            final int index = (mHead + i) % mBuffer.length;
+            messages[i] = mBuffer[index];
+            mBuffer[index] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+
+        try {
+            if (mListener instanceof LocalMessageBatchCallback) {
+                final List<LocalMessage> localMessages = new ArrayList<>(messages.length);
+                for (final Message msg : messages) {
+                    localMessages.add(new LocalMessage(msg));
+                }
+                try {
+                    ((LocalMessageBatchCallback) mListener).handleBatch(Collections.unmodifiableList(localMessages));
+                } finally {
+                    for (final LocalMessage localMessage : localMessages) {
+                        localMessage.setMessage(null);
+                    }
+                }
+            } else {
+                final LocalMessage localMessage = new LocalMessage(null);
+                for (final Message msg : messages) {
+                    localMessage.setMessage(msg);
+                    mListener.handleMessage(localMessage);
+                }
+                localMessage.setMessage(null);
+            }
+        } finally {
+            for (final Message msg : messages) {
+                PrimitivePayload.release(msg);
+                msg.recycle();
+            }
+        }
+    }
+
+    /**
+     * Removes the listener and discards the buffered messages.
+     */
+    public void remove() {
+        mManager.removeListener(mIds, mCallback);
+        if (mApplication != null) {
+            mApplication.unregisterActivityLifecycleCallbacks(mActivityCallbacks);
+            mApplication = null;
+            mActivityCallbacks = null;
+        }
+        while (mSize > 0) {
+            final Message msg = removeOldest();
+            PrimitivePayload.release(msg);
+            msg.recycle();
+        }
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return number of messages dropped because the buffer was full
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void buffer(@NonNull final Message msg) {
+        if (mPolicy == BufferPolicy.CONFLATE) {
+            for (int i = 0; i < mSize; i++) {
+                final int index = (mHead + i) % mBuffer.length;
+                if (mBuffer[index].what == msg.what) {
+                    // the latest value goes to the end, so that the batch keeps the order of sending
+                    final Message replaced = mBuffer[index];
+                    for (int j = i + 1; j < mSize; j++) {
+                        mBuffer[(mHead + j - 1) % mBuffer.length] = mBuffer[(mHead + j) % mBuffer.length];
+                    }
+                    mBuffer[(mHead + mSize - 1) % mBuffer.length] = null;
+                    mSize--;
+                    PrimitivePayload.release(replaced);
+                    replaced.recycle();
+                    break;
+                }
+            }
+        }
+        if (mSize == mBuffer.length) {
+            mDroppedCount++;
+            if (mPolicy == BufferPolicy.DROP_NEWEST) {
+                return;
+            }
+            final Message oldest = removeOldest();
+            PrimitivePayload.release(oldest);
+            oldest.recycle();
+        }
+        // the delivered message is recycled after handleMessage(), keep a copy with its own carrier
+        final Message copy = Message.obtain(msg);
+        PrimitivePayload.copy(copy);
+        mBuffer[(mHead + mSize) % mBuffer.length] = copy;
+        mSize++;
+    }
+
+    @NonNull
+    private Message removeOldest() {
+        final Message msg = mBuffer[mHead];
+        mBuffer[mHead] = null;
+        mHead = (mHead + 1) % mBuffer.length;
+        mSize--;
+        return msg;
+    }
+
+    private final class ActivityCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        @NonNull
+        private final Activity mActivity;
+
+        ActivityCallbacks(@NonNull final Activity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        public void onActivityStarted(final Activity activity) {
+            if (activity == mActivity) {
+                resume();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(final Activity activity) {
+            if (activity == mActivity) {
+                pause();
+            }
+        }
+
+        @Override
+        public void onActivityDestroyed(final Activity activity) {
+            if (activity == mActivity) {
+                remove();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(final Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Helpers for the immutable listener arrays used by the copy-on-write registry.
+ * Arrays passed in are never modified, a new array is returned instead.
+ */
+final class ListenerArrays {
+
+    @NonNull
+    static final LocalMessageCallback[] EMPTY = new LocalMessageCallback[0];
+
+    private ListenerArrays() {
+    }
+
+    @NonNull
+    static LocalMessageCallback[] nonNull(@Nullable final LocalMessageCallback[] listeners) {
+        return listeners == null ? EMPTY : listeners;
+    }
+
+    static int indexOf(@NonNull final LocalMessageCallback[] listeners, @NonNull final LocalMessageCallback listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (matches(listeners[i], listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the listener behind a weak registry entry, or the entry itself
+     */
+    @NonNull
+    static LocalMessageCallback unwrap(@NonNull final LocalMessageCallback entry) {
+        if (entry instanceof WeakListener) {
+            final LocalMessageCallback listener = ((WeakListener) entry).get();
+            if (listener != null) {
+                return listener;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Weakly registered listeners are matched by their referent.
+     */
+    static boolean matches(@NonNull final LocalMessageCallback entry, @NonNull final LocalMessageCallback listener) {
+        return entry.equals(listener) || (entry instanceof WeakListener && ((WeakListener) entry).get() == listener);
+    }
+
+    @NonNull
+    static LocalMessageCallback[] append(@NonNull final LocalMessageCallback[] listeners, @NonNull final LocalMessageCallback listener) {
+        final LocalMessageCallback[] result = new LocalMessageCallback[listeners.length + 1];
+        System.arraycopy(listeners, 0, result, 0, listeners.length);
+        result[listeners.length] = listener;
+        return result;
+    }
+
+    @NonNull
+    static LocalMessageCallback[] remove(@NonNull final LocalMessageCallback[] listeners, @NonNull final LocalMessageCallback listener) {
+        final int index = indexOf(listeners, listener);
+        if (index < 0) {
+            return listeners;
+        }
+        if (listeners.length == 1) {
+            return EMPTY;
+        }
+        final LocalMessageCallback[] result = new LocalMessageCallback[listeners.length - 1];
+        System.arraycopy(listeners, 0, result, 0, index);
+        System.arraycopy(listeners, index + 1, result, index, listeners.length - index - 1);
+        return result;
+    }
+}
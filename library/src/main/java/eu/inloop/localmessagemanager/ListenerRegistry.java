@@ -0,0 +1,371 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Copy-on-write registry of specific and universal listeners.
+ * Writers are serialized on the registry instance, readers never lock.
+ */
+final class ListenerRegistry {
+
+    /**
+     * Specific listeners by message ID. The arrays stored in it are never modified once
+     * published - writers replace the whole array of the ID.
+     */
+    @NonNull
+    private final IntListenerMap mListenersSpecific = new IntListenerMap();
+
+    /**
+     * Copy-on-write snapshot of universal listeners.
+     */
+    @NonNull
+    private volatile LocalMessageCallback[] mListenersUniversal = ListenerArrays.EMPTY;
+
+    /**
+     * Range subscriptions, guarded by this. Published as {@link #mRangeIndex}.
+     */
+    @NonNull
+    private final List<RangeIndex.Subscription> mRangeSubscriptions = new ArrayList<>();
+
+    @NonNull
+    private volatile RangeIndex mRangeIndex = RangeIndex.EMPTY;
+
+    @NonNull
+    private final MaskIndex mMaskIndex = new MaskIndex();
+
+    /**
+     * Weakly registered listeners are enqueued here once collected.
+     */
+    @NonNull
+    private final ReferenceQueue<LocalMessageCallback> mCollectedListeners = new ReferenceQueue<>();
+
+    private volatile long mReclaimedCount;
+
+    /**
+     * Adds the listener for all IDs under a single lock.
+     * @return the IDs the listener wasn't registered for yet
+     */
+    @NonNull
+    synchronized int[] add(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener, final boolean weak) {
+        final int[] added = new int[ids.length];
+        int count = 0;
+        for (final int id : ids) {
+            if (add(id, listener, weak)) {
+                added[count++] = id;
+            }
+        }
+        return count == ids.length ? added : Arrays.copyOf(added, count);
+    }
+
+    /**
+     * @param weak - hold only a weak reference to the listener
+     * @return false if the listener was already registered for the ID
+     */
+    synchronized boolean add(final int id, @NonNull final LocalMessageCallback listener, final boolean weak) {
+        final LocalMessageCallback[] callbacks = mListenersSpecific.get(id);
+        if (callbacks != null && ListenerArrays.indexOf(callbacks, listener) >= 0) {
+            return false;
+        }
+        final LocalMessageCallback entry = weak ? new WeakListener(listener, id, false, mCollectedListeners) : listener;
+        mListenersSpecific.put(id, callbacks == null ? new LocalMessageCallback[]{entry} : ListenerArrays.append(callbacks, entry));
+        return true;
+    }
+
+    /**
+     * @param weak - hold only a weak reference to the listener
+     * @return false if the listener was already registered
+     */
+    synchronized boolean add(@NonNull final LocalMessageCallback listener, final boolean weak) {
+        if (ListenerArrays.indexOf(mListenersUniversal, listener) >= 0) {
+            return false;
+        }
+        final LocalMessageCallback entry = weak ? new WeakListener(listener, 0, true, mCollectedListeners) : listener;
+        mListenersUniversal = ListenerArrays.append(mListenersUniversal, entry);
+        return true;
+    }
+
+    /**
+     * @return false if the listener was already registered for the range
+     */
+    synchronized boolean add(@NonNull final IdRange range, @NonNull final LocalMessageCallback listener) {
+        for (final RangeIndex.Subscription subscription : mRangeSubscriptions) {
+            if (subscription.range.equals(range) && ListenerArrays.matches(subscription.listener, listener)) {
+                return false;
+            }
+        }
+        mRangeSubscriptions.add(new RangeIndex.Subscription(range, listener));
+        mRangeIndex = RangeIndex.build(mRangeSubscriptions);
+        return true;
+    }
+
+    /**
+     * @return false if the listener was already registered for the mask and value
+     */
+    synchronized boolean add(final int mask, final int value, @NonNull final LocalMessageCallback listener) {
+        return mMaskIndex.add(mask, value, listener);
+    }
+
+    /**
+     * Removes the listener from universal, range and mask subscriptions.
+     *
+     * @return false if the listener was not registered
+     */
+    synchronized boolean remove(@NonNull final LocalMessageCallback listener) {
+        final boolean removed = removeRanges(listener) | mMaskIndex.removeAll(listener);
+        return removeUniversal(listener) || removed;
+    }
+
+    private boolean removeRanges(@NonNull final LocalMessageCallback listener) {
+        boolean removed = false;
+        final Iterator<RangeIndex.Subscription> iterator = mRangeSubscriptions.iterator();
+        while (iterator.hasNext()) {
+            if (ListenerArrays.matches(iterator.next().listener, listener)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            mRangeIndex = RangeIndex.build(mRangeSubscriptions);
+        }
+        return removed;
+    }
+
+    private boolean removeUniversal(@NonNull final LocalMessageCallback listener) {
+        if (ListenerArrays.indexOf(mListenersUniversal, listener) >= 0) {
+            mListenersUniversal = ListenerArrays.remove(mListenersUniversal, listener);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the listener was not registered for the ID
+     */
+    synchronized boolean remove(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener) {
+        boolean removed = false;
+        for (final int id : ids) {
+            removed |= remove(id, listener);
+        }
+        return removed;
+    }
+
+    synchronized boolean remove(final int id, @NonNull final LocalMessageCallback listener) {
+        final LocalMessageCallback[] callbacks = mListenersSpecific.get(id);
+        if (callbacks == null || ListenerArrays.indexOf(callbacks, listener) < 0) {
+            return false;
+        }
+        if (callbacks.length == 1) {
+            mListenersSpecific.remove(id);
+        } else {
+            mListenersSpecific.put(id, ListenerArrays.remove(callbacks, listener));
+        }
+        return true;
+    }
+
+    /**
+     * @return false if there were no listeners for the ID
+     */
+    synchronized boolean removeAll(final int id) {
+        if (mListenersSpecific.get(id) == null) {
+            return false;
+        }
+        mListenersSpecific.remove(id);
+        return true;
+    }
+
+    /**
+     * Moves all subscriptions of the listener into another registry, keeping weak registrations weak.
+     * Registries are always locked in the direction of the transfer, from the main thread registry
+     * to a lane registry.
+     *
+     * @return false if the listener had no subscriptions in this registry
+     */
+    synchronized boolean transferTo(@NonNull final LocalMessageCallback listener, @NonNull final ListenerRegistry target) {
+        boolean moved = false;
+        for (final int id : mListenersSpecific.keys()) {
+            final LocalMessageCallback[] callbacks = ListenerArrays.nonNull(mListenersSpecific.get(id));
+            final int index = ListenerArrays.indexOf(callbacks, listener);
+            if (index >= 0) {
+                final boolean weak = callbacks[index] instanceof WeakListener;
+                remove(id, listener);
+                target.add(id, listener, weak);
+                moved = true;
+            }
+        }
+
+        final int universalIndex = ListenerArrays.indexOf(mListenersUniversal, listener);
+        if (universalIndex >= 0) {
+            final boolean weak = mListenersUniversal[universalIndex] instanceof WeakListener;
+            removeUniversal(listener);
+            target.add(listener, weak);
+            moved = true;
+        }
+
+        for (final RangeIndex.Subscription subscription : mRangeSubscriptions) {
+            if (ListenerArrays.matches(subscription.listener, listener)) {
+                target.add(subscription.range, listener);
+            }
+        }
+        moved |= removeRanges(listener);
+
+        for (final int[] subscription : mMaskIndex.getSubscriptions(listener)) {
+            mMaskIndex.remove(subscription[0], subscription[1], listener);
+            target.add(subscription[0], subscription[1], listener);
+            moved = true;
+        }
+        return moved;
+    }
+
+    /**
+     * Removes entries of collected listeners. Cheap when nothing was collected, so it can be
+     * called on every dispatch.
+     */
+    void pruneCollected() {
+        Reference<? extends LocalMessageCallback> reference;
+        while ((reference = mCollectedListeners.poll()) != null) {
+            final WeakListener entry = (WeakListener) reference;
+            synchronized (this) {
+                // the listener might have been removed explicitly before it was collected
+                if (entry.universal ? removeUniversal(entry) : remove(entry.id, entry)) {
+                    mReclaimedCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of weakly registered listeners pruned after they were collected.
+     */
+    long getReclaimedCount() {
+        return mReclaimedCount;
+    }
+
+    @Nullable
+    LocalMessageCallback[] getSpecific(final int id) {
+        return mListenersSpecific.get(id);
+    }
+
+    @NonNull
+    LocalMessageCallback[] getUniversal() {
+        return mListenersUniversal;
+    }
+
+    boolean hasListeners(final int id) {
+        return mListenersUniversal.length > 0 || mListenersSpecific.get(id) != null
+                || mRangeIndex.get(id).length > 0 || mMaskIndex.hasListeners(id);
+    }
+
+    /**
+     * Prepares a carrier message (conflated values, sticky message or replay) for delivery.
+     *
+     * @param lane - destination delivering the message, null for the main thread
+     * @return the only listener the message is addressed to, or null if it goes to all listeners
+     */
+    @Nullable
+    static LocalMessageCallback unwrap(@NonNull final Message msg, @Nullable final DeliveryLane lane) {
+        ConflationQueue.resolve(msg);
+        return StickyCache.resolve(msg, lane);
+    }
+
+    /**
+     * Delivers the message to the recipient returned by {@link #unwrap(Message, DeliveryLane)},
+     * or to all listeners of the message if there is none.
+     *
+     * @param sink - measures every listener call if not null
+     * @return number of listeners the message was delivered to
+     */
+    int deliver(@NonNull final LocalMessage message, @Nullable final LocalMessageCallback recipient, @Nullable final MetricsSink sink) {
+        if (recipient != null) {
+            invoke(recipient, message, sink);
+            return 1;
+        } else {
+            return deliver(message, sink);
+        }
+    }
+
+    /**
+     * Delivers the message to specific listeners of its ID first, then to range and mask
+     * subscriptions matching the ID and universal listeners last.
+     * Snapshots are immutable, listeners may (un)register from their callbacks safely.
+     *
+     * @param sink - measures every listener call if not null
+     * @return number of listeners the message was delivered to
+     */
+    int deliver(@NonNull final LocalMessage message, @Nullable final MetricsSink sink) {
+        pruneCollected();
+
+        final LocalMessageCallback[] specific = ListenerArrays.nonNull(mListenersSpecific.get(message.getId()));
+        for (final LocalMessageCallback callback : specific) {
+            invoke(callback, message, sink);
+        }
+
+        final LocalMessageCallback[] ranges = mRangeIndex.get(message.getId());
+        for (final LocalMessageCallback callback : ranges) {
+            invoke(callback, message, sink);
+        }
+
+        final int masks = mMaskIndex.deliver(message, sink);
+
+        final LocalMessageCallback[] universal = mListenersUniversal;
+        for (final LocalMessageCallback callback : universal) {
+            invoke(callback, message, sink);
+        }
+
+        return specific.length + ranges.length + masks + universal.length;
+    }
+
+    /**
+     * Adds the listeners {@link #deliver(LocalMessage, MetricsSink)} would call for the ID to the list, in the same order.
+     */
+    void collect(final int id, @NonNull final List<LocalMessageCallback> listeners) {
+        pruneCollected();
+        final LocalMessageCallback[] specific = mListenersSpecific.get(id);
+        if (specific != null) {
+            Collections.addAll(listeners, specific);
+        }
+        Collections.addAll(listeners, mRangeIndex.get(id));
+        mMaskIndex.collect(id, listeners);
+        Collections.addAll(listeners, mListenersUniversal);
+    }
+
+    static void invoke(@NonNull final LocalMessageCallback callback, @NonNull final LocalMessage message, @Nullable final MetricsSink sink) {
+        if (sink == null) {
+            callback.handleMessage(message);
+            return;
+        }
+        final long start = System.nanoTime();
+        callback.handleMessage(message);
+        sink.onListenerHandled(message.getId(), ListenerArrays.unwrap(callback), System.nanoTime() - start);
+    }
+
+    /**
+     * Measures the queue latency from the time the message was enqueued for, read before the
+     * listeners run so that their duration isn't counted.
+     * @return 0 if nobody measures or the message was never enqueued
+     */
+    static long queueLatency(@Nullable final MetricsSink sink, final long when) {
+        // messages delivered by sendNow() were never enqueued
+        return sink == null || when == 0 ? 0 : Math.max(0, SystemClock.uptimeMillis() - when);
+    }
+
+    /**
+     * Reports a delivered message.
+     * @param latency - see {@link #queueLatency(MetricsSink, long)}
+     */
+    static void reportDispatched(@Nullable final MetricsSink sink, final int id, final long latency, final int fanOut) {
+        if (sink != null) {
+            sink.onMessageDispatched(id, latency, fanOut);
+        }
+    }
+}
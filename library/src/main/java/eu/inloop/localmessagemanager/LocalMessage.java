@@ -1,7 +1,6 @@
 package eu.inloop.localmessagemanager;
 
 import android.os.Bundle;
-import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -12,12 +11,24 @@ public class LocalMessage {
     @Nullable
     private Message mMessage;
 
+    /**
+     * Thread the message is being delivered on, null outside of delivery.
+     */
+    @Nullable
+    private Thread mDeliveryThread;
+
     LocalMessage(@Nullable final Message message) {
-        this.mMessage = message;
+        setMessage(message);
     }
 
     void setMessage(@Nullable final Message message) {
         mMessage = message;
+        mDeliveryThread = message == null ? null : Thread.currentThread();
+    }
+
+    @Nullable
+    Message getMessage() {
+        return mMessage;
     }
 
     /**
@@ -25,7 +36,7 @@ public class LocalMessage {
      * what this message is about.
      */
     public int getId() {
-        checkIfMainThread();
+        checkIfDeliveryThread();
         return mMessage.what;
     }
 
@@ -35,7 +46,7 @@ public class LocalMessage {
      * few integer values.
      */
     public int getArg1() {
-        checkIfMainThread();
+        checkIfDeliveryThread();
         return mMessage.arg1;
     }
 
@@ -45,17 +56,53 @@ public class LocalMessage {
      * few integer values.
      */
     public int getArg2() {
-        checkIfMainThread();
+        checkIfDeliveryThread();
         return mMessage.arg2;
     }
 
     /**
-     * An arbitrary object to send to the recipient.
+     * Long argument sent by {@link LocalMessageManager#send(int, long)} or
+     * {@link LocalMessageManager#send(int, long, long)}, 0 otherwise.
+     */
+    public long getLong() {
+        checkIfDeliveryThread();
+        return mMessage.obj instanceof PrimitivePayload ? ((PrimitivePayload) mMessage.obj).long1 : 0;
+    }
+
+    /**
+     * Second long argument sent by {@link LocalMessageManager#send(int, long, long)}, 0 otherwise.
+     */
+    public long getLong2() {
+        checkIfDeliveryThread();
+        return mMessage.obj instanceof PrimitivePayload ? ((PrimitivePayload) mMessage.obj).long2 : 0;
+    }
+
+    /**
+     * Double argument sent by {@link LocalMessageManager#send(int, double)}, 0 otherwise.
+     */
+    public double getDouble() {
+        checkIfDeliveryThread();
+        return mMessage.obj instanceof PrimitivePayload ? ((PrimitivePayload) mMessage.obj).double1 : 0;
+    }
+
+    /**
+     * An arbitrary object to send to the recipient. Null for long and double arguments, even if
+     * the sender passed a primitive value which used to be boxed - see {@link #getLong()}.
      */
     @Nullable
     public Object getObject() {
-        checkIfMainThread();
-        return mMessage.obj;
+        checkIfDeliveryThread();
+        return mMessage.obj instanceof PrimitivePayload ? null : mMessage.obj;
+    }
+
+    /**
+     * A pooled buffer sent by {@link LocalMessageManager#send(int, PooledBuffer)}, valid inside
+     * handleMessage() unless retained.
+     */
+    @Nullable
+    public PooledBuffer getPooledBuffer() {
+        checkIfDeliveryThread();
+        return mMessage.obj instanceof PooledBuffer ? (PooledBuffer) mMessage.obj : null;
     }
 
     /**
@@ -64,20 +111,24 @@ public class LocalMessage {
      */
     @NonNull
     public Bundle getData() {
-        checkIfMainThread();
+        checkIfDeliveryThread();
         return mMessage.getData();
     }
 
-    private void checkIfMainThread() {
-        if (null == mMessage) {
-            throw new IllegalStateException("You can't use LocalMessage instance from a non-UI thread. " +
+    /**
+     * The instance is only valid inside handleMessage() and only on the thread the message is
+     * delivered on - the main thread by default, or the thread of the listener's {@link DeliveryTarget}.
+     */
+    private void checkIfDeliveryThread() {
+        if (null == mMessage || mDeliveryThread != Thread.currentThread()) {
+            throw new IllegalStateException("You can't use LocalMessage instance from a thread it is not delivered on. " +
                     "Extract the data from LocalMessage and don't hold a reference to it outside of handleMessage()");
         }
     }
 
     @Override
     public String toString() {
-        checkIfMainThread();
+        checkIfDeliveryThread();
         final StringBuilder b = new StringBuilder();
         b.append("{ id=");
         b.append(getId());
@@ -92,6 +143,21 @@ public class LocalMessage {
             b.append(getArg2());
         }
 
+        if (getLong() != 0) {
+            b.append(" long=");
+            b.append(getLong());
+        }
+
+        if (getLong2() != 0) {
+            b.append(" long2=");
+            b.append(getLong2());
+        }
+
+        if (getDouble() != 0) {
+            b.append(" double=");
+            b.append(getDouble());
+        }
+
         if (getObject() != null) {
             b.append(" obj=");
             b.append(getObject());
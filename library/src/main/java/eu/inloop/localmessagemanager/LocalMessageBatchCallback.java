@@ -0,0 +1,19 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Listener which can receive several messages in one call, such as the ones buffered by a
+ * {@link LifecycleSubscription} while it was paused.
+ */
+public interface LocalMessageBatchCallback extends LocalMessageCallback {
+
+    /**
+     * Executed on the same thread as {@link #handleMessage(LocalMessage)}. The messages are
+     * only valid inside this method.
+     * @param localMessages event messages in the order they were sent
+     */
+    void handleBatch(@NonNull List<LocalMessage> localMessages);
+}
@@ -5,7 +5,8 @@ import android.support.annotation.NonNull;
 public interface LocalMessageCallback {
 
     /**
-     * This method is always executed from the UI thread.
+     * This method is executed on the thread of the {@link DeliveryTarget} the listener
+     * was registered with - the UI thread by default.
      * @param localMessage event message
      */
     void handleMessage(@NonNull LocalMessage localMessage);
@@ -5,6 +5,7 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -12,7 +13,11 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 @AnyThread
@@ -21,153 +26,1247 @@ public class LocalMessageManager implements Callback {
     @NonNull
     private static final String TAG = "LocalMessageManager";
 
+    @NonNull
+    private static final DeliveryLane[] NO_LANES = new DeliveryLane[0];
+
     private static boolean DEBUG = false;
 
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Payload of timeout messages of requests, see {@link #sendForResult(int, Object, long, ResultCallback)}.
+     */
+    @NonNull
+    private static final Object REQUEST_TIMEOUT = new Object();
+
     @Nullable
     private static volatile LocalMessageManager sInstance = null;
 
+    @NonNull
+    private final String mName;
+
     @NonNull
     private final Handler mHandler;
 
+    /**
+     * Listeners delivered by {@link #mHandler}, on the main thread unless created with another Looper.
+     */
+    @NonNull
+    private final ListenerRegistry mListeners;
+
+    /**
+     * Delivers events sent by {@link #post(Object)} on the same Looper, the message carries just the event.
+     */
+    @NonNull
+    private final Handler mEventHandler;
+
+    @NonNull
+    private final TypeRegistry mTypeListeners = new TypeRegistry();
+
+    /**
+     * Delayed, debounced and throttled messages, waiting in the queue of this manager's Looper.
+     */
+    @NonNull
+    private final MessageTimers mTimers;
+
+    /**
+     * Delivers requests with their correlation token in arg1, and their timeouts with the token as ID.
+     */
+    @NonNull
+    private final Handler mRequestHandler;
+
+    @NonNull
+    private final ReplySlots mReplySlots = new ReplySlots();
+
+    /**
+     * Guarded by itself.
+     */
+    @NonNull
+    private final SparseArray<LocalMessageResponder> mResponders = new SparseArray<>();
+
+    /**
+     * Copy-on-write snapshot of background delivery lanes, guarded by {@link #mLanesLock} for writers.
+     */
+    @NonNull
+    private volatile DeliveryLane[] mLanes = NO_LANES;
+
+    @NonNull
+    private final Object mLanesLock = new Object();
+
+    @NonNull
+    private final ConflationQueue mConflationQueue = new ConflationQueue();
+
+    @NonNull
+    private final StickyCache mStickyCache = new StickyCache();
+
+    @Nullable
+    private volatile MetricsSink mMetricsSink;
+
+    @Nullable
+    private SlowListenerWatchdog mWatchdog;
+
+    /**
+     * Metrics sink combined with the watchdog, used for main thread delivery only.
+     */
+    @Nullable
+    private volatile MetricsSink mMainThreadSink;
+
+    /**
+     * Pooled wrappers indexed by dispatch depth, so that a message sent by {@link #sendNow(int)}
+     * from inside handleMessage() doesn't overwrite the one being delivered. Main thread only.
+     */
+    @NonNull
+    private LocalMessage[] mMessages = new LocalMessage[]{new LocalMessage(null)};
+
+    private int mDispatchDepth;
+
+    /**
+     * Null when messages go through the Handler queue.
+     */
+    @Nullable
+    private volatile RingBufferQueue mRingBuffer;
+
+    /**
+     * Reused for every message drained from the ring buffer, never enqueued. Main thread only.
+     */
+    @Nullable
+    private Message mRingMessage;
+
     @NonNull
-    private final SparseArray<List<LocalMessageCallback>> mListenersSpecific;
+    private final AtomicLong mDroppedMessages = new AtomicLong();
+
+    /**
+     * Null unless a pending message limit is set.
+     */
+    @Nullable
+    private volatile PendingQueue mPendingQueue;
+
+    private volatile boolean mClosed;
+
+    /**
+     * Pooled payloads of messages waiting in the queue of {@link #mHandler} or in the ring buffer.
+     */
+    @NonNull
+    private final QueuedPayloads mQueued = new QueuedPayloads();
+
+    @Nullable
+    private volatile MessageJournal mJournal;
+
+    /**
+     * @return the process-wide instance, dispatching on the main thread
+     */
+    @NonNull
+    public static LocalMessageManager getInstance() {
+        if (sInstance == null) {
+            synchronized (LocalMessageManager.class) {
+                if (sInstance == null) {
+                    sInstance = new LocalMessageManager("default", Looper.getMainLooper());
+                }
+            }
+        }
+        //noinspection ConstantConditions
+        return sInstance;
+    }
+
+    /**
+     * Creates an isolated instance with its own listeners, queue, sticky messages and metrics.
+     * Messages sent to it never reach listeners of other instances and its traffic doesn't
+     * delay theirs unless they share the Looper.
+     * Listeners registered without a target are still called on the main thread, listeners
+     * registered with {@link DeliveryTarget#looper(Looper)} of this instance's Looper are called
+     * right from its dispatch loop.
+     * @param name - shown in debug logs
+     * @param looper - looper of the thread dispatching messages of this instance
+     * @see #close()
+     */
+    @NonNull
+    public static LocalMessageManager create(@NonNull final String name, @NonNull final Looper looper) {
+        return new LocalMessageManager(name, looper);
+    }
+
+    private LocalMessageManager(@NonNull final String name, @NonNull final Looper looper) {
+        mName = name;
+        mHandler = new Handler(looper, this);
+        mListeners = new ListenerRegistry();
+        mEventHandler = new Handler(looper, new Callback() {
+            @Override
+            public boolean handleMessage(@NonNull final Message msg) {
+                deliverEvent(msg.obj);
+                return true;
+            }
+        });
+        mTimers = new MessageTimers(looper, new Callback() {
+            @Override
+            public boolean handleMessage(@NonNull final Message msg) {
+                deliverTimed(msg);
+                return true;
+            }
+        });
+        mRequestHandler = new Handler(looper, new Callback() {
+            @Override
+            public boolean handleMessage(@NonNull final Message msg) {
+                handleRequest(msg);
+                return true;
+            }
+        });
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Tears down an instance created by {@link #create(String, Looper)} at once, without removing
+     * its listeners one by one. Pending messages are discarded, their pooled payloads returned to
+     * the pools, and nothing is delivered afterwards,
+     * the listeners are released together with the instance.
+     */
+    public void close() {
+        if (this == sInstance) {
+            throw new IllegalStateException("The default instance can't be closed");
+        }
+        mClosed = true;
+        mHandler.removeCallbacksAndMessages(null);
+        mQueued.releaseAll();
+        mEventHandler.removeCallbacksAndMessages(null);
+        mTimers.cancelAll();
+        mRequestHandler.removeCallbacksAndMessages(null);
+        failClosed(mReplySlots.releaseAll());
+        final PendingQueue pendingQueue = mPendingQueue;
+        if (pendingQueue != null) {
+            pendingQueue.clear();
+        }
+        final DeliveryLane[] lanes;
+        synchronized (mLanesLock) {
+            lanes = mLanes;
+            mLanes = NO_LANES;
+        }
+        for (final DeliveryLane lane : lanes) {
+            lane.close();
+        }
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Enable debug logging (such as confirmation of delivery, number of listeners etc.)
+     * @param debug - false by default
+     */
+    public static void setDebug(final boolean debug) {
+        DEBUG = debug;
+    }
+
+    /**
+     * Records delivery metrics - queue latency, messages and fan-out per ID and duration of every
+     * listener call - into the sink. Measuring costs a volatile read per message when disabled.
+     * @param sink - for example {@link DeliveryMetrics}, null to disable (default)
+     */
+    public synchronized void setMetricsSink(@Nullable final MetricsSink sink) {
+        mMetricsSink = sink;
+        updateMainThreadSink();
+    }
+
+    /**
+     * Times every main thread listener call against the watchdog's budget and reports the slow ones.
+     * Listeners on background delivery targets are not watched.
+     * @param watchdog - null to disable (default)
+     */
+    public synchronized void setWatchdog(@Nullable final SlowListenerWatchdog watchdog) {
+        if (mWatchdog != null) {
+            mWatchdog.attach(null);
+        }
+        mWatchdog = watchdog;
+        if (watchdog != null) {
+            watchdog.attach(this);
+        }
+        updateMainThreadSink();
+    }
+
+    /**
+     * Records messages with the journal's IDs sent by send() and sendNow() from now on.
+     * @param journal - null to stop recording (default)
+     */
+    public synchronized void setJournal(@Nullable final MessageJournal journal) {
+        if (mJournal != null) {
+            mJournal.attach(null);
+        }
+        if (journal != null) {
+            journal.attach(this);
+        }
+        mJournal = journal;
+    }
+
+    private void updateMainThreadSink() {
+        final MetricsSink sink = mMetricsSink;
+        if (sink == null || mWatchdog == null) {
+            mMainThreadSink = sink != null ? sink : mWatchdog;
+        } else {
+            mMainThreadSink = new CompositeMetricsSink(sink, mWatchdog);
+        }
+    }
+
+    /**
+     * Selects how messages sent by send() reach the main thread. Messages already sent are still
+     * delivered when switching engines.
+     * @param engine - {@link DispatchEngine#handlerQueue()} by default
+     */
+    public synchronized void setDispatchEngine(@NonNull final DispatchEngine engine) {
+        mRingBuffer = engine.isRingBuffer() ? new RingBufferQueue(engine.getCapacity(), engine.getOverflowPolicy()) : null;
+    }
+
+    /**
+     * @return number of messages discarded by {@link OverflowPolicy#DROP_NEWEST} or {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public long getDroppedMessageCount() {
+        return mDroppedMessages.get();
+    }
+
+    /**
+     * Limits the number of messages sent by send() and sendSticky() which wait for main thread
+     * listeners, so that a runaway producer can't flood the Looper. Once a limit is set, these
+     * messages wait in a queue of this instance and are delivered in batches.
+     * Messages sent through the ring buffer engine are bounded by its capacity instead, conflated
+     * messages are exempt as they wait at most once per ID and key. A batch counts as one message.
+     * @param limit - maximum number of waiting messages, 0 to remove the limit
+     * @param policy - BLOCK, DROP_OLDEST, DROP_NEWEST or FAIL
+     */
+    public synchronized void setPendingLimit(final int limit, @NonNull final OverflowPolicy policy) {
+        checkPendingPolicy(policy);
+        getPendingQueue().setLimit(limit, limit > 0 ? policy : null);
+        releasePendingQueueIfUnlimited();
+    }
+
+    /**
+     * Limits the number of waiting messages with the ID, see {@link #setPendingLimit(int, OverflowPolicy)}.
+     * Messages inside a batch don't count against the limit of their ID.
+     * @param id - message ID
+     * @param limit - maximum number of waiting messages with the ID, 0 to remove the limit
+     * @param policy - BLOCK, DROP_OLDEST, DROP_NEWEST or FAIL
+     */
+    public synchronized void setPendingLimit(final int id, final int limit, @NonNull final OverflowPolicy policy) {
+        checkPendingPolicy(policy);
+        getPendingQueue().setLimit(id, limit, policy);
+        releasePendingQueueIfUnlimited();
+    }
+
+    /**
+     * @return number of messages waiting in the queue created by a pending message limit
+     */
+    public int getPendingCount() {
+        final PendingQueue pendingQueue = mPendingQueue;
+        return pendingQueue == null ? 0 : pendingQueue.size();
+    }
+
+    /**
+     * @return the highest number of waiting messages since the limit was set or since {@link #resetPendingHighWatermark()}
+     */
+    public int getPendingHighWatermark() {
+        final PendingQueue pendingQueue = mPendingQueue;
+        return pendingQueue == null ? 0 : pendingQueue.getHighWatermark();
+    }
+
+    public void resetPendingHighWatermark() {
+        final PendingQueue pendingQueue = mPendingQueue;
+        if (pendingQueue != null) {
+            pendingQueue.resetHighWatermark();
+        }
+    }
+
+    private static void checkPendingPolicy(@NonNull final OverflowPolicy policy) {
+        if (policy == OverflowPolicy.FALLBACK_TO_HANDLER) {
+            throw new IllegalArgumentException(policy + " is not supported by pending message limits");
+        }
+    }
 
     @NonNull
-    private final List<LocalMessageCallback> mListenersUniversal;
+    private PendingQueue getPendingQueue() {
+        PendingQueue pendingQueue = mPendingQueue;
+        if (pendingQueue == null) {
+            pendingQueue = new PendingQueue(mDroppedMessages);
+            mPendingQueue = pendingQueue;
+        }
+        return pendingQueue;
+    }
+
+    private void releasePendingQueueIfUnlimited() {
+        //noinspection ConstantConditions - created by the caller
+        if (!mPendingQueue.hasLimits()) {
+            // messages still waiting in it are drained by its wake-up message
+            mPendingQueue = null;
+        }
+    }
+
+    /**
+     * Moves the main thread subscriptions of the listener to the target, used to demote slow listeners.
+     */
+    boolean transferListener(@NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        return mListeners.transferTo(listener, getRegistry(getLane(target)));
+    }
+
+    @Nullable
+    MetricsSink getMetricsSink() {
+        return mMetricsSink;
+    }
+
+    /**
+     * Sends an empty Message containing only the message ID.
+     * @param id - message ID
+     */
+    public final void send(final int id) {
+        enqueue(id, 0, 0, null);
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object.
+     * @param id - message ID
+     * @param payload - arbitrary object
+     */
+    public final void send(final int id, @NonNull final Object payload) {
+        enqueue(id, 0, 0, payload);
+    }
+
+    /**
+     * Sends an event to the listeners of its class, superclasses and interfaces, registered by
+     * {@link #addListener(Class, TypedCallback)}. Events don't need an ID and don't reach ID listeners.
+     * @param event - the event
+     */
+    public final void post(@NonNull final Object event) {
+        mEventHandler.sendMessage(mEventHandler.obtainMessage(0, event));
+    }
+
+    /**
+     * Sends a Message containing the ID and one integer argument.
+     * More effective than sending an arbitrary object.
+     * @param id - message ID
+     * @param arg1 - integer argument
+     */
+    public final void send(final int id, final int arg1) {
+        enqueue(id, arg1, 0, null);
+    }
+
+    /**
+     * Sends a Message containing the ID and two integer arguments.
+     * More effective than sending an arbitrary object.
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @param arg2 - integer argument
+     */
+    public final void send(final int id, final int arg1, final int arg2) {
+        enqueue(id, arg1, arg2, null);
+    }
+
+    /**
+     * Sends a Message containing the ID and a pooled buffer. The message takes over the caller's
+     * reference, the buffer returns to the pool once every listener has handled it.
+     * @param id - message ID
+     * @param buffer - buffer obtained by {@link PooledBuffer#obtain(int)}
+     */
+    public final void send(final int id, @NonNull final PooledBuffer buffer) {
+        enqueue(id, 0, 0, buffer);
+    }
+
+    /**
+     * Sends all messages of the batch as a single Looper message. Main thread listeners receive
+     * them in order within one handleMessage() pass, listeners are looked up once per distinct ID,
+     * and listeners implementing {@link LocalMessageBatchCallback} get their messages in one call.
+     * Listeners on other delivery targets receive the messages one by one.
+     * @param batch - messages to send, not to be changed afterwards
+     */
+    public final void sendBatch(@NonNull final MessageBatch batch) {
+        batch.markSent();
+        if (batch.size() == 0) {
+            return;
+        }
+        final MessageJournal journal = mJournal;
+        final DeliveryLane[] lanes = mLanes;
+        if (journal != null || lanes.length > 0) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (journal != null) {
+                    journal.append(batch.getId(i), batch.getArg1(i), batch.getArg2(i), batch.getObject(i));
+                }
+                for (final DeliveryLane lane : lanes) {
+                    lane.route(batch.getId(i), batch.getArg1(i), batch.getArg2(i), batch.getObject(i));
+                }
+            }
+        }
+        enqueueMain(mHandler.obtainMessage(0, batch));
+    }
+
+    /**
+     * Sends a Message containing the ID and a Bundle object.
+     * More effective than sending an arbitrary object.
+     * @param id - message ID
+     * @param bundle - bundle
+     */
+    public final void send(final int id, @NonNull final Bundle bundle) {
+        enqueue(id, 0, 0, bundle);
+    }
+
+    /**
+     * Sends a Message containing the ID and one long argument, read by {@link LocalMessage#getLong()}.
+     * Doesn't box the value nor allocate a Bundle, the carrier is pooled.
+     * Calls which passed a long to {@link #send(int, Object)} bind to this method now, listeners
+     * get null from {@link LocalMessage#getObject()}. Pass a {@link Long} to send an object.
+     * @param id - message ID
+     * @param value - long argument, such as a timestamp
+     */
+    public final void send(final int id, final long value) {
+        enqueue(id, 0, 0, PrimitivePayload.obtain(value, 0, 0));
+    }
+
+    /**
+     * Sends a Message containing the ID and two long arguments, read by {@link LocalMessage#getLong()}
+     * and {@link LocalMessage#getLong2()}.
+     * Doesn't box the values nor allocate a Bundle, the carrier is pooled.
+     * @param id - message ID
+     * @param value1 - long argument
+     * @param value2 - long argument
+     */
+    public final void send(final int id, final long value1, final long value2) {
+        enqueue(id, 0, 0, PrimitivePayload.obtain(value1, value2, 0));
+    }
+
+    /**
+     * Sends a Message containing the ID and one double argument, read by {@link LocalMessage#getDouble()}.
+     * Doesn't box the value nor allocate a Bundle, the carrier is pooled.
+     * Float and double arguments which were boxed by {@link #send(int, Object)} bind to this method now.
+     * @param id - message ID
+     * @param value - double argument, such as a coordinate
+     */
+    public final void send(final int id, final double value) {
+        enqueue(id, 0, 0, PrimitivePayload.obtain(0, 0, value));
+    }
+
+    /**
+     * Sends an empty sticky Message. The last sticky message of every ID is cached and
+     * delivered to listeners registered later, right after they are added.
+     * @see #setStickyCacheSize(int)
+     * @param id - message ID
+     */
+    public final void sendSticky(final int id) {
+        enqueueSticky(mHandler.obtainMessage(id));
+    }
+
+    /**
+     * Sends a sticky Message containing the ID and an arbitrary Object.
+     * @see #sendSticky(int)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     */
+    public final void sendSticky(final int id, @NonNull final Object payload) {
+        enqueueSticky(mHandler.obtainMessage(id, payload));
+    }
+
+    /**
+     * Sends a sticky Message containing the ID and one integer argument.
+     * @see #sendSticky(int)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     */
+    public final void sendSticky(final int id, final int arg1) {
+        enqueueSticky(mHandler.obtainMessage(id, arg1, 0));
+    }
+
+    /**
+     * Sends a sticky Message containing the ID and two integer arguments.
+     * @see #sendSticky(int)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @param arg2 - integer argument
+     */
+    public final void sendSticky(final int id, final int arg1, final int arg2) {
+        enqueueSticky(mHandler.obtainMessage(id, arg1, arg2));
+    }
+
+    /**
+     * Sends a sticky Message containing the ID and a Bundle object.
+     * @see #sendSticky(int)
+     * @param id - message ID
+     * @param bundle - bundle
+     */
+    public final void sendSticky(final int id, @NonNull final Bundle bundle) {
+        enqueueSticky(mHandler.obtainMessage(id, bundle));
+    }
+
+    /**
+     * Removes the cached sticky message of the ID, listeners registered later won't receive it.
+     * @param id - message ID
+     */
+    public final void removeSticky(final int id) {
+        mStickyCache.remove(id);
+    }
+
+    /**
+     * Sets how many sticky message IDs are cached. The least recently used are evicted first.
+     * @param maxSize - 64 by default
+     */
+    public final void setStickyCacheSize(final int maxSize) {
+        mStickyCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Sticky and conflated messages keep or replace their payload outside the queues, a pooled
+     * buffer would be recycled while still cached or never released.
+     */
+    private static void checkNotPooled(@Nullable final Object payload) {
+        if (payload instanceof PooledBuffer) {
+            throw new IllegalArgumentException("Pooled buffers can't be sticky or conflated");
+        }
+    }
+
+    private void enqueueSticky(@NonNull final Message msg) {
+        checkNotPooled(msg.obj);
+        mStickyCache.put(msg);
+        ((StickyCache.Entry) msg.obj).onQueued(null);
+        enqueue(msg);
+    }
+
+    /**
+     * Delivers the cached sticky message to a new listener, unless the sent message is still
+     * queued for the listener's thread and reaches the listener anyway.
+     */
+    private void replaySticky(@Nullable final DeliveryLane lane, @NonNull final StickyCache.Entry entry, @NonNull final LocalMessageCallback listener) {
+        if (!entry.isQueued(lane)) {
+            enqueueTo(lane, StickyCache.obtainReplay(entry, listener));
+        }
+    }
+
+    /**
+     * Sends a Message containing the ID and one integer argument, conflated with
+     * a pending message of the same ID. If such a message wasn't delivered yet, its argument is
+     * replaced and no new message is enqueued - listeners only see the latest value.
+     * Useful for high-frequency updates such as progress.
+     * @param id - message ID
+     * @param arg1 - integer argument
+     */
+    public final void sendConflated(final int id, final int arg1) {
+        enqueueConflated(id, 0, arg1, 0, null);
+    }
+
+    /**
+     * Sends a Message containing the ID and two integer arguments, conflated with
+     * a pending message of the same ID.
+     * @see #sendConflated(int, int)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @param arg2 - integer argument
+     */
+    public final void sendConflated(final int id, final int arg1, final int arg2) {
+        enqueueConflated(id, 0, arg1, arg2, null);
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object, conflated with
+     * a pending message of the same ID.
+     * @see #sendConflated(int, int)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     */
+    public final void sendConflated(final int id, @NonNull final Object payload) {
+        enqueueConflated(id, 0, 0, 0, payload);
+    }
+
+    /**
+     * Sends a Message containing the ID, a key and one integer argument, conflated with
+     * a pending message of the same ID and key. Messages with different keys are delivered
+     * separately. Listeners receive the key as arg1 and the argument as arg2.
+     * Don't mix keyed and non-keyed conflated sends of the same ID.
+     * @param id - message ID
+     * @param key - conflation key, such as ID of a download
+     * @param arg2 - integer argument
+     */
+    public final void sendConflatedByKey(final int id, final int key, final int arg2) {
+        enqueueConflated(id, key, key, arg2, null);
+    }
+
+    /**
+     * Sends a Message containing the ID, a key and an arbitrary Object, conflated with
+     * a pending message of the same ID and key. Listeners receive the key as arg1.
+     * @see #sendConflatedByKey(int, int, int)
+     * @param id - message ID
+     * @param key - conflation key, such as ID of a download
+     * @param payload - arbitrary object
+     */
+    public final void sendConflatedByKey(final int id, final int key, @NonNull final Object payload) {
+        enqueueConflated(id, key, key, 0, payload);
+    }
+
+    /**
+     * Every destination conflates on its own, a lane delivering faster than the main thread
+     * still sees every value it can keep up with.
+     */
+    private void enqueueConflated(final int id, final int key, final int arg1, final int arg2, @Nullable final Object obj) {
+        checkNotPooled(obj);
+        final DeliveryLane[] lanes = mLanes;
+        for (final DeliveryLane lane : lanes) {
+            lane.routeConflated(id, key, arg1, arg2, obj);
+        }
+        final ConflationQueue.Slot slot = mConflationQueue.offer(id, key, arg1, arg2, obj);
+        if (slot != null) {
+            mHandler.sendMessage(mHandler.obtainMessage(id, slot));
+        }
+    }
+
+    /**
+     * Delivers an empty Message to main thread listeners right away if called on the main thread,
+     * skipping the Handler queue. The message overtakes messages which are already queued.
+     * Listeners on other delivery targets and calls from other threads go through the queue as
+     * with {@link #send(int)}. Can be called from inside handleMessage().
+     * @param id - message ID
+     */
+    public final void sendNow(final int id) {
+        dispatchNow(mHandler.obtainMessage(id));
+    }
+
+    /**
+     * Delivers a Message containing the ID and an arbitrary Object right away if called on the main thread.
+     * @see #sendNow(int)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     */
+    public final void sendNow(final int id, @NonNull final Object payload) {
+        dispatchNow(mHandler.obtainMessage(id, payload));
+    }
+
+    /**
+     * Delivers a Message containing the ID and one integer argument right away if called on the main thread.
+     * @see #sendNow(int)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     */
+    public final void sendNow(final int id, final int arg1) {
+        dispatchNow(mHandler.obtainMessage(id, arg1, 0));
+    }
+
+    /**
+     * Delivers a Message containing the ID and two integer arguments right away if called on the main thread.
+     * @see #sendNow(int)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @param arg2 - integer argument
+     */
+    public final void sendNow(final int id, final int arg1, final int arg2) {
+        dispatchNow(mHandler.obtainMessage(id, arg1, arg2));
+    }
+
+    /**
+     * Delivers a Message containing the ID and a Bundle object right away if called on the main thread.
+     * @see #sendNow(int)
+     * @param id - message ID
+     * @param bundle - bundle
+     */
+    public final void sendNow(final int id, @NonNull final Bundle bundle) {
+        dispatchNow(mHandler.obtainMessage(id, bundle));
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object and hands a copy of it to every
+     * listener registered with a {@link DeliveryTarget#parallel} target at once, each in its own task.
+     * Other listeners receive it as if sent by {@link #send(int, Object)}.
+     * @param id - message ID
+     * @param payload - arbitrary object, read concurrently by the parallel listeners
+     * @return completion signal of the parallel listeners
+     */
+    @NonNull
+    public final ParallelDelivery sendParallel(final int id, @NonNull final Object payload) {
+        return enqueueParallel(mHandler.obtainMessage(id, payload));
+    }
+
+    /**
+     * Sends a Message containing the ID and one integer argument to the parallel listeners at once.
+     * @see #sendParallel(int, Object)
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @return completion signal of the parallel listeners
+     */
+    @NonNull
+    public final ParallelDelivery sendParallel(final int id, final int arg1) {
+        return enqueueParallel(mHandler.obtainMessage(id, arg1, 0));
+    }
+
+    @NonNull
+    private ParallelDelivery enqueueParallel(@NonNull final Message msg) {
+        final ParallelDelivery delivery = new ParallelDelivery();
+        final DeliveryLane[] lanes = mLanes;
+        for (final DeliveryLane lane : lanes) {
+            lane.route(msg, delivery);
+        }
+        enqueueMain(msg);
+        // the delivery starts with one pending hand-off, it's done once the listeners are scheduled
+        delivery.onHandled();
+        return delivery;
+    }
+
+    /**
+     * Sends an empty Message containing only the message ID after a delay.
+     * @param id - message ID
+     * @param delayMillis - delay in milliseconds
+     * @return handle of the delayed messages of the ID
+     */
+    @NonNull
+    public final ScheduledSend sendDelayed(final int id, final long delayMillis) {
+        return mTimers.sendDelayed(id, null, delayMillis);
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object after a delay.
+     * @param id - message ID
+     * @param payload - arbitrary object
+     * @param delayMillis - delay in milliseconds
+     * @return handle of the delayed messages of the ID
+     */
+    @NonNull
+    public final ScheduledSend sendDelayed(final int id, @NonNull final Object payload, final long delayMillis) {
+        return mTimers.sendDelayed(id, payload, delayMillis);
+    }
+
+    /**
+     * Sends an empty Message containing only the message ID once no other debounced message
+     * of the ID was sent for the whole window. Each call replaces the waiting message.
+     * @param id - message ID
+     * @param windowMillis - quiet period in milliseconds
+     * @return handle of the debounced message of the ID
+     */
+    @NonNull
+    public final ScheduledSend sendDebounced(final int id, final long windowMillis) {
+        return mTimers.sendDebounced(id, null, windowMillis);
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object once no other debounced message
+     * of the ID was sent for the whole window, such as the last query typed into a search field.
+     * @see #sendDebounced(int, long)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     * @param windowMillis - quiet period in milliseconds
+     * @return handle of the debounced message of the ID
+     */
+    @NonNull
+    public final ScheduledSend sendDebounced(final int id, @NonNull final Object payload, final long windowMillis) {
+        return mTimers.sendDebounced(id, payload, windowMillis);
+    }
+
+    /**
+     * Sends an empty Message containing only the message ID at most once per interval. The first
+     * message of an interval is sent right away, the last one of the others at the end of it.
+     * @param id - message ID
+     * @param intervalMillis - minimal time between two messages in milliseconds
+     * @return handle of the trailing message of the ID, not pending if this message was sent right away
+     */
+    @NonNull
+    public final ScheduledSend sendThrottled(final int id, final long intervalMillis) {
+        return throttle(id, null, intervalMillis);
+    }
+
+    /**
+     * Sends a Message containing the ID and an arbitrary Object at most once per interval.
+     * @see #sendThrottled(int, long)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     * @param intervalMillis - minimal time between two messages in milliseconds
+     * @return handle of the trailing message of the ID, not pending if this message was sent right away
+     */
+    @NonNull
+    public final ScheduledSend sendThrottled(final int id, @NonNull final Object payload, final long intervalMillis) {
+        return throttle(id, payload, intervalMillis);
+    }
+
+    @NonNull
+    private ScheduledSend throttle(final int id, @Nullable final Object payload, final long intervalMillis) {
+        if (!mTimers.sendThrottled(id, payload, intervalMillis)) {
+            enqueue(id, 0, 0, payload);
+        }
+        return mTimers.getSend(id, MessageTimers.THROTTLED);
+    }
+
+    /**
+     * Cancels the delayed, debounced and throttled messages of the ID which are still waiting.
+     * Messages sent by other methods are not affected.
+     * @param id - message ID
+     */
+    public final void cancel(final int id) {
+        mTimers.cancel(id);
+    }
+
+    /**
+     * Sends a request to the responder of the ID and passes its answer to the callback, without
+     * registering any listener for the reply.
+     * @see #setResponder(int, LocalMessageResponder)
+     * @param id - message ID
+     * @param callback - called with the result on this manager's Looper
+     */
+    public final <T> void sendForResult(final int id, @NonNull final ResultCallback<T> callback) {
+        sendForResult(id, null, 0, callback);
+    }
+
+    /**
+     * Sends a request containing the ID and an arbitrary Object to the responder of the ID and
+     * passes its answer to the callback, without registering any listener for the reply.
+     * @see #setResponder(int, LocalMessageResponder)
+     * @param id - message ID
+     * @param payload - arbitrary object
+     * @param timeoutMillis - time after which the callback gets a TimeoutException, 0 to wait forever
+     * @param callback - called with the result on this manager's Looper, with an
+     *                 IllegalStateException once the manager is closed
+     */
+    public final <T> void sendForResult(final int id, @Nullable final Object payload, final long timeoutMillis,
+                                        @NonNull final ResultCallback<T> callback) {
+        final int token = mReplySlots.acquire(callback);
+        if (mClosed) {
+            // close() may have released the slots before this one was taken
+            final ResultCallback<?> released = mReplySlots.release(token);
+            if (released != null) {
+                failClosed(released);
+            }
+            return;
+        }
+        if (timeoutMillis > 0) {
+            mRequestHandler.sendMessageDelayed(mRequestHandler.obtainMessage(token, id, 0, REQUEST_TIMEOUT), timeoutMillis);
+        }
+        mRequestHandler.sendMessage(mRequestHandler.obtainMessage(id, token, 0, payload));
+    }
+
+    private void dispatchNow(@NonNull final Message msg) {
+        final MessageJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(msg.what, msg.arg1, msg.arg2, msg.obj);
+        }
+        if (mHandler.getLooper() != Looper.myLooper()) {
+            enqueue(msg);
+            return;
+        }
+        final DeliveryLane[] lanes = mLanes;
+        for (final DeliveryLane lane : lanes) {
+            lane.route(msg);
+        }
+        deliver(msg, msg.getWhen());
+        msg.recycle();
+    }
+
+    /**
+     * Enqueues the values through the selected dispatch engine, see {@link #enqueue(Message)}.
+     */
+    private void enqueue(final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+        final MessageJournal journal = mJournal;
+        final RingBufferQueue ring = mRingBuffer;
+        if (ring == null) {
+            if (journal != null) {
+                journal.append(id, arg1, arg2, obj);
+            }
+            enqueue(mHandler.obtainMessage(id, arg1, arg2, obj));
+            return;
+        }
+        final long position = ring.claim();
+        if (position < 0) {
+            switch (ring.mOverflowPolicy) {
+                case FALLBACK_TO_HANDLER:
+                    break;
+                case DROP_NEWEST:
+                    mDroppedMessages.incrementAndGet();
+                    PrimitivePayload.releaseUndelivered(obj);
+                    return;
+                default:
+                    PrimitivePayload.releaseUndelivered(obj);
+                    throw new IllegalStateException("Ring buffer is full, message ID " + id);
+            }
+        }
+        // the message is accepted, the lanes and the journal never see one the main thread doesn't get
+        try {
+            if (journal != null) {
+                journal.append(id, arg1, arg2, obj);
+            }
+            final DeliveryLane[] lanes = mLanes;
+            for (final DeliveryLane lane : lanes) {
+                lane.route(id, arg1, arg2, obj);
+            }
+        } finally {
+            // the consumer waits for a claimed slot, it's published even if a lane failed
+            if (position < 0) {
+                sendMain(mHandler.obtainMessage(id, arg1, arg2, obj));
+            } else {
+                publish(ring, position, id, arg1, arg2, obj);
+            }
+        }
+    }
+
+    private void publish(@NonNull final RingBufferQueue ring, final long position, final int id,
+                         final int arg1, final int arg2, @Nullable final Object obj) {
+        // reading the clock costs more than the slot write, only measure when someone listens
+        final long time = mMainThreadSink != null ? SystemClock.uptimeMillis() : 0;
+        // tracked before publishing, the main thread may take the message right away
+        mQueued.add(obj);
+        ring.publish(position, id, arg1, arg2, obj, time);
+        if (ring.requestWakeup()) {
+            mHandler.sendMessage(mHandler.obtainMessage(0, ring));
+        }
+    }
+
+    /**
+     * Enqueues the message for main thread listeners and a copy of it for every background
+     * lane which has listeners for its ID. Lanes without subscribers are skipped.
+     */
+    private void enqueue(@NonNull final Message msg) {
+        final DeliveryLane[] lanes = mLanes;
+        for (final DeliveryLane lane : lanes) {
+            lane.route(msg);
+        }
+        enqueueMain(msg);
+    }
+
+    /**
+     * Sends a message replayed from the journal like {@link #send(int)} does, without recording it again.
+     */
+    void enqueueReplayed(final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+        enqueue(mHandler.obtainMessage(id, arg1, arg2, obj));
+    }
+
+    private void enqueueMain(@NonNull final Message msg) {
+        final PendingQueue pendingQueue = mPendingQueue;
+        if (pendingQueue == null) {
+            sendMain(msg);
+        } else if (pendingQueue.offer(msg, mHandler.getLooper() == Looper.myLooper())) {
+            mHandler.sendMessage(mHandler.obtainMessage(0, pendingQueue));
+        }
+    }
+
+    /**
+     * Add listener for specific type of message by its ID.
+     * Don't forget to call {@link #removeListener(LocalMessageCallback)} or
+     * {@link #removeListeners(int)}
+     *
+     * @param id     ID of message that will be only notified to listener
+     * @param listener listener
+     */
+    public void addListener(int id, @NonNull final LocalMessageCallback listener) {
+        addListener(id, listener, DeliveryTarget.mainThread());
+    }
+
+    /**
+     * Add listener for specific type of message by its ID, delivered on the given target.
+     *
+     * @param id     ID of message that will be only notified to listener
+     * @param listener listener
+     * @param target thread on which the listener is called
+     */
+    public void addListener(int id, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        addListener(id, listener, target, false);
+    }
 
-    @NonNull
-    private final List<LocalMessageCallback> mDefensiveCopyList = new ArrayList<>();
+    /**
+     * Add listener for specific type of message by its ID, holding only a weak reference to it.
+     * The listener is removed automatically once it is garbage collected, so a forgotten
+     * {@link #removeListener(int, LocalMessageCallback)} doesn't leak it. The caller has to keep
+     * a strong reference to the listener (don't pass an anonymous class).
+     *
+     * @param id     ID of message that will be only notified to listener
+     * @param listener listener
+     */
+    public void addWeakListener(int id, @NonNull final LocalMessageCallback listener) {
+        addListener(id, listener, DeliveryTarget.mainThread(), true);
+    }
 
-    @NonNull
-    private LocalMessage mMessage;
+    /**
+     * Add weakly held listener for specific type of message by its ID, delivered on the given target.
+     * @see #addWeakListener(int, LocalMessageCallback)
+     *
+     * @param id     ID of message that will be only notified to listener
+     * @param listener listener
+     * @param target thread on which the listener is called
+     */
+    public void addWeakListener(int id, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        addListener(id, listener, target, true);
+    }
 
-    @NonNull
-    public static LocalMessageManager getInstance() {
-        if (sInstance == null) {
-            synchronized (LocalMessageManager.class) {
-                if (sInstance == null) {
-                    sInstance = new LocalMessageManager();
-                }
+    private void addListener(int id, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target, final boolean weak) {
+        final DeliveryLane lane = getLane(target);
+        if (getRegistry(lane).add(id, listener, weak)) {
+            final StickyCache.Entry entry = mStickyCache.get(id);
+            if (entry != null) {
+                replaySticky(lane, entry, listener);
             }
         }
-        //noinspection ConstantConditions
-        return sInstance;
     }
 
-    private LocalMessageManager() {
-        mHandler = new Handler(Looper.getMainLooper(), this);
-        mMessage = new LocalMessage(null);
-        mListenersUniversal = new ArrayList<>();
-        mListenersSpecific = new SparseArray<>();
+    /**
+     * Add listener for several message IDs at once, such as the ones generated for {@link OnMessage}.
+     * Don't forget to call {@link #removeListener(int[], LocalMessageCallback)}
+     *
+     * @param ids IDs of messages that will be notified to listener
+     * @param listener listener
+     */
+    public void addListener(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener) {
+        addListener(ids, listener, DeliveryTarget.mainThread());
     }
 
     /**
-     * Enable debug logging (such as confirmation of delivery, number of listeners etc.)
-     * @param debug - false by default
+     * Add listener for several message IDs at once, delivered on the given target.
+     *
+     * @param ids IDs of messages that will be notified to listener
+     * @param listener listener
+     * @param target thread on which the listener is called
      */
-    public static void setDebug(final boolean debug) {
-        DEBUG = debug;
+    public void addListener(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        final DeliveryLane lane = getLane(target);
+        for (final int id : getRegistry(lane).add(ids, listener, false)) {
+            final StickyCache.Entry entry = mStickyCache.get(id);
+            if (entry != null) {
+                replaySticky(lane, entry, listener);
+            }
+        }
     }
 
     /**
-     * Sends an empty Message containing only the message ID.
-     * @param id - message ID
+     * Add main thread listener for several message IDs which can be paused. While paused, messages
+     * are kept in a buffer and delivered in one batch on resume, see {@link LifecycleSubscription#bindTo}.
+     *
+     * @param ids IDs of messages that will be notified to listener
+     * @param listener listener, may implement {@link LocalMessageBatchCallback} to receive the buffer in one call
+     * @param policy what to keep when the buffer is full
+     * @param capacity maximum number of buffered messages
+     * @return subscription, remove it by {@link LifecycleSubscription#remove()}
      */
-    public final void send(final int id) {
-        mHandler.sendEmptyMessage(id);
+    @NonNull
+    public LifecycleSubscription addLifecycleListener(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener,
+                                                      @NonNull final BufferPolicy policy, final int capacity) {
+        final LifecycleSubscription subscription = new LifecycleSubscription(this, ids, listener, policy, capacity);
+        subscription.subscribe();
+        return subscription;
     }
 
     /**
-     * Sends a Message containing the ID and an arbitrary Object.
-     * @param id - message ID
-     * @param payload - arbitrary object
+     * Add listener for all messages.
+     *
+     * @param listener listener
      */
-    public final void send(final int id, @NonNull final Object payload) {
-        mHandler.sendMessage(mHandler.obtainMessage(id, payload));
+    public void addListener(@NonNull final LocalMessageCallback listener) {
+        addListener(listener, DeliveryTarget.mainThread());
     }
 
     /**
-     * Sends a Message containing the ID and one integer argument.
-     * More effective than sending an arbitrary object.
-     * @param id - message ID
-     * @param arg1 - integer argument
+     * Add listener for all messages, delivered on the given target.
+     *
+     * @param listener listener
+     * @param target thread on which the listener is called
      */
-    public final void send(final int id, final int arg1) {
-        mHandler.sendMessage(mHandler.obtainMessage(id, arg1, 0));
+    public void addListener(@NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        addListener(listener, target, false);
     }
 
     /**
-     * Sends a Message containing the ID and two integer arguments.
-     * More effective than sending an arbitrary object.
-     * @param id - message ID
-     * @param arg1 - integer argument
-     * @param arg2 - integer argument
+     * Add listener for all messages, holding only a weak reference to it.
+     * @see #addWeakListener(int, LocalMessageCallback)
+     *
+     * @param listener listener
      */
-    public final void send(final int id, final int arg1, final int arg2) {
-        mHandler.sendMessage(mHandler.obtainMessage(id, arg1, arg2));
+    public void addWeakListener(@NonNull final LocalMessageCallback listener) {
+        addListener(listener, DeliveryTarget.mainThread(), true);
     }
 
     /**
-     * Sends a Message containing the ID and a Bundle object.
-     * More effective than sending an arbitrary object.
-     * @param id - message ID
-     * @param bundle - bundle
+     * Add weakly held listener for all messages, delivered on the given target.
+     * @see #addWeakListener(int, LocalMessageCallback)
+     *
+     * @param listener listener
+     * @param target thread on which the listener is called
      */
-    public final void send(final int id, @NonNull final Bundle bundle) {
-        mHandler.sendMessage(mHandler.obtainMessage(id, bundle));
+    public void addWeakListener(@NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        addListener(listener, target, true);
+    }
+
+    private void addListener(@NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target, final boolean weak) {
+        final DeliveryLane lane = getLane(target);
+        if (getRegistry(lane).add(listener, weak)) {
+            for (final StickyCache.Entry entry : mStickyCache.getAll()) {
+                replaySticky(lane, entry, listener);
+            }
+        } else {
+            if (DEBUG) {
+                Log.w(TAG, "Listener is already added. " + listener.toString());
+            }
+        }
     }
 
     /**
-     * Add listener for specific type of message by its ID.
-     * Don't forget to call {@link #removeListener(LocalMessageCallback)} or
-     * {@link #removeListeners(int)}
+     * Add listener for all messages with an ID inside the range, such as the block of IDs
+     * owned by a feature module. Cheaper than a universal listener filtering the IDs itself,
+     * the listener is only called for matching messages.
+     * Removed by {@link #removeListener(LocalMessageCallback)}.
      *
-     * @param id     ID of message that will be only notified to listener
+     * @param range  range of message IDs
      * @param listener listener
      */
-    public void addListener(int id, @NonNull final LocalMessageCallback listener) {
-        synchronized (mListenersSpecific) {
-            List<LocalMessageCallback> whatListofListeners = mListenersSpecific.get(id);
-            if (whatListofListeners == null) {
-                whatListofListeners = new ArrayList<>();
-                mListenersSpecific.put(id, whatListofListeners);
-            }
-            if (!whatListofListeners.contains(listener)) {
-                whatListofListeners.add(listener);
+    public void addListener(@NonNull final IdRange range, @NonNull final LocalMessageCallback listener) {
+        addListener(range, listener, DeliveryTarget.mainThread());
+    }
+
+    /**
+     * Add listener for all messages with an ID inside the range, delivered on the given target.
+     * @see #addListener(IdRange, LocalMessageCallback)
+     *
+     * @param range  range of message IDs
+     * @param listener listener
+     * @param target thread on which the listener is called
+     */
+    public void addListener(@NonNull final IdRange range, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        final DeliveryLane lane = getLane(target);
+        if (getRegistry(lane).add(range, listener)) {
+            for (final StickyCache.Entry entry : mStickyCache.getAll()) {
+                if (range.contains(entry.what)) {
+                    replaySticky(lane, entry, listener);
+                }
             }
         }
     }
 
     /**
-     * Add listener for all messages.
+     * Add listener for all messages whose ID matches the value in the bits of the mask,
+     * i.e. {@code (id & mask) == (value & mask)}.
+     * Removed by {@link #removeListener(LocalMessageCallback)}.
      *
+     * @param mask   bits of the ID to compare
+     * @param value  expected value of the bits
      * @param listener listener
      */
-    public void addListener(@NonNull final LocalMessageCallback listener) {
-        synchronized (mListenersUniversal) {
-            if (!mListenersUniversal.contains(listener)) {
-                mListenersUniversal.add(listener);
-            } else {
-                if (DEBUG) {
-                    Log.w(TAG, "Listener is already added. " + listener.toString());
+    public void addListener(final int mask, final int value, @NonNull final LocalMessageCallback listener) {
+        addListener(mask, value, listener, DeliveryTarget.mainThread());
+    }
+
+    /**
+     * Add listener for all messages whose ID matches the value in the bits of the mask, delivered on the given target.
+     * @see #addListener(int, int, LocalMessageCallback)
+     *
+     * @param mask   bits of the ID to compare
+     * @param value  expected value of the bits
+     * @param listener listener
+     * @param target thread on which the listener is called
+     */
+    public void addListener(final int mask, final int value, @NonNull final LocalMessageCallback listener, @NonNull final DeliveryTarget target) {
+        final DeliveryLane lane = getLane(target);
+        if (getRegistry(lane).add(mask, value, listener)) {
+            for (final StickyCache.Entry entry : mStickyCache.getAll()) {
+                if ((entry.what & mask) == (value & mask)) {
+                    replaySticky(lane, entry, listener);
                 }
             }
         }
     }
 
     /**
-     * Remove listener for all messages.
+     * Remove listener for all messages, including its range and mask subscriptions.
      *
      * @param listener The listener to remove.
      */
     public void removeListener(@NonNull final LocalMessageCallback listener) {
-        synchronized (mListenersUniversal) {
-            if (mListenersUniversal.contains(listener)) {
-                mListenersUniversal.remove(listener);
-            } else {
-                if (DEBUG) {
-                    Log.w(TAG, "Trying to remove a listener that is not registered. " + listener.toString());
-                }
+        boolean removed = mListeners.remove(listener);
+        for (final DeliveryLane lane : mLanes) {
+            removed |= lane.mRegistry.remove(listener);
+        }
+        if (!removed) {
+            if (DEBUG) {
+                Log.w(TAG, "Trying to remove a listener that is not registered. " + listener.toString());
             }
         }
     }
@@ -178,15 +1277,89 @@ public class LocalMessageManager implements Callback {
      * @param id The id of the message to stop listening to.
      */
     public void removeListeners(final int id) {
-        if (DEBUG) {
-            final List<LocalMessageCallback> callbacks = mListenersSpecific.get(id);
-            if (callbacks == null || callbacks.size() == 0) {
+        boolean removed = mListeners.removeAll(id);
+        for (final DeliveryLane lane : mLanes) {
+            removed |= lane.mRegistry.removeAll(id);
+        }
+        if (!removed) {
+            if (DEBUG) {
                 Log.w(TAG, "Trying to remove specific listeners that are not registerred. ID " + id);
             }
         }
+    }
+
+    /**
+     * Remove the specific listener from several message IDs at once.
+     *
+     * @param ids The ids of the messages to stop listening to.
+     * @param listener The listener to remove.
+     */
+    public void removeListener(@NonNull final int[] ids, @NonNull final LocalMessageCallback listener) {
+        boolean removed = mListeners.remove(ids, listener);
+        for (final DeliveryLane lane : mLanes) {
+            removed |= lane.mRegistry.remove(ids, listener);
+        }
+        if (!removed) {
+            if (DEBUG) {
+                Log.w(TAG, "Trying to remove specific listener that is not registerred. IDs " + Arrays.toString(ids) + ", " + listener);
+            }
+        }
+    }
+
+    /**
+     * Add listener for events of a class, its subclasses and implementations sent by {@link #post(Object)}.
+     * Called on the thread of this manager's Looper.
+     * Don't forget to call {@link #removeListener(Class, TypedCallback)}.
+     *
+     * @param type class of events the listener receives
+     * @param listener listener
+     */
+    public <T> void addListener(@NonNull final Class<T> type, @NonNull final TypedCallback<? super T> listener) {
+        if (!mTypeListeners.add(type, listener)) {
+            if (DEBUG) {
+                Log.w(TAG, "Listener is already added. " + listener.toString());
+            }
+        }
+    }
+
+    /**
+     * Remove the listener of events of a class.
+     *
+     * @param type The class the listener was added for.
+     * @param listener The listener which should be removed.
+     */
+    public <T> void removeListener(@NonNull final Class<T> type, @NonNull final TypedCallback<? super T> listener) {
+        if (!mTypeListeners.remove(type, listener)) {
+            if (DEBUG) {
+                Log.w(TAG, "Trying to remove typed listener that is not registerred. " + type.getName() + ", " + listener);
+            }
+        }
+    }
+
+    /**
+     * Set the responder answering requests for the message ID, sent by
+     * {@link #sendForResult(int, Object, long, ResultCallback)}. An ID has at most one responder.
+     *
+     * @param id ID of requests the responder answers
+     * @param responder responder
+     */
+    public void setResponder(final int id, @NonNull final LocalMessageResponder responder) {
+        synchronized (mResponders) {
+            if (mResponders.get(id) != null) {
+                throw new IllegalStateException("Message ID " + id + " already has a responder");
+            }
+            mResponders.put(id, responder);
+        }
+    }
 
-        synchronized (mListenersSpecific) {
-            mListenersSpecific.delete(id);
+    /**
+     * Remove the responder of the message ID. Requests not answered yet fail with an IllegalStateException.
+     *
+     * @param id The ID of requests to stop answering.
+     */
+    public void removeResponder(final int id) {
+        synchronized (mResponders) {
+            mResponders.remove(id);
         }
     }
 
@@ -197,109 +1370,400 @@ public class LocalMessageManager implements Callback {
      * @param listener The listener which should be removed.
      */
     public void removeListener(final int id, @NonNull final LocalMessageCallback listener) {
-        synchronized (mListenersSpecific) {
-            final List<LocalMessageCallback> callbacks = this.mListenersSpecific.get(id);
-            if (callbacks != null && !callbacks.isEmpty()) {
-                if (callbacks.contains(listener)) {
-                    callbacks.remove(listener);
-                }
-            } else {
-                if (DEBUG) {
-                    Log.w(TAG, "Trying to remove specific listener that is not registerred. ID " + id + ", " + listener);
+        boolean removed = mListeners.remove(id, listener);
+        for (final DeliveryLane lane : mLanes) {
+            removed |= lane.mRegistry.remove(id, listener);
+        }
+        if (!removed) {
+            if (DEBUG) {
+                Log.w(TAG, "Trying to remove specific listener that is not registerred. ID " + id + ", " + listener);
+            }
+        }
+    }
+
+    /**
+     * Number of weakly registered listeners which were garbage collected without being removed
+     * and were pruned from the registry since the start.
+     */
+    public long getReclaimedListenerCount() {
+        long count = mListeners.getReclaimedCount();
+        for (final DeliveryLane lane : mLanes) {
+            count += lane.mRegistry.getReclaimedCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return lane of the target, null for the main thread
+     */
+    @Nullable
+    private DeliveryLane getLane(@NonNull final DeliveryTarget target) {
+        if (target.getTarget() == mHandler.getLooper()) {
+            return null;
+        }
+        synchronized (mLanesLock) {
+            final DeliveryLane[] lanes = mLanes;
+            for (final DeliveryLane lane : lanes) {
+                if (lane.mTarget.equals(target)) {
+                    return lane;
                 }
             }
+            final DeliveryLane lane = DeliveryLane.create(target, this);
+            final DeliveryLane[] newLanes = new DeliveryLane[lanes.length + 1];
+            System.arraycopy(lanes, 0, newLanes, 0, lanes.length);
+            newLanes[lanes.length] = lane;
+            mLanes = newLanes;
+            return lane;
+        }
+    }
+
+    @NonNull
+    private ListenerRegistry getRegistry(@Nullable final DeliveryLane lane) {
+        return lane == null ? mListeners : lane.mRegistry;
+    }
+
+    private void enqueueTo(@Nullable final DeliveryLane lane, @NonNull final Message msg) {
+        if (lane == null) {
+            sendMain(msg);
+        } else {
+            lane.enqueue(msg);
         }
     }
 
+    /**
+     * Sends the message to {@link #mHandler}, tracking its payload until it is handled.
+     */
+    private void sendMain(@NonNull final Message msg) {
+        mQueued.add(msg.obj);
+        mHandler.sendMessage(msg);
+    }
+
     /*
      *
      * @see android.os.Handler.Callback#handleMessage(android.os.Message)
      */
     @Override
     public boolean handleMessage(@NonNull final Message msg) {
-        mMessage.setMessage(msg);
+        if (msg.obj instanceof RingBufferQueue) {
+            drain((RingBufferQueue) msg.obj);
+        } else if (msg.obj instanceof PendingQueue) {
+            drain((PendingQueue) msg.obj);
+        } else if (mQueued.remove(msg.obj)) {
+            deliver(msg, msg.getWhen());
+        }
+        return true;
+    }
 
-        if (DEBUG) {
-            logMessageHandling(mMessage);
-        }
-
-        // proces listeners for specified type of message what
-        synchronized (mListenersSpecific) {
-            final List<LocalMessageCallback> whatListofListeners = mListenersSpecific.get(msg.what);
-            if (whatListofListeners != null) {
-                if (whatListofListeners.size() == 0) {
-                    mListenersSpecific.remove(msg.what);
-                } else {
-                    mDefensiveCopyList.clear();
-                    mDefensiveCopyList.addAll(whatListofListeners);
-                    for (final LocalMessageCallback callback : mDefensiveCopyList) {
-                        callback.handleMessage(mMessage);
-                    }
-                }
+    /**
+     * Delivers up to {@link #BATCH_SIZE} messages, then yields the Looper to other work if
+     * more are waiting.
+     */
+    private void drain(@NonNull final RingBufferQueue ring) {
+        ring.clearWakeup();
+        if (mRingMessage == null) {
+            mRingMessage = Message.obtain();
+        }
+        final Message msg = mRingMessage;
+        int count = 0;
+        while (count < BATCH_SIZE && ring.poll(msg)) {
+            // released by close() meanwhile otherwise
+            if (mQueued.remove(msg.obj)) {
+                deliver(msg, ring.getPolledTime());
             }
+            count++;
         }
+        msg.obj = null;
+        if (!ring.isEmpty() && ring.requestWakeup()) {
+            mHandler.sendMessage(mHandler.obtainMessage(0, ring));
+        }
+    }
 
-        // process universal listeners
-        synchronized (mListenersUniversal) {
-            mDefensiveCopyList.clear();
-            mDefensiveCopyList.addAll(mListenersUniversal);
-            for (final LocalMessageCallback callback : mDefensiveCopyList) {
-                callback.handleMessage(mMessage);
+    /**
+     * Delivers up to {@link #BATCH_SIZE} pending messages, then yields the Looper to other work.
+     */
+    private void drain(@NonNull final PendingQueue pendingQueue) {
+        for (int count = 0; count < BATCH_SIZE; count++) {
+            final Message msg = pendingQueue.poll();
+            if (msg == null) {
+                return;
+            }
+            try {
+                deliver(msg, pendingQueue.getPolledTime());
+            } finally {
+                msg.recycle();
             }
-            // leave the list empty - prevent leaks
-            mDefensiveCopyList.clear();
         }
+        // the queue still considers the wake-up pending, post the next one
+        mHandler.sendMessage(mHandler.obtainMessage(0, pendingQueue));
+    }
 
-        mMessage.setMessage(null);
+    private void deliver(@NonNull final Message msg, final long when) {
+        if (msg.obj instanceof MessageBatch) {
+            deliverBatch((MessageBatch) msg.obj, when);
+            msg.obj = null;
+            return;
+        }
+        if (mClosed) {
+            PrimitivePayload.release(msg);
+            return;
+        }
+        final LocalMessageCallback recipient = ListenerRegistry.unwrap(msg, null);
+        final LocalMessage message = obtainLocalMessage();
+        message.setMessage(msg);
 
-        return true;
+        try {
+            if (DEBUG) {
+                logMessageHandling(message);
+            }
+
+            final MetricsSink sink = mMainThreadSink;
+            final long latency = ListenerRegistry.queueLatency(sink, when);
+            final int fanOut = mListeners.deliver(message, recipient, sink);
+            ListenerRegistry.reportDispatched(sink, msg.what, latency, fanOut);
+        } finally {
+            message.setMessage(null);
+            mDispatchDepth--;
+            PrimitivePayload.release(msg);
+        }
     }
 
-    private void logMessageHandling(@NonNull final LocalMessage msg) {
+    /**
+     * Delivers a timed message which is due. It waited in the Looper queue already, so it's
+     * delivered right away instead of being enqueued again.
+     */
+    private void deliverTimed(@NonNull final Message msg) {
+        if (!mTimers.take(msg)) {
+            return;
+        }
+        if (mClosed) {
+            PrimitivePayload.release(msg);
+            return;
+        }
+        final DeliveryLane[] lanes = mLanes;
+        for (final DeliveryLane lane : lanes) {
+            lane.route(msg);
+        }
+        deliver(msg, msg.getWhen());
+    }
 
-        final List<LocalMessageCallback> whatListofListeners = mListenersSpecific.get(msg.getId());
+    /**
+     * Fails requests of a closed manager on its Looper, its request handler ignores everything else.
+     */
+    private void failClosed(@NonNull final ResultCallback<?>... callbacks) {
+        if (callbacks.length == 0) {
+            return;
+        }
+        mRequestHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (final ResultCallback<?> callback : callbacks) {
+                    callback.onError(new IllegalStateException("Manager " + mName + " was closed"));
+                }
+            }
+        });
+    }
 
-        if ((whatListofListeners == null || whatListofListeners.size() == 0) && mListenersUniversal.size() == 0) {
-            Log.w(TAG, "Delivering FAILED for message ID " + msg.getId() + ". No listeners. " + msg.toString());
+    @SuppressWarnings("unchecked")
+    private void handleRequest(@NonNull final Message msg) {
+        if (mClosed) {
+            return;
+        }
+        if (msg.obj == REQUEST_TIMEOUT) {
+            final ResultCallback<?> callback = mReplySlots.release(msg.what);
+            if (callback != null) {
+                callback.onError(new TimeoutException("No result for message ID " + msg.arg1 + " in time"));
+            }
+            return;
+        }
+        final int token = msg.arg1;
+        if (!mReplySlots.isPending(token)) {
+            // timed out already, nobody waits for the result
+            return;
+        }
+        // the token is not part of the request
+        msg.arg1 = 0;
+        final LocalMessageResponder responder;
+        synchronized (mResponders) {
+            responder = mResponders.get(msg.what);
+        }
+        Object result = null;
+        Exception error = null;
+        if (responder == null) {
+            error = new IllegalStateException("No responder for message ID " + msg.what);
         } else {
-            final StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append("Delivering message ID ");
-            stringBuilder.append(msg.getId());
-            stringBuilder.append(", Specific listeners: ");
-            if (whatListofListeners == null || whatListofListeners.size() == 0) {
-                stringBuilder.append(0);
+            final LocalMessage request = obtainLocalMessage();
+            request.setMessage(msg);
+            try {
+                result = responder.handleRequest(request);
+            } catch (final RuntimeException e) {
+                error = e;
+            } finally {
+                request.setMessage(null);
+                mDispatchDepth--;
+            }
+        }
+        mRequestHandler.removeMessages(token, REQUEST_TIMEOUT);
+        final ResultCallback<Object> callback = (ResultCallback<Object>) mReplySlots.release(token);
+        if (callback == null) {
+            return;
+        }
+        if (error == null) {
+            callback.onResult(result);
+        } else {
+            callback.onError(error);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliverEvent(@NonNull final Object event) {
+        if (mClosed) {
+            return;
+        }
+        final TypedCallback<?>[] listeners = mTypeListeners.get(event.getClass());
+        if (DEBUG) {
+            if (listeners.length == 0) {
+                Log.w(TAG, "[" + mName + "] Delivering FAILED for event " + event.getClass().getName() + ". No listeners.");
             } else {
-                stringBuilder.append(whatListofListeners.size());
-                stringBuilder.append(" [");
-                for (int i = 0; i < whatListofListeners.size(); i++) {
-                    stringBuilder.append(whatListofListeners.get(i).getClass().getSimpleName());
-                    if (i < whatListofListeners.size() - 1) {
-                        stringBuilder.append(",");
+                Log.v(TAG, "[" + mName + "] Delivering event " + event.getClass().getName() + " to " + listeners.length + " listeners");
+            }
+        }
+        for (final TypedCallback<?> listener : listeners) {
+            //noinspection unchecked - registered for a supertype of the event
+            ((TypedCallback<Object>) listener).handleEvent(event);
+        }
+    }
+
+    private void deliverBatch(@NonNull final MessageBatch batch, final long when) {
+        if (mClosed) {
+            batch.releasePayloads();
+            return;
+        }
+        final int size = batch.size();
+        if (DEBUG) {
+            Log.v(TAG, "[" + mName + "] Delivering batch of " + size + " messages");
+        }
+
+        // one lookup per distinct ID, indexed like the sorted IDs
+        final int[] ids = batch.getDistinctIds();
+        final LocalMessageCallback[][] listeners = new LocalMessageCallback[ids.length][];
+        final List<LocalMessageCallback> collected = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            collected.clear();
+            mListeners.collect(ids[i], collected);
+            listeners[i] = collected.toArray(new LocalMessageCallback[collected.size()]);
+        }
+
+        // created only if a listener handles batches, each one gets its own messages
+        List<LocalMessageBatchCallback> batchListeners = null;
+        List<List<LocalMessage>> batchMessages = null;
+        LocalMessage[] entryMessages = null;
+
+        final MetricsSink sink = mMainThreadSink;
+        final long latency = ListenerRegistry.queueLatency(sink, when);
+        final Message msg = Message.obtain();
+        final LocalMessage message = obtainLocalMessage();
+        message.setMessage(msg);
+        try {
+            for (int i = 0; i < size; i++) {
+                batch.fill(i, msg);
+                final LocalMessageCallback[] entryListeners = listeners[Arrays.binarySearch(ids, msg.what)];
+                for (final LocalMessageCallback entry : entryListeners) {
+                    final LocalMessageCallback listener = ListenerArrays.unwrap(entry);
+                    if (!(listener instanceof LocalMessageBatchCallback)) {
+                        ListenerRegistry.invoke(entry, message, sink);
+                        continue;
                     }
+                    if (batchListeners == null) {
+                        batchListeners = new ArrayList<>();
+                        batchMessages = new ArrayList<>();
+                        entryMessages = new LocalMessage[size];
+                    }
+                    if (entryMessages[i] == null) {
+                        entryMessages[i] = new LocalMessage(Message.obtain(msg));
+                    }
+                    int index = batchListeners.indexOf(listener);
+                    if (index < 0) {
+                        index = batchListeners.size();
+                        batchListeners.add((LocalMessageBatchCallback) listener);
+                        batchMessages.add(new ArrayList<LocalMessage>());
+                    }
+                    batchMessages.get(index).add(entryMessages[i]);
                 }
-                stringBuilder.append("]");
+                ListenerRegistry.reportDispatched(sink, msg.what, latency, entryListeners.length);
             }
-
-            stringBuilder.append(", Universal listeners: ");
-            synchronized (mListenersUniversal) {
-                if (mListenersUniversal.size() == 0) {
-                    stringBuilder.append(0);
-                } else {
-                    stringBuilder.append(mListenersUniversal.size());
-                    stringBuilder.append(" [");
-                    for (int i = 0; i < mListenersUniversal.size(); i++) {
-                        stringBuilder.append(mListenersUniversal.get(i).getClass().getSimpleName());
-                        if (i < mListenersUniversal.size() - 1) {
-                            stringBuilder.append(",");
-                        }
+            if (batchListeners != null) {
+                for (int i = 0; i < batchListeners.size(); i++) {
+                    batchListeners.get(i).handleBatch(Collections.unmodifiableList(batchMessages.get(i)));
+                }
+            }
+        } finally {
+            message.setMessage(null);
+            mDispatchDepth--;
+            msg.obj = null;
+            msg.recycle();
+            if (entryMessages != null) {
+                for (final LocalMessage entryMessage : entryMessages) {
+                    if (entryMessage != null) {
+                        final Message entry = entryMessage.getMessage();
+                        entryMessage.setMessage(null);
+                        //noinspection ConstantConditions - set on creation
+                        entry.obj = null;
+                        entry.recycle();
                     }
-                    stringBuilder.append("], Message: ");
                 }
             }
+            batch.releasePayloads();
+        }
+    }
+
+    @NonNull
+    private LocalMessage obtainLocalMessage() {
+        if (mDispatchDepth == mMessages.length) {
+            final LocalMessage[] messages = new LocalMessage[mMessages.length * 2];
+            System.arraycopy(mMessages, 0, messages, 0, mMessages.length);
+            for (int i = mMessages.length; i < messages.length; i++) {
+                messages[i] = new LocalMessage(null);
+            }
+            mMessages = messages;
+        }
+        return mMessages[mDispatchDepth++];
+    }
+
+    private void logMessageHandling(@NonNull final LocalMessage msg) {
+
+        final LocalMessageCallback[] specific = ListenerArrays.nonNull(mListeners.getSpecific(msg.getId()));
+        final LocalMessageCallback[] universal = mListeners.getUniversal();
+
+        if (specific.length == 0 && universal.length == 0) {
+            Log.w(TAG, "[" + mName + "] Delivering FAILED for message ID " + msg.getId() + ". No listeners. " + msg.toString());
+        } else {
+            final StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append('[').append(mName).append("] Delivering message ID ");
+            stringBuilder.append(msg.getId());
+            stringBuilder.append(", Specific listeners: ");
+            appendListeners(stringBuilder, specific);
+            stringBuilder.append(", Universal listeners: ");
+            appendListeners(stringBuilder, universal);
+            stringBuilder.append(", Message: ");
             stringBuilder.append(msg.toString());
 
             Log.v(TAG, stringBuilder.toString());
         }
     }
 
-}
\ No newline at end of file
+    private static void appendListeners(@NonNull final StringBuilder stringBuilder, @NonNull final LocalMessageCallback[] listeners) {
+        stringBuilder.append(listeners.length);
+        if (listeners.length == 0) {
+            return;
+        }
+        stringBuilder.append(" [");
+        for (int i = 0; i < listeners.length; i++) {
+            stringBuilder.append(listeners[i].getClass().getSimpleName());
+            if (i < listeners.length - 1) {
+                stringBuilder.append(",");
+            }
+        }
+        stringBuilder.append("]");
+    }
+
+}
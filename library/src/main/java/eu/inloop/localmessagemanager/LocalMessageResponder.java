@@ -0,0 +1,20 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Answers requests sent by {@link LocalMessageManager#sendForResult(int, Object, long, ResultCallback)}.
+ * A message ID has at most one responder.
+ */
+public interface LocalMessageResponder {
+
+    /**
+     * This method is executed on the thread of the manager's Looper - the UI thread by default.
+     * Exceptions thrown here are passed to {@link ResultCallback#onError(Exception)}.
+     * @param request request message, only valid inside this method
+     * @return result passed to {@link ResultCallback#onResult(Object)}
+     */
+    @Nullable
+    Object handleRequest(@NonNull LocalMessage request);
+}
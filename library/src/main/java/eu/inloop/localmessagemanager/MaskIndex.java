@@ -0,0 +1,184 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of mask subscriptions - a listener receives every ID for which {@code (id & mask) == value}.
+ * <p>
+ * Subscriptions are grouped by mask, every group is an {@link IntListenerMap} keyed by the value.
+ * A lookup costs one hash lookup per distinct mask, regardless of the number of listeners.
+ * Reads are lock-free, writers must hold the registry lock.
+ */
+final class MaskIndex {
+
+    private static final class Group {
+        final int mask;
+        @NonNull
+        final IntListenerMap listeners = new IntListenerMap();
+
+        Group(final int mask) {
+            this.mask = mask;
+        }
+    }
+
+    @NonNull
+    private static final Group[] NO_GROUPS = new Group[0];
+
+    @NonNull
+    private volatile Group[] mGroups = NO_GROUPS;
+
+    /**
+     * @return false if the listener was already subscribed to the mask and value
+     */
+    boolean add(final int mask, final int value, @NonNull final LocalMessageCallback listener) {
+        Group group = findGroup(mask);
+        if (group == null) {
+            group = new Group(mask);
+            final Group[] groups = new Group[mGroups.length + 1];
+            System.arraycopy(mGroups, 0, groups, 0, mGroups.length);
+            groups[mGroups.length] = group;
+            mGroups = groups;
+        }
+        final LocalMessageCallback[] callbacks = group.listeners.get(value & mask);
+        if (callbacks == null) {
+            group.listeners.put(value & mask, new LocalMessageCallback[]{listener});
+        } else if (ListenerArrays.indexOf(callbacks, listener) < 0) {
+            group.listeners.put(value & mask, ListenerArrays.append(callbacks, listener));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the listener was not subscribed to the mask and value
+     */
+    boolean remove(final int mask, final int value, @NonNull final LocalMessageCallback listener) {
+        final Group group = findGroup(mask);
+        if (group == null) {
+            return false;
+        }
+        final LocalMessageCallback[] callbacks = group.listeners.get(value & mask);
+        if (callbacks == null || ListenerArrays.indexOf(callbacks, listener) < 0) {
+            return false;
+        }
+        if (callbacks.length == 1) {
+            group.listeners.remove(value & mask);
+            if (group.listeners.size() == 0) {
+                removeGroup(group);
+            }
+        } else {
+            group.listeners.put(value & mask, ListenerArrays.remove(callbacks, listener));
+        }
+        return true;
+    }
+
+    /**
+     * Removes the listener from all subscriptions.
+     *
+     * @return false if the listener was not subscribed
+     */
+    boolean removeAll(@NonNull final LocalMessageCallback listener) {
+        boolean removed = false;
+        for (final Group group : mGroups) {
+            removed |= removeFromGroup(group, listener);
+        }
+        return removed;
+    }
+
+    /**
+     * @return mask and value pairs the listener is subscribed to
+     */
+    @NonNull
+    List<int[]> getSubscriptions(@NonNull final LocalMessageCallback listener) {
+        final List<int[]> subscriptions = new ArrayList<>();
+        for (final Group group : mGroups) {
+            for (final int value : group.listeners.keys()) {
+                final LocalMessageCallback[] callbacks = group.listeners.get(value);
+                if (callbacks != null && ListenerArrays.indexOf(callbacks, listener) >= 0) {
+                    subscriptions.add(new int[]{group.mask, value});
+                }
+            }
+        }
+        return subscriptions;
+    }
+
+    boolean isEmpty() {
+        return mGroups.length == 0;
+    }
+
+    /**
+     * Visits listeners of every mask group matching the ID.
+     *
+     * @return number of listeners the message was delivered to
+     */
+    int deliver(@NonNull final LocalMessage message, @Nullable final MetricsSink sink) {
+        final int id = message.getId();
+        final Group[] groups = mGroups;
+        int count = 0;
+        for (final Group group : groups) {
+            final LocalMessageCallback[] callbacks = group.listeners.get(id & group.mask);
+            if (callbacks != null) {
+                for (final LocalMessageCallback callback : callbacks) {
+                    ListenerRegistry.invoke(callback, message, sink);
+                }
+                count += callbacks.length;
+            }
+        }
+        return count;
+    }
+
+    void collect(final int id, @NonNull final List<LocalMessageCallback> listeners) {
+        for (final Group group : mGroups) {
+            final LocalMessageCallback[] callbacks = group.listeners.get(id & group.mask);
+            if (callbacks != null) {
+                Collections.addAll(listeners, callbacks);
+            }
+        }
+    }
+
+    boolean hasListeners(final int id) {
+        for (final Group group : mGroups) {
+            if (group.listeners.get(id & group.mask) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean removeFromGroup(@NonNull final Group group, @NonNull final LocalMessageCallback listener) {
+        final int[] values = group.listeners.keys();
+        boolean removed = false;
+        for (final int value : values) {
+            removed |= remove(group.mask, value, listener);
+        }
+        return removed;
+    }
+
+    @Nullable
+    private Group findGroup(final int mask) {
+        for (final Group group : mGroups) {
+            if (group.mask == mask) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private void removeGroup(@NonNull final Group group) {
+        final Group[] groups = mGroups;
+        final Group[] newGroups = new Group[groups.length - 1];
+        int i = 0;
+        for (final Group g : groups) {
+            if (g != group) {
+                newGroups[i++] = g;
+            }
+        }
+        mGroups = newGroups;
+    }
+}
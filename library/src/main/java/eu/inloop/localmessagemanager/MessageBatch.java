@@ -0,0 +1,200 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Messages sent together by {@link LocalMessageManager#sendBatch(MessageBatch)}. The whole batch
+ * is a single Looper message, its entries are delivered in order within one handleMessage() pass.
+ * Entries are kept in primitive arrays, a batch is sent once and must not be changed afterwards.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class MessageBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize;
+
+    @NonNull
+    private int[] mIds;
+
+    @NonNull
+    private int[] mArgs1;
+
+    @NonNull
+    private int[] mArgs2;
+
+    @NonNull
+    private Object[] mObjects;
+
+    private boolean mSent;
+
+    public MessageBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity - expected number of messages
+     */
+    public MessageBatch(final int capacity) {
+        final int initial = Math.max(1, capacity);
+        mIds = new int[initial];
+        mArgs1 = new int[initial];
+        mArgs2 = new int[initial];
+        mObjects = new Object[initial];
+    }
+
+    /**
+     * Adds an empty message containing only the message ID.
+     * @param id - message ID
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id) {
+        return add(id, 0, 0, null);
+    }
+
+    /**
+     * Adds a message containing the ID and one integer argument.
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id, final int arg1) {
+        return add(id, arg1, 0, null);
+    }
+
+    /**
+     * Adds a message containing the ID and two integer arguments.
+     * @param id - message ID
+     * @param arg1 - integer argument
+     * @param arg2 - integer argument
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id, final int arg1, final int arg2) {
+        return add(id, arg1, arg2, null);
+    }
+
+    /**
+     * Adds a message containing the ID and a long argument.
+     * @param id - message ID
+     * @param value - long argument
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id, final long value) {
+        return add(id, 0, 0, PrimitivePayload.obtain(value, 0, 0));
+    }
+
+    /**
+     * Adds a message containing the ID and a double argument.
+     * @param id - message ID
+     * @param value - double argument
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id, final double value) {
+        return add(id, 0, 0, PrimitivePayload.obtain(0, 0, value));
+    }
+
+    /**
+     * Adds a message containing the ID and an arbitrary Object.
+     * @param id - message ID
+     * @param payload - arbitrary object, a {@link PooledBuffer} is released after delivery
+     * @return this instance
+     */
+    @NonNull
+    public MessageBatch add(final int id, @NonNull final Object payload) {
+        return add(id, 0, 0, payload);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @NonNull
+    private MessageBatch add(final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+        if (mSent) {
+            PrimitivePayload.releaseUndelivered(obj);
+            throw new IllegalStateException("Batch was already sent");
+        }
+        if (mSize == mIds.length) {
+            final int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mArgs1 = Arrays.copyOf(mArgs1, capacity);
+            mArgs2 = Arrays.copyOf(mArgs2, capacity);
+            mObjects = Arrays.copyOf(mObjects, capacity);
+        }
+        mIds[mSize] = id;
+        mArgs1[mSize] = arg1;
+        mArgs2[mSize] = arg2;
+        mObjects[mSize] = obj;
+        mSize++;
+        return this;
+    }
+
+    void markSent() {
+        if (mSent) {
+            throw new IllegalStateException("Batch was already sent");
+        }
+        mSent = true;
+    }
+
+    int getId(final int index) {
+        return mIds[index];
+    }
+
+    int getArg1(final int index) {
+        return mArgs1[index];
+    }
+
+    int getArg2(final int index) {
+        return mArgs2[index];
+    }
+
+    @Nullable
+    Object getObject(final int index) {
+        return mObjects[index];
+    }
+
+    /**
+     * Sets the values of the entry to the message, which shares the entry's payload.
+     */
+    void fill(final int index, @NonNull final Message msg) {
+        msg.what = mIds[index];
+        msg.arg1 = mArgs1[index];
+        msg.arg2 = mArgs2[index];
+        msg.obj = mObjects[index];
+    }
+
+    /**
+     * @return sorted IDs of the entries, each once
+     */
+    @NonNull
+    int[] getDistinctIds() {
+        final int[] ids = Arrays.copyOf(mIds, mSize);
+        Arrays.sort(ids);
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) {
+                ids[count++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Returns payload carriers to their pools once the batch was delivered or dropped.
+     */
+    void releasePayloads() {
+        for (int i = 0; i < mSize; i++) {
+            PrimitivePayload.releaseUndelivered(mObjects[i]);
+            mObjects[i] = null;
+        }
+    }
+}
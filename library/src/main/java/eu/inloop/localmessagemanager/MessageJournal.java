@@ -0,0 +1,517 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Append-only journal of selected messages in memory-mapped segment files. Pages of a mapped file
+ * are written to disk by the system even if the process dies, so messages sent before a crash can
+ * be recovered with {@link #replay(long, float)}, and recorded traffic can be played back in tests.
+ * <p>
+ * Senders only copy the message values into a staging batch, a journal thread encodes the payloads
+ * and writes the batch. Records are addressed by offsets growing over all segments, the oldest
+ * segments are deleted once there are more than the maximum.
+ * Install it by {@link LocalMessageManager#setJournal(MessageJournal)}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class MessageJournal {
+
+    /**
+     * Converts payload objects of recorded messages to bytes and back. Long and double arguments
+     * are recorded without it. Called on the journal thread and the replaying thread.
+     */
+    public interface Codec {
+
+        /**
+         * @return null to record the message without its payload
+         */
+        @Nullable
+        byte[] encode(int id, @NonNull Object payload);
+
+        @NonNull
+        Object decode(int id, @NonNull byte[] data);
+    }
+
+    @NonNull
+    private static final String TAG = "MessageJournal";
+
+    @NonNull
+    private static final String SUFFIX = ".journal";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final byte TYPE_NONE = 0;
+
+    private static final byte TYPE_OBJECT = 1;
+
+    private static final byte TYPE_PRIMITIVE = 2;
+
+    /**
+     * Length, time, ID, arg1, arg2 and payload type.
+     */
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4 + 1;
+
+    private static final int PRIMITIVE_SIZE = 8 + 8 + 8;
+
+    @NonNull
+    private final File mDirectory;
+
+    @NonNull
+    private final Codec mCodec;
+
+    private final int mSegmentSize;
+
+    private final int mMaxSegments;
+
+    /**
+     * Sorted IDs of recorded messages, replaced as a whole.
+     */
+    @NonNull
+    private volatile int[] mIds = new int[0];
+
+    @Nullable
+    private volatile LocalMessageManager mManager;
+
+    /**
+     * Offset behind the last record written to the mapped segment.
+     */
+    private volatile long mEndOffset;
+
+    /**
+     * Filled by senders, guarded by this.
+     */
+    @NonNull
+    private Batch mFilling = new Batch();
+
+    /**
+     * Written by the journal thread, guarded by this while swapped.
+     */
+    @NonNull
+    private Batch mWriting = new Batch();
+
+    private boolean mClosed;
+
+    @NonNull
+    private final Thread mThread;
+
+    // journal thread only
+    @NonNull
+    private RandomAccessFile mFile;
+
+    @NonNull
+    private MappedByteBuffer mSegment;
+
+    private long mSegmentBase;
+
+    /**
+     * Journal with 1 MB segments, keeping at most 8 of them.
+     * @param directory - directory of the segment files, used by this journal only
+     * @param codec - payload codec
+     */
+    public MessageJournal(@NonNull final File directory, @NonNull final Codec codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param directory - directory of the segment files, used by this journal only
+     * @param codec - payload codec
+     * @param segmentSize - size of a segment file in bytes, a record has to fit in it
+     * @param maxSegments - number of segment files kept, the oldest are deleted
+     */
+    public MessageJournal(@NonNull final File directory, @NonNull final Codec codec, final int segmentSize,
+                          final int maxSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE || maxSegments <= 0) {
+            throw new IllegalArgumentException("Invalid segment size or count");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+        mDirectory = directory;
+        mCodec = codec;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+
+        final File[] segments = segments();
+        if (segments.length == 0) {
+            openSegment(0, segmentSize);
+        } else {
+            // continue after the last record written before the process stopped
+            final File last = segments[segments.length - 1];
+            openSegment(baseOf(last), (int) last.length());
+            int position = 0;
+            while (position + 4 <= mSegment.limit()) {
+                final int length = mSegment.getInt(position);
+                if (length <= 0 || position + length > mSegment.limit()) {
+                    break;
+                }
+                position += length;
+            }
+            mSegment.position(position);
+        }
+        mEndOffset = mSegmentBase + mSegment.position();
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "LocalMessageManager-journal");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Records messages with these IDs from now on, in addition to the ones already recorded.
+     * @param ids - message IDs
+     * @return this instance
+     */
+    @NonNull
+    public synchronized MessageJournal record(@NonNull final int... ids) {
+        final int[] recorded = Arrays.copyOf(mIds, mIds.length + ids.length);
+        System.arraycopy(ids, 0, recorded, mIds.length, ids.length);
+        Arrays.sort(recorded);
+        mIds = recorded;
+        return this;
+    }
+
+    /**
+     * @return offset behind the last record written, pass it to {@link #replay(long, float)} to
+     * replay only messages recorded later
+     */
+    public long getEndOffset() {
+        return mEndOffset;
+    }
+
+    /**
+     * Sends the messages recorded from the offset until now again, through the normal dispatch of
+     * the manager the journal is installed in. Replayed messages are not recorded again.
+     * Blocks until all of them are sent, call it on a background thread.
+     * @param fromOffset - 0 to replay all kept records
+     * @param speed - multiple of the recorded pace, 0 to send the messages without any pauses
+     * @return offset behind the last replayed record
+     */
+    @WorkerThread
+    public long replay(final long fromOffset, final float speed) throws IOException, InterruptedException {
+        final LocalMessageManager manager = mManager;
+        if (manager == null) {
+            throw new IllegalStateException("Journal is not installed in a manager");
+        }
+        final long end = mEndOffset;
+        long offset = fromOffset;
+        long lastTime = 0;
+        for (final File file : segments()) {
+            final long base = baseOf(file);
+            final long size = file.length();
+            if (base + size <= offset) {
+                continue;
+            }
+            if (base >= end) {
+                break;
+            }
+            final MappedByteBuffer segment;
+            final RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                segment = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                input.close();
+            }
+            final int limit = (int) Math.min(size, end - base);
+            int position = (int) Math.max(0, offset - base);
+            while (position + 4 <= limit) {
+                final int length = segment.getInt(position);
+                if (length <= 0 || position + length > limit) {
+                    break;
+                }
+                final long time = segment.getLong(position + 4);
+                if (speed > 0 && lastTime != 0 && time > lastTime) {
+                    Thread.sleep((long) ((time - lastTime) / speed));
+                }
+                lastTime = time;
+                replay(manager, segment, position, length);
+                position += length;
+            }
+            // the rest of a full segment is empty, the next record is in the next segment
+            offset = end > base + size ? base + size : base + position;
+        }
+        return offset;
+    }
+
+    /**
+     * Writes the waiting messages, stops the journal thread and closes the segment.
+     * Messages sent afterwards are not recorded.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        mThread.join();
+    }
+
+    synchronized void attach(@Nullable final LocalMessageManager manager) {
+        if (manager != null && mManager != null) {
+            throw new IllegalStateException("Journal is already installed in a manager");
+        }
+        mManager = manager;
+    }
+
+    /**
+     * Stages the message if its ID is recorded. Called by senders on any thread.
+     */
+    void append(final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+        if (Arrays.binarySearch(mIds, id) < 0) {
+            return;
+        }
+        final long time = System.currentTimeMillis();
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mFilling.add(time, id, arg1, arg2, obj);
+            if (mFilling.mCount == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeBatches() {
+        try {
+            while (true) {
+                final Batch batch;
+                synchronized (this) {
+                    while (mFilling.mCount == 0 && !mClosed) {
+                        wait();
+                    }
+                    if (mFilling.mCount == 0) {
+                        break;
+                    }
+                    batch = mFilling;
+                    mFilling = mWriting;
+                    mWriting = batch;
+                }
+                for (int i = 0; i < batch.mCount; i++) {
+                    write(batch, i);
+                }
+                batch.clear();
+                mEndOffset = mSegmentBase + mSegment.position();
+            }
+            mSegment.force();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            Log.e(TAG, "Journal stopped, writing failed", e);
+            synchronized (this) {
+                mClosed = true;
+            }
+        } finally {
+            try {
+                mFile.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    private void write(@NonNull final Batch batch, final int index) throws IOException {
+        final int id = batch.mIds[index];
+        byte type = batch.mTypes[index];
+        byte[] data = null;
+        if (type == TYPE_OBJECT) {
+            //noinspection ConstantConditions - set for this type
+            data = mCodec.encode(id, batch.mPayloads[index]);
+            if (data == null) {
+                type = TYPE_NONE;
+            }
+        }
+        final int length = HEADER_SIZE + (data != null ? data.length : type == TYPE_PRIMITIVE ? PRIMITIVE_SIZE : 0);
+        if (length > mSegmentSize) {
+            Log.w(TAG, "Message ID " + id + " is larger than a journal segment, not recorded");
+            return;
+        }
+        if (mSegment.remaining() < length) {
+            rotate();
+        }
+
+        final int position = mSegment.position();
+        mSegment.position(position + 4);
+        mSegment.putLong(batch.mTimes[index]);
+        mSegment.putInt(id);
+        mSegment.putInt(batch.mArgs1[index]);
+        mSegment.putInt(batch.mArgs2[index]);
+        mSegment.put(type);
+        if (data != null) {
+            mSegment.put(data);
+        } else if (type == TYPE_PRIMITIVE) {
+            mSegment.putLong(batch.mLongs1[index]);
+            mSegment.putLong(batch.mLongs2[index]);
+            mSegment.putDouble(batch.mDoubles[index]);
+        }
+        // the length goes last, a record cut off by a crash ends the segment instead of corrupting it
+        mSegment.putInt(position, length);
+    }
+
+    private void rotate() throws IOException {
+        mSegment.force();
+        mFile.close();
+        openSegment(mSegmentBase + mSegment.capacity(), mSegmentSize);
+        final File[] segments = segments();
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            if (!segments[i].delete()) {
+                Log.w(TAG, "Can't delete journal segment " + segments[i]);
+            }
+        }
+    }
+
+    private void openSegment(final long base, final int size) throws IOException {
+        mFile = new RandomAccessFile(new File(mDirectory, String.format(Locale.US, "%020d", base) + SUFFIX), "rw");
+        mSegment = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mSegmentBase = base;
+    }
+
+    private void replay(@NonNull final LocalMessageManager manager, @NonNull final MappedByteBuffer segment,
+                        final int position, final int length) {
+        final int id = segment.getInt(position + 12);
+        final int arg1 = segment.getInt(position + 16);
+        final int arg2 = segment.getInt(position + 20);
+        final byte type = segment.get(position + 24);
+        Object payload = null;
+        if (type == TYPE_PRIMITIVE) {
+            payload = PrimitivePayload.obtain(segment.getLong(position + HEADER_SIZE), segment.getLong(position + HEADER_SIZE + 8),
+                    segment.getDouble(position + HEADER_SIZE + 16));
+        } else if (type == TYPE_OBJECT) {
+            final byte[] data = new byte[length - HEADER_SIZE];
+            segment.position(position + HEADER_SIZE);
+            segment.get(data);
+            payload = mCodec.decode(id, data);
+        }
+        manager.enqueueReplayed(id, arg1, arg2, payload);
+    }
+
+    /**
+     * @return segment files, oldest first
+     */
+    @NonNull
+    private File[] segments() {
+        final File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // names are zero padded offsets
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File first, final File second) {
+                return first.getName().compareTo(second.getName());
+            }
+        });
+        return files;
+    }
+
+    private static long baseOf(@NonNull final File segment) {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Values of staged messages in parallel arrays, payload carriers are not kept.
+     */
+    private static final class Batch {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        int mCount;
+
+        @NonNull
+        long[] mTimes = new long[INITIAL_CAPACITY];
+
+        @NonNull
+        int[] mIds = new int[INITIAL_CAPACITY];
+
+        @NonNull
+        int[] mArgs1 = new int[INITIAL_CAPACITY];
+
+        @NonNull
+        int[] mArgs2 = new int[INITIAL_CAPACITY];
+
+        @NonNull
+        byte[] mTypes = new byte[INITIAL_CAPACITY];
+
+        @NonNull
+        Object[] mPayloads = new Object[INITIAL_CAPACITY];
+
+        @NonNull
+        long[] mLongs1 = new long[INITIAL_CAPACITY];
+
+        @NonNull
+        long[] mLongs2 = new long[INITIAL_CAPACITY];
+
+        @NonNull
+        double[] mDoubles = new double[INITIAL_CAPACITY];
+
+        void add(final long time, final int id, final int arg1, final int arg2, @Nullable final Object obj) {
+            if (mCount == mIds.length) {
+                grow();
+            }
+            mTimes[mCount] = time;
+            mIds[mCount] = id;
+            mArgs1[mCount] = arg1;
+            mArgs2[mCount] = arg2;
+            if (obj instanceof PrimitivePayload) {
+                // the carrier is recycled after delivery, keep its values
+                final PrimitivePayload payload = (PrimitivePayload) obj;
+                mTypes[mCount] = TYPE_PRIMITIVE;
+                mLongs1[mCount] = payload.long1;
+                mLongs2[mCount] = payload.long2;
+                mDoubles[mCount] = payload.double1;
+            } else {
+                if (obj instanceof PooledBuffer) {
+                    // released after encoding, the queues release their own references
+                    ((PooledBuffer) obj).retain();
+                }
+                mTypes[mCount] = obj != null ? TYPE_OBJECT : TYPE_NONE;
+                mPayloads[mCount] = obj;
+            }
+            mCount++;
+        }
+
+        void clear() {
+            for (int i = 0; i < mCount; i++) {
+                if (mPayloads[i] instanceof PooledBuffer) {
+                    ((PooledBuffer) mPayloads[i]).release();
+                }
+            }
+            Arrays.fill(mPayloads, 0, mCount, null);
+            mCount = 0;
+        }
+
+        private void grow() {
+            final int capacity = mIds.length * 2;
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mArgs1 = Arrays.copyOf(mArgs1, capacity);
+            mArgs2 = Arrays.copyOf(mArgs2, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mPayloads = Arrays.copyOf(mPayloads, capacity);
+            mLongs1 = Arrays.copyOf(mLongs1, capacity);
+            mLongs2 = Arrays.copyOf(mLongs2, capacity);
+            mDoubles = Arrays.copyOf(mDoubles, capacity);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Delayed, debounced and throttled sends. Timed messages wait in the Looper queue itself, each mode
+ * on its own Handler, so that the messages of one mode and ID are removed without touching the
+ * others. The state of an ID is kept in primitive arrays and its handles are created once, so
+ * sending allocates nothing but the pooled Message. A replaced or cancelled payload is returned to
+ * its pool.
+ */
+final class MessageTimers {
+
+    static final int DELAYED = 0;
+
+    static final int DEBOUNCED = 1;
+
+    static final int THROTTLED = 2;
+
+    private static final int MODES = 3;
+
+    @NonNull
+    private final Handler[] mHandlers = new Handler[MODES];
+
+    /**
+     * Sorted IDs which were sent timed, the other arrays are indexed the same way. Guarded by this.
+     */
+    @NonNull
+    private int[] mIds = new int[0];
+
+    /**
+     * Uptime from which the next throttled message of the ID may be delivered.
+     */
+    @NonNull
+    private long[] mNextTimes = new long[0];
+
+    /**
+     * Pooled payloads of the delayed messages of the ID, created with the first one.
+     */
+    @NonNull
+    private QueuedPayloads[] mDelayedPayloads = new QueuedPayloads[0];
+
+    /**
+     * Handles of the ID and mode, at index * MODES + mode like the arrays below.
+     */
+    @NonNull
+    private ScheduledSend[] mSends = new ScheduledSend[0];
+
+    /**
+     * Number of waiting messages, at most one unless delayed.
+     */
+    @NonNull
+    private int[] mPendingCounts = new int[0];
+
+    /**
+     * Carried by the messages as arg1, increased when the waiting messages are removed, so that a
+     * message taken from the queue meanwhile is recognized as stale.
+     */
+    @NonNull
+    private int[] mGenerations = new int[0];
+
+    /**
+     * Payload of the waiting debounced or trailing message, delayed messages carry their own.
+     */
+    @NonNull
+    private Object[] mPayloads = new Object[0];
+
+    /**
+     * @param callback - delivers the due messages, see {@link #take(Message)}
+     */
+    MessageTimers(@NonNull final Looper looper, @NonNull final Handler.Callback callback) {
+        for (int mode = 0; mode < MODES; mode++) {
+            mHandlers[mode] = new Handler(looper, callback);
+        }
+    }
+
+    @NonNull
+    synchronized ScheduledSend sendDelayed(final int id, @Nullable final Object payload, final long delayMillis) {
+        final int index = indexOf(id);
+        final int slot = index * MODES + DELAYED;
+        if (QueuedPayloads.isReleasable(payload)) {
+            if (mDelayedPayloads[index] == null) {
+                mDelayedPayloads[index] = new QueuedPayloads();
+            }
+            mDelayedPayloads[index].add(payload);
+        }
+        mPendingCounts[slot]++;
+        mHandlers[DELAYED].sendMessageDelayed(obtainMessage(DELAYED, id, slot, payload), delayMillis);
+        return getSendAt(index, DELAYED);
+    }
+
+    /**
+     * Replaces the waiting debounced message of the ID, if any, and restarts the window.
+     */
+    @NonNull
+    synchronized ScheduledSend sendDebounced(final int id, @Nullable final Object payload, final long windowMillis) {
+        final int index = indexOf(id);
+        final int slot = index * MODES + DEBOUNCED;
+        removeMessages(index, DEBOUNCED);
+        mPayloads[slot] = payload;
+        mPendingCounts[slot] = 1;
+        mHandlers[DEBOUNCED].sendMessageDelayed(obtainMessage(DEBOUNCED, id, slot, null), windowMillis);
+        return getSendAt(index, DEBOUNCED);
+    }
+
+    /**
+     * Lets the first message of an interval through and keeps the latest of the others for the
+     * end of the interval.
+     * @return false if the caller has to send the message right away
+     */
+    synchronized boolean sendThrottled(final int id, @Nullable final Object payload, final long intervalMillis) {
+        final int index = indexOf(id);
+        final int slot = index * MODES + THROTTLED;
+        if (mPendingCounts[slot] != 0) {
+            // the trailing message keeps its time, only its payload is replaced
+            PrimitivePayload.releaseUndelivered(mPayloads[slot]);
+            mPayloads[slot] = payload;
+            return true;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long next = mNextTimes[index];
+        if (now >= next) {
+            mNextTimes[index] = now + intervalMillis;
+            return false;
+        }
+        mPayloads[slot] = payload;
+        mPendingCounts[slot] = 1;
+        mHandlers[THROTTLED].sendMessageAtTime(obtainMessage(THROTTLED, id, slot, null), next);
+        mNextTimes[index] = next + intervalMillis;
+        return true;
+    }
+
+    /**
+     * Replaces the timer values of a due message by its payload.
+     * @return false if the message was cancelled or replaced while being taken from the queue
+     */
+    synchronized boolean take(@NonNull final Message msg) {
+        final int generation = msg.arg1;
+        final int mode = msg.arg2;
+        msg.arg1 = 0;
+        msg.arg2 = 0;
+        final int index = Arrays.binarySearch(mIds, msg.what);
+        final int slot = index * MODES + mode;
+        if (mGenerations[slot] != generation) {
+            // a delayed payload was released together with the other cancelled ones
+            msg.obj = null;
+            return false;
+        }
+        mPendingCounts[slot]--;
+        if (mode == DELAYED) {
+            if (mDelayedPayloads[index] != null) {
+                mDelayedPayloads[index].remove(msg.obj);
+            }
+        } else {
+            msg.obj = mPayloads[slot];
+            mPayloads[slot] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the waiting messages of the ID and mode.
+     */
+    synchronized void cancel(final int id, final int mode) {
+        final int index = Arrays.binarySearch(mIds, id);
+        if (index >= 0) {
+            removeMessages(index, mode);
+        }
+    }
+
+    synchronized void cancel(final int id) {
+        final int index = Arrays.binarySearch(mIds, id);
+        if (index >= 0) {
+            for (int mode = 0; mode < MODES; mode++) {
+                removeMessages(index, mode);
+            }
+        }
+    }
+
+    synchronized void cancelAll() {
+        for (int index = 0; index < mIds.length; index++) {
+            for (int mode = 0; mode < MODES; mode++) {
+                removeMessages(index, mode);
+            }
+        }
+    }
+
+    synchronized boolean isPending(final int id, final int mode) {
+        final int index = Arrays.binarySearch(mIds, id);
+        return index >= 0 && mPendingCounts[index * MODES + mode] != 0;
+    }
+
+    /**
+     * @return handle of the ID and mode, not pending if the ID has no waiting message of the mode
+     */
+    @NonNull
+    synchronized ScheduledSend getSend(final int id, final int mode) {
+        return getSendAt(indexOf(id), mode);
+    }
+
+    @NonNull
+    private ScheduledSend getSendAt(final int index, final int mode) {
+        final int slot = index * MODES + mode;
+        if (mSends[slot] == null) {
+            mSends[slot] = new ScheduledSend(this, mIds[index], mode);
+        }
+        return mSends[slot];
+    }
+
+    @NonNull
+    private Message obtainMessage(final int mode, final int id, final int slot, @Nullable final Object payload) {
+        return mHandlers[mode].obtainMessage(id, mGenerations[slot], mode, payload);
+    }
+
+    /**
+     * Removes the waiting messages of the ID and mode and releases their payloads.
+     */
+    private void removeMessages(final int index, final int mode) {
+        final int slot = index * MODES + mode;
+        if (mPendingCounts[slot] == 0) {
+            return;
+        }
+        mHandlers[mode].removeMessages(mIds[index]);
+        mGenerations[slot]++;
+        mPendingCounts[slot] = 0;
+        if (mode == DELAYED) {
+            if (mDelayedPayloads[index] != null) {
+                mDelayedPayloads[index].releaseAll();
+            }
+        } else {
+            PrimitivePayload.releaseUndelivered(mPayloads[slot]);
+            mPayloads[slot] = null;
+        }
+    }
+
+    /**
+     * @return index of the ID, added on the first call
+     */
+    private int indexOf(final int id) {
+        final int index = Arrays.binarySearch(mIds, id);
+        if (index >= 0) {
+            return index;
+        }
+        final int insert = -index - 1;
+        mIds = insert(mIds, insert, 1);
+        mIds[insert] = id;
+        mNextTimes = insert(mNextTimes, insert);
+        mDelayedPayloads = insert(mDelayedPayloads, insert, 1);
+        mSends = insert(mSends, insert * MODES, MODES);
+        mPendingCounts = insert(mPendingCounts, insert * MODES, MODES);
+        mGenerations = insert(mGenerations, insert * MODES, MODES);
+        mPayloads = insert(mPayloads, insert * MODES, MODES);
+        return insert;
+    }
+
+    /**
+     * @return copy of the array with count zeros inserted at the position
+     */
+    @NonNull
+    private static int[] insert(@NonNull final int[] array, final int position, final int count) {
+        final int[] result = new int[array.length + count];
+        System.arraycopy(array, 0, result, 0, position);
+        System.arraycopy(array, position, result, position + count, array.length - position);
+        return result;
+    }
+
+    @NonNull
+    private static long[] insert(@NonNull final long[] array, final int position) {
+        final long[] result = new long[array.length + 1];
+        System.arraycopy(array, 0, result, 0, position);
+        System.arraycopy(array, position, result, position + 1, array.length - position);
+        return result;
+    }
+
+    @NonNull
+    private static <T> T[] insert(@NonNull final T[] array, final int position, final int count) {
+        final T[] result = Arrays.copyOf(array, array.length + count);
+        System.arraycopy(array, position, result, position + count, array.length - position);
+        Arrays.fill(result, position, position + count, null);
+        return result;
+    }
+}
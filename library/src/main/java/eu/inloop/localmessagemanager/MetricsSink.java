@@ -0,0 +1,31 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives delivery measurements, see {@link LocalMessageManager#setMetricsSink(MetricsSink)}.
+ * <p>
+ * Methods are called on the delivering threads, right in the dispatch loop - implementations
+ * must be thread-safe, fast and should not allocate. {@link DeliveryMetrics} is the default
+ * implementation.
+ */
+public interface MetricsSink {
+
+    /**
+     * Called after a message was delivered to all its listeners.
+     * @param id - message ID
+     * @param queueLatencyMillis - time from sending the message until its delivery started, for background
+     *                           lanes until the lane's executor or Looper ran it. 0 for messages which
+     *                           didn't pass through any queue.
+     * @param fanOut - number of listeners the message was delivered to
+     */
+    void onMessageDispatched(int id, long queueLatencyMillis, int fanOut);
+
+    /**
+     * Called after a listener handled a message.
+     * @param id - message ID
+     * @param listener - the listener
+     * @param durationNanos - time spent in {@link LocalMessageCallback#handleMessage(LocalMessage)}
+     */
+    void onListenerHandled(int id, @NonNull LocalMessageCallback listener, long durationNanos);
+}
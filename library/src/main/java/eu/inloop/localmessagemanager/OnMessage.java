@@ -0,0 +1,28 @@
+package eu.inloop.localmessagemanager;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method receiving messages with the given IDs. The annotation processor generates a
+ * {@code <Class>_MessageSubscriber} listener which registers all IDs of the class at once and
+ * calls the methods directly, without reflection:
+ * <pre>
+ * mSubscriber = MainActivity_MessageSubscriber.register(LocalMessageManager.getInstance(), this);
+ * ...
+ * mSubscriber.unregister(LocalMessageManager.getInstance());
+ * </pre>
+ * Supported parameters are none, {@link LocalMessage}, {@code int} (arg1), {@code int, int}
+ * (arg1, arg2), {@code long}, {@code long, long}, {@code double} or any object type (the payload).
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface OnMessage {
+
+    /**
+     * Message IDs delivered to the method.
+     */
+    int[] value();
+}
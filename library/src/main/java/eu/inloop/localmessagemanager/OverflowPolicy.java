@@ -0,0 +1,37 @@
+package eu.inloop.localmessagemanager;
+
+/**
+ * What happens to a message sent while its bounded queue is full.
+ * The ring buffer engine supports DROP_NEWEST, FALLBACK_TO_HANDLER and FAIL, pending message
+ * limits support BLOCK, DROP_OLDEST, DROP_NEWEST and FAIL.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public enum OverflowPolicy {
+
+    /**
+     * Wait until there is room. Senders on the thread draining the queue never wait,
+     * their messages go over the limit.
+     */
+    BLOCK,
+
+    /**
+     * Discard the oldest waiting message to make room, counted by {@link LocalMessageManager#getDroppedMessageCount()}.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the message being sent, counted by {@link LocalMessageManager#getDroppedMessageCount()}.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Send the message through the regular Handler queue. Nothing is lost, but the message
+     * may be delivered before the ones still waiting in the full queue.
+     */
+    FALLBACK_TO_HANDLER,
+
+    /**
+     * Throw an {@link IllegalStateException} to the sender.
+     */
+    FAIL
+}
@@ -0,0 +1,66 @@
+package eu.inloop.localmessagemanager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completion signal of a message sent by {@link LocalMessageManager#sendParallel(int, Object)},
+ * done once every listener registered with a {@link DeliveryTarget#parallel} target has handled it.
+ * Listeners on other targets are not awaited.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ParallelDelivery {
+
+    /**
+     * Listener calls in progress plus one until all of them are scheduled.
+     */
+    private final AtomicInteger mPending = new AtomicInteger(1);
+
+    private final AtomicInteger mListenerCount = new AtomicInteger();
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    ParallelDelivery() {
+    }
+
+    void onScheduled(final int listeners) {
+        mListenerCount.addAndGet(listeners);
+        mPending.addAndGet(listeners);
+    }
+
+    /**
+     * Called once per scheduled listener and once after scheduling.
+     */
+    void onHandled() {
+        if (mPending.decrementAndGet() == 0) {
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Waits until all parallel listeners have handled the message. Don't call it on a thread of
+     * the executor running them.
+     */
+    public void await() throws InterruptedException {
+        mDone.await();
+    }
+
+    /**
+     * @return false if the timeout elapsed before all parallel listeners have handled the message
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * @return number of parallel listeners the message was delivered to
+     */
+    public int getListenerCount() {
+        return mListenerCount.get();
+    }
+}
@@ -0,0 +1,316 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages waiting for the main thread listeners, limited per bus and per ID.
+ * A circular buffer guarded by its own monitor, drained by a single wake-up message per batch.
+ * A {@link MessageBatch} counts as one message against the bus limit and against no ID limit.
+ */
+final class PendingQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    @NonNull
+    private final AtomicLong mDroppedCount;
+
+    @NonNull
+    private Message[] mMessages = new Message[INITIAL_CAPACITY];
+
+    @NonNull
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+
+    private int mHead;
+
+    private int mSize;
+
+    private int mHighWatermark;
+
+    private int mLimit;
+
+    @Nullable
+    private OverflowPolicy mPolicy;
+
+    /**
+     * Sorted IDs with a limit, the other arrays are indexed the same way.
+     */
+    @NonNull
+    private int[] mLimitIds = new int[0];
+
+    @NonNull
+    private int[] mLimits = new int[0];
+
+    @NonNull
+    private OverflowPolicy[] mPolicies = new OverflowPolicy[0];
+
+    @NonNull
+    private int[] mCounts = new int[0];
+
+    private int mBlockedProducers;
+
+    private boolean mWakeupPending;
+
+    private long mPolledTime;
+
+    PendingQueue(@NonNull final AtomicLong droppedCount) {
+        mDroppedCount = droppedCount;
+    }
+
+    synchronized void setLimit(final int limit, @Nullable final OverflowPolicy policy) {
+        mLimit = limit;
+        mPolicy = policy;
+        notifyAll();
+    }
+
+    synchronized void setLimit(final int id, final int limit, @Nullable final OverflowPolicy policy) {
+        final int index = Arrays.binarySearch(mLimitIds, id);
+        if (index >= 0) {
+            if (limit > 0) {
+                mLimits[index] = limit;
+                mPolicies[index] = policy;
+            } else {
+                mLimitIds = removeAt(mLimitIds, index);
+                mLimits = removeAt(mLimits, index);
+                mCounts = removeAt(mCounts, index);
+                final OverflowPolicy[] policies = new OverflowPolicy[mPolicies.length - 1];
+                System.arraycopy(mPolicies, 0, policies, 0, index);
+                System.arraycopy(mPolicies, index + 1, policies, index, policies.length - index);
+                mPolicies = policies;
+            }
+        } else if (limit > 0) {
+            final int insert = -index - 1;
+            int count = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (hasId(mMessages[(mHead + i) % mMessages.length], id)) {
+                    count++;
+                }
+            }
+            mLimitIds = insertAt(mLimitIds, insert, id);
+            mLimits = insertAt(mLimits, insert, limit);
+            mCounts = insertAt(mCounts, insert, count);
+            final OverflowPolicy[] policies = new OverflowPolicy[mPolicies.length + 1];
+            System.arraycopy(mPolicies, 0, policies, 0, insert);
+            policies[insert] = policy;
+            System.arraycopy(mPolicies, insert, policies, insert + 1, mPolicies.length - insert);
+            mPolicies = policies;
+        }
+        notifyAll();
+    }
+
+    synchronized boolean hasLimits() {
+        return mLimit > 0 || mLimitIds.length > 0;
+    }
+
+    /**
+     * Takes ownership of the message unless the policy throws.
+     * @param dispatchThread - true if called from the thread draining this queue, which can't block
+     * @return true if the caller has to post the wake-up message
+     */
+    synchronized boolean offer(@NonNull final Message msg, final boolean dispatchThread) {
+        int idIndex;
+        while (true) {
+            // looked up again after every wait, setLimit() may have replaced the limit arrays meanwhile
+            idIndex = msg.obj instanceof MessageBatch ? -1 : Arrays.binarySearch(mLimitIds, msg.what);
+            if (idIndex >= 0 && mCounts[idIndex] >= mLimits[idIndex]) {
+                if (!makeRoom(msg, mPolicies[idIndex], true, dispatchThread)) {
+                    return false;
+                }
+            } else if (mLimit > 0 && mSize >= mLimit) {
+                //noinspection ConstantConditions - set together with the limit
+                if (!makeRoom(msg, mPolicy, false, dispatchThread)) {
+                    return false;
+                }
+            } else {
+                break;
+            }
+            if (dispatchThread) {
+                // the consumer can't wait for itself, it goes over the limit instead
+                break;
+            }
+        }
+
+        if (mSize == mMessages.length) {
+            grow();
+        }
+        final int index = (mHead + mSize) % mMessages.length;
+        mMessages[index] = msg;
+        mTimes[index] = SystemClock.uptimeMillis();
+        mSize++;
+        if (idIndex >= 0) {
+            mCounts[idIndex]++;
+        }
+        if (mSize > mHighWatermark) {
+            mHighWatermark = mSize;
+        }
+        if (mWakeupPending) {
+            return false;
+        }
+        mWakeupPending = true;
+        return true;
+    }
+
+    /**
+     * @param idLimit - true if the limit of the message's ID was reached, false for the bus limit
+     * @return false if the message was dropped
+     */
+    private boolean makeRoom(@NonNull final Message msg, @NonNull final OverflowPolicy policy, final boolean idLimit,
+                             final boolean dispatchThread) {
+        switch (policy) {
+            case BLOCK:
+                if (!dispatchThread) {
+                    mBlockedProducers++;
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        drop(msg);
+                        return false;
+                    } finally {
+                        mBlockedProducers--;
+                    }
+                }
+                return true;
+            case DROP_OLDEST:
+                removeOldest(msg.what, idLimit);
+                mDroppedCount.incrementAndGet();
+                return true;
+            case DROP_NEWEST:
+                drop(msg);
+                return false;
+            default:
+                drop(msg);
+                throw new IllegalStateException("Pending message limit reached, message ID " + msg.what);
+        }
+    }
+
+    private void drop(@NonNull final Message msg) {
+        mDroppedCount.incrementAndGet();
+        StickyCache.discard(msg);
+        PrimitivePayload.release(msg);
+        msg.recycle();
+    }
+
+    private void removeOldest(final int id, final boolean sameId) {
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead + i) % mMessages.length;
+            final Message msg = mMessages[index];
+            if (!sameId || hasId(msg, id)) {
+                for (int j = i; j > 0; j--) {
+                    final int to = (mHead + j) % mMessages.length;
+                    final int from = (mHead + j - 1) % mMessages.length;
+                    mMessages[to] = mMessages[from];
+                    mTimes[to] = mTimes[from];
+                }
+                mMessages[mHead] = null;
+                mHead = (mHead + 1) % mMessages.length;
+                mSize--;
+                onRemoved(msg);
+                StickyCache.discard(msg);
+                PrimitivePayload.release(msg);
+                msg.recycle();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest message, owned by the caller from now on. Consumer only.
+     * @return null if the queue is empty, then the next offer posts a new wake-up
+     */
+    @Nullable
+    synchronized Message poll() {
+        if (mSize == 0) {
+            mWakeupPending = false;
+            return null;
+        }
+        final Message msg = mMessages[mHead];
+        mMessages[mHead] = null;
+        mPolledTime = mTimes[mHead];
+        mHead = (mHead + 1) % mMessages.length;
+        mSize--;
+        onRemoved(msg);
+        return msg;
+    }
+
+    /**
+     * Uptime at which the message returned by the last {@link #poll()} was sent. Consumer only.
+     */
+    synchronized long getPolledTime() {
+        return mPolledTime;
+    }
+
+    synchronized void clear() {
+        while (mSize > 0) {
+            //noinspection ConstantConditions
+            final Message msg = poll();
+            StickyCache.discard(msg);
+            PrimitivePayload.release(msg);
+            msg.recycle();
+        }
+        mWakeupPending = false;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    synchronized void resetHighWatermark() {
+        mHighWatermark = mSize;
+    }
+
+    private void onRemoved(@NonNull final Message msg) {
+        final int idIndex = msg.obj instanceof MessageBatch ? -1 : Arrays.binarySearch(mLimitIds, msg.what);
+        if (idIndex >= 0) {
+            mCounts[idIndex]--;
+        }
+        if (mBlockedProducers > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return false for the carrier of a batch, its ID is not the ID of the messages inside
+     */
+    private static boolean hasId(@NonNull final Message msg, final int id) {
+        return msg.what == id && !(msg.obj instanceof MessageBatch);
+    }
+
+    private void grow() {
+        final Message[] messages = new Message[mMessages.length * 2];
+        final long[] times = new long[messages.length];
+        for (int i = 0; i < mSize; i++) {
+            messages[i] = mMessages[(mHead + i) % mMessages.length];
+            times[i] = mTimes[(mHead + i) % mTimes.length];
+        }
+        mMessages = messages;
+        mTimes = times;
+        mHead = 0;
+    }
+
+    @NonNull
+    private static int[] insertAt(@NonNull final int[] array, final int index, final int value) {
+        final int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    @NonNull
+    private static int[] removeAt(@NonNull final int[] array, final int index) {
+        final int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference counted direct ByteBuffer from a pool of power-of-two size classes, for large binary
+ * payloads such as camera frames. Send it by {@link LocalMessageManager#send(int, PooledBuffer)},
+ * every queue delivering it holds its own reference and the buffer returns to the pool once the
+ * last listener has handled it. Call {@link #retain()} to keep it after handleMessage().
+ * <p>
+ * Listeners on different threads share the ByteBuffer, read it with absolute gets or through
+ * {@link ByteBuffer#duplicate()}. Buffers which are garbage collected without being released are
+ * reported as leaks.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class PooledBuffer {
+
+    @NonNull
+    private static final String TAG = "PooledBuffer";
+
+    private static final int MIN_SIZE_SHIFT = 10;
+
+    private static final int MAX_SIZE_SHIFT = 24;
+
+    /**
+     * Free buffers kept per size class.
+     */
+    private static final int MAX_POOLED = 4;
+
+    /**
+     * Free buffers by size class, each stack guarded by itself.
+     */
+    @NonNull
+    private static final PooledBuffer[][] sPools = new PooledBuffer[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1][MAX_POOLED];
+
+    @NonNull
+    private static final int[] sPoolSizes = new int[sPools.length];
+
+    @NonNull
+    private static final ReferenceQueue<PooledBuffer> sLeakQueue = new ReferenceQueue<>();
+
+    /**
+     * Keeps the leak references reachable until their buffer is collected or discarded.
+     */
+    @NonNull
+    private static final Set<LeakReference> sLeakReferences = Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+
+    @NonNull
+    private static final AtomicLong sLeakCount = new AtomicLong();
+
+    private static volatile boolean sLeakTracing;
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Size class, -1 for buffers larger than the largest class which are not pooled.
+     */
+    private final int mSizeClass;
+
+    @NonNull
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    @NonNull
+    private final LeakReference mLeakReference;
+
+    private PooledBuffer(final int capacity, final int sizeClass) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mSizeClass = sizeClass;
+        mLeakReference = new LeakReference(this, capacity);
+        sLeakReferences.add(mLeakReference);
+    }
+
+    /**
+     * @param capacity - number of bytes needed, the buffer's limit
+     * @return cleared buffer owned by the caller, release it or pass it to send()
+     */
+    @NonNull
+    public static PooledBuffer obtain(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        reportLeaks();
+        final int sizeClass = sizeClassOf(capacity);
+        PooledBuffer buffer = null;
+        if (sizeClass >= 0) {
+            final PooledBuffer[] pool = sPools[sizeClass];
+            synchronized (pool) {
+                if (sPoolSizes[sizeClass] > 0) {
+                    buffer = pool[--sPoolSizes[sizeClass]];
+                    pool[sPoolSizes[sizeClass]] = null;
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = new PooledBuffer(sizeClass >= 0 ? 1 << (sizeClass + MIN_SIZE_SHIFT) : capacity, sizeClass);
+        }
+        buffer.mRefCount.set(1);
+        buffer.mLeakReference.mOrigin = sLeakTracing ? new Throwable("PooledBuffer obtained here") : null;
+        buffer.mBuffer.clear();
+        buffer.mBuffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Records where every buffer was obtained, so that leak reports point to the code which obtained
+     * a leaked buffer. Costs a stack trace per obtain, enable it in debug builds only.
+     * @param tracing - false by default
+     */
+    public static void setLeakTracing(final boolean tracing) {
+        sLeakTracing = tracing;
+    }
+
+    /**
+     * @return number of buffers garbage collected without being released since the start
+     */
+    public static long getLeakCount() {
+        reportLeaks();
+        return sLeakCount.get();
+    }
+
+    @NonNull
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Adds a reference, release each of them.
+     * @return this instance
+     */
+    @NonNull
+    public PooledBuffer retain() {
+        while (true) {
+            final int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer was already released");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, the last one returns the buffer to the pool.
+     */
+    public void release() {
+        final int count = mRefCount.decrementAndGet();
+        if (count > 0) {
+            return;
+        }
+        if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Buffer was already released");
+        }
+        mLeakReference.mOrigin = null;
+        if (mSizeClass >= 0) {
+            final PooledBuffer[] pool = sPools[mSizeClass];
+            synchronized (pool) {
+                if (sPoolSizes[mSizeClass] < MAX_POOLED) {
+                    pool[sPoolSizes[mSizeClass]++] = this;
+                    return;
+                }
+            }
+        }
+        // dropped for good, its collection is not a leak
+        sLeakReferences.remove(mLeakReference);
+        mLeakReference.clear();
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    private static int sizeClassOf(final int capacity) {
+        int shift = MIN_SIZE_SHIFT;
+        while ((1 << shift) < capacity) {
+            shift++;
+            if (shift > MAX_SIZE_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    private static void reportLeaks() {
+        LeakReference reference;
+        while ((reference = (LeakReference) sLeakQueue.poll()) != null) {
+            if (sLeakReferences.remove(reference)) {
+                sLeakCount.incrementAndGet();
+                Log.w(TAG, "Buffer of " + reference.mCapacity + " bytes was garbage collected without release()",
+                        reference.mOrigin);
+            }
+        }
+    }
+
+    /**
+     * Detects a buffer collected while it was out of the pool, pooled buffers stay reachable.
+     */
+    private static final class LeakReference extends WeakReference<PooledBuffer> {
+
+        final int mCapacity;
+
+        @Nullable
+        volatile Throwable mOrigin;
+
+        LeakReference(@NonNull final PooledBuffer buffer, final int capacity) {
+            super(buffer, sLeakQueue);
+            mCapacity = capacity;
+        }
+    }
+}
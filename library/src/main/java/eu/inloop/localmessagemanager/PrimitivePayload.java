@@ -0,0 +1,108 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Pooled carrier of long and double arguments, sent as the Message object.
+ * Every destination queue owns its own carrier, which is recycled right after delivery.
+ * {@link PooledBuffer} payloads follow the same rules, every queue holds its own reference.
+ */
+final class PrimitivePayload {
+
+    private static final int MAX_POOL_SIZE = 50;
+
+    @NonNull
+    private static final Object sPoolSync = new Object();
+
+    @Nullable
+    private static PrimitivePayload sPool;
+
+    private static int sPoolSize = 0;
+
+    long long1;
+    long long2;
+    double double1;
+
+    @Nullable
+    private PrimitivePayload mNext;
+
+    private PrimitivePayload() {
+    }
+
+    @NonNull
+    static PrimitivePayload obtain(final long long1, final long long2, final double double1) {
+        PrimitivePayload payload = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                payload = sPool;
+                sPool = payload.mNext;
+                payload.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (payload == null) {
+            payload = new PrimitivePayload();
+        }
+        payload.long1 = long1;
+        payload.long2 = long2;
+        payload.double1 = double1;
+        return payload;
+    }
+
+    /**
+     * Gives the destination its own carrier if the message carries one.
+     */
+    static void copy(@NonNull final Message msg) {
+        if (msg.obj instanceof PrimitivePayload) {
+            final PrimitivePayload payload = (PrimitivePayload) msg.obj;
+            msg.obj = obtain(payload.long1, payload.long2, payload.double1);
+        } else if (msg.obj instanceof PooledBuffer) {
+            ((PooledBuffer) msg.obj).retain();
+        }
+    }
+
+    /**
+     * Returns the carrier of a delivered message to the pool.
+     */
+    static void release(@NonNull final Message msg) {
+        if (msg.obj instanceof PrimitivePayload) {
+            ((PrimitivePayload) msg.obj).recycle();
+            msg.obj = null;
+        } else if (msg.obj instanceof PooledBuffer) {
+            ((PooledBuffer) msg.obj).release();
+            msg.obj = null;
+        } else if (msg.obj instanceof MessageBatch) {
+            // a batch dropped from the queue
+            ((MessageBatch) msg.obj).releasePayloads();
+            msg.obj = null;
+        }
+    }
+
+    /**
+     * Returns the carrier of a message which was never delivered to the pool.
+     */
+    static void releaseUndelivered(@Nullable final Object obj) {
+        if (obj instanceof PrimitivePayload) {
+            ((PrimitivePayload) obj).recycle();
+        } else if (obj instanceof PooledBuffer) {
+            ((PooledBuffer) obj).release();
+        } else if (obj instanceof MessageBatch) {
+            ((MessageBatch) obj).releasePayloads();
+        }
+    }
+
+    private void recycle() {
+        long1 = 0;
+        long2 = 0;
+        double1 = 0;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+}
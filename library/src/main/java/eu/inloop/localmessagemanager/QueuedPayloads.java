@@ -0,0 +1,77 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Payloads holding a pool reference - pooled buffers and batches - of messages waiting in a queue.
+ * Messages removed from a Handler can't be enumerated, so these payloads are tracked until their
+ * message is handled and released by {@link #releaseAll()} when the queue is cleared.
+ */
+final class QueuedPayloads {
+
+    @NonNull
+    private Object[] mPayloads = new Object[4];
+
+    private int mSize;
+
+    /**
+     * Tracks the payload of a message about to be enqueued, other payloads are ignored.
+     */
+    void add(@Nullable final Object obj) {
+        if (!isReleasable(obj)) {
+            return;
+        }
+        synchronized (this) {
+            if (mSize == mPayloads.length) {
+                final Object[] payloads = new Object[mSize * 2];
+                System.arraycopy(mPayloads, 0, payloads, 0, mSize);
+                mPayloads = payloads;
+            }
+            mPayloads[mSize++] = obj;
+        }
+    }
+
+    /**
+     * Stops tracking the payload of a message taken from the queue. A payload enqueued several times
+     * holds a reference per message, one of them is removed.
+     * @return false if the payload was released by {@link #releaseAll()} meanwhile, the message
+     * must be skipped then
+     */
+    boolean remove(@Nullable final Object obj) {
+        if (!isReleasable(obj)) {
+            return true;
+        }
+        synchronized (this) {
+            for (int i = mSize - 1; i >= 0; i--) {
+                if (mPayloads[i] == obj) {
+                    mPayloads[i] = mPayloads[--mSize];
+                    mPayloads[mSize] = null;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the payloads of all messages which are still tracked, after they were removed from the queue.
+     */
+    void releaseAll() {
+        final Object[] payloads;
+        final int size;
+        synchronized (this) {
+            payloads = mPayloads;
+            size = mSize;
+            mPayloads = new Object[4];
+            mSize = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            PrimitivePayload.releaseUndelivered(payloads[i]);
+        }
+    }
+
+    static boolean isReleasable(@Nullable final Object obj) {
+        return obj instanceof PooledBuffer || obj instanceof MessageBatch;
+    }
+}
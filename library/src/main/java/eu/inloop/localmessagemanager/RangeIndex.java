@@ -0,0 +1,98 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable interval index of range subscriptions.
+ * <p>
+ * The ID space is split into segments at every range boundary and each segment keeps
+ * the flattened array of listeners covering it. A lookup is a binary search over the segment
+ * starts, after which only matching listeners are visited. Rebuilt on every registration change.
+ */
+final class RangeIndex {
+
+    static final class Subscription {
+        @NonNull
+        final IdRange range;
+        @NonNull
+        final LocalMessageCallback listener;
+
+        Subscription(@NonNull final IdRange range, @NonNull final LocalMessageCallback listener) {
+            this.range = range;
+            this.listener = listener;
+        }
+    }
+
+    @NonNull
+    static final RangeIndex EMPTY = new RangeIndex(new long[0], new LocalMessageCallback[0][]);
+
+    // boundaries are longs so that the end of a range ending at Integer.MAX_VALUE fits
+    @NonNull
+    private final long[] mStarts;
+
+    @NonNull
+    private final LocalMessageCallback[][] mSegments;
+
+    private RangeIndex(@NonNull final long[] starts, @NonNull final LocalMessageCallback[][] segments) {
+        mStarts = starts;
+        mSegments = segments;
+    }
+
+    @NonNull
+    static RangeIndex build(@NonNull final List<Subscription> subscriptions) {
+        if (subscriptions.isEmpty()) {
+            return EMPTY;
+        }
+        final long[] bounds = new long[subscriptions.size() * 2];
+        for (int i = 0; i < subscriptions.size(); i++) {
+            final IdRange range = subscriptions.get(i).range;
+            bounds[2 * i] = range.getFrom();
+            bounds[2 * i + 1] = (long) range.getTo() + 1;
+        }
+        Arrays.sort(bounds);
+        int count = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            if (i == 0 || bounds[i] != bounds[i - 1]) {
+                bounds[count++] = bounds[i];
+            }
+        }
+
+        final long[] starts = Arrays.copyOf(bounds, count);
+        final LocalMessageCallback[][] segments = new LocalMessageCallback[count][];
+        final List<LocalMessageCallback> covering = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            covering.clear();
+            for (final Subscription subscription : subscriptions) {
+                if (starts[i] >= subscription.range.getFrom() && starts[i] <= subscription.range.getTo()) {
+                    covering.add(subscription.listener);
+                }
+            }
+            segments[i] = covering.isEmpty() ? ListenerArrays.EMPTY : covering.toArray(new LocalMessageCallback[covering.size()]);
+        }
+        return new RangeIndex(starts, segments);
+    }
+
+    /**
+     * @return listeners subscribed to a range containing the ID, never null
+     */
+    @NonNull
+    LocalMessageCallback[] get(final int id) {
+        int low = 0;
+        int high = mStarts.length - 1;
+        int segment = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= id) {
+                segment = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segment < 0 ? ListenerArrays.EMPTY : mSegments[segment];
+    }
+}
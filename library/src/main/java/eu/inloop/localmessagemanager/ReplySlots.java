@@ -0,0 +1,115 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Pooled correlation slots of requests waiting for their result. A request is identified by an int
+ * token carrying the slot index in its low bits and the slot generation in its high bits, so that
+ * a late answer or timeout of a reused slot is recognized without any per-request object.
+ */
+final class ReplySlots {
+
+    private static final int INDEX_BITS = 16;
+
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    @NonNull
+    private ResultCallback<?>[] mCallbacks = new ResultCallback<?>[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mGenerations = new int[INITIAL_CAPACITY];
+
+    /**
+     * Stack of free slot indexes.
+     */
+    @NonNull
+    private int[] mFree = new int[INITIAL_CAPACITY];
+
+    private int mFreeCount;
+
+    ReplySlots() {
+        for (int i = 0; i < INITIAL_CAPACITY; i++) {
+            mFree[mFreeCount++] = INITIAL_CAPACITY - 1 - i;
+        }
+    }
+
+    /**
+     * @return token of the request
+     */
+    synchronized int acquire(@NonNull final ResultCallback<?> callback) {
+        if (mFreeCount == 0) {
+            grow();
+        }
+        final int index = mFree[--mFreeCount];
+        mCallbacks[index] = callback;
+        return (mGenerations[index] << INDEX_BITS) | index;
+    }
+
+    /**
+     * @return true if the request of the token is still waiting for its result
+     */
+    synchronized boolean isPending(final int token) {
+        final int index = token & INDEX_MASK;
+        return mCallbacks[index] != null && mGenerations[index] == token >>> INDEX_BITS;
+    }
+
+    /**
+     * Frees the slot of the token.
+     * @return callback of the request, null if it was already answered or timed out
+     */
+    @Nullable
+    synchronized ResultCallback<?> release(final int token) {
+        final int index = token & INDEX_MASK;
+        final ResultCallback<?> callback = mCallbacks[index];
+        if (callback == null || mGenerations[index] != token >>> INDEX_BITS) {
+            return null;
+        }
+        mCallbacks[index] = null;
+        mGenerations[index] = (mGenerations[index] + 1) & INDEX_MASK;
+        mFree[mFreeCount++] = index;
+        return callback;
+    }
+
+    /**
+     * Frees all slots.
+     * @return callbacks of the requests which were still waiting for their result
+     */
+    @NonNull
+    synchronized ResultCallback<?>[] releaseAll() {
+        int count = 0;
+        for (final ResultCallback<?> callback : mCallbacks) {
+            if (callback != null) {
+                count++;
+            }
+        }
+        final ResultCallback<?>[] callbacks = new ResultCallback<?>[count];
+        count = 0;
+        for (int i = 0; i < mCallbacks.length; i++) {
+            if (mCallbacks[i] != null) {
+                callbacks[count++] = release((mGenerations[i] << INDEX_BITS) | i);
+            }
+        }
+        return callbacks;
+    }
+
+    private void grow() {
+        final int capacity = mCallbacks.length;
+        if (capacity > INDEX_MASK) {
+            throw new IllegalStateException("Too many requests waiting for their result");
+        }
+        final ResultCallback<?>[] callbacks = new ResultCallback<?>[capacity * 2];
+        System.arraycopy(mCallbacks, 0, callbacks, 0, capacity);
+        final int[] generations = new int[capacity * 2];
+        System.arraycopy(mGenerations, 0, generations, 0, capacity);
+        final int[] free = new int[capacity * 2];
+        for (int i = 0; i < capacity; i++) {
+            free[mFreeCount++] = capacity * 2 - 1 - i;
+        }
+        mCallbacks = callbacks;
+        mGenerations = generations;
+        mFree = free;
+    }
+}
@@ -0,0 +1,24 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Receives the answer to a request sent by {@link LocalMessageManager#sendForResult(int, Object, long, ResultCallback)}.
+ * Exactly one of the methods is called, on the thread of the manager's Looper.
+ * @param <T> type of the result returned by the responder
+ */
+public interface ResultCallback<T> {
+
+    /**
+     * @param result value returned by the responder
+     */
+    void onResult(@Nullable T result);
+
+    /**
+     * @param error exception thrown by the responder, {@link java.util.concurrent.TimeoutException}
+     *              if it didn't answer in time or {@link IllegalStateException} if there is no responder
+     *              or the manager was closed
+     */
+    void onError(@NonNull Exception error);
+}
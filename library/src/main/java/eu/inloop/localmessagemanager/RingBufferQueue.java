@@ -0,0 +1,163 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer single-consumer queue of message values kept in preallocated slots.
+ * Every slot carries a sequence number: producers claim a position with a CAS on the tail and
+ * publish the slot by advancing its sequence, the consumer frees it by advancing it a lap further.
+ * Only the main thread consumes.
+ */
+final class RingBufferQueue {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final int mMask;
+
+    @NonNull
+    private final AtomicLongArray mSequences;
+
+    @NonNull
+    private final int[] mIds;
+
+    @NonNull
+    private final int[] mArgs1;
+
+    @NonNull
+    private final int[] mArgs2;
+
+    @NonNull
+    private final Object[] mObjects;
+
+    @NonNull
+    private final long[] mTimes;
+
+    @NonNull
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Set while a wake-up message is in the Looper queue, so that producers post one per batch.
+     */
+    @NonNull
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    @NonNull
+    final OverflowPolicy mOverflowPolicy;
+
+    /**
+     * Consumer only.
+     */
+    private long mHead;
+
+    private long mPolledTime;
+
+    RingBufferQueue(final int capacity, @NonNull final OverflowPolicy overflowPolicy) {
+        int size = 1;
+        while (size < capacity && size < MAX_CAPACITY) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mIds = new int[size];
+        mArgs1 = new int[size];
+        mArgs2 = new int[size];
+        mObjects = new Object[size];
+        mTimes = new long[size];
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Claims the next slot, so that the outcome of an offer is known before anything else sees the
+     * message. The consumer stops at the slot until it is published.
+     * @return position of the slot, -1 if the queue is full
+     */
+    long claim() {
+        long position = mTail.get();
+        while (true) {
+            final long difference = mSequences.get((int) position & mMask) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // the slot still holds a message from the previous lap
+                return -1;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Writes the message into a slot returned by {@link #claim()} and hands it to the consumer.
+     */
+    void publish(final long position, final int id, final int arg1, final int arg2, @Nullable final Object obj, final long time) {
+        final int index = (int) position & mMask;
+        mIds[index] = id;
+        mArgs1[index] = arg1;
+        mArgs2[index] = arg2;
+        mObjects[index] = obj;
+        mTimes[index] = time;
+        // volatile write publishes the plain writes above and is ordered before the wake-up check
+        mSequences.set(index, position + 1);
+    }
+
+    /**
+     * Copies the next message into the target and frees its slot. Consumer only.
+     * @return false if there is no published message
+     */
+    boolean poll(@NonNull final Message target) {
+        final long position = mHead;
+        final int index = (int) position & mMask;
+        if (mSequences.get(index) != position + 1) {
+            return false;
+        }
+        target.what = mIds[index];
+        target.arg1 = mArgs1[index];
+        target.arg2 = mArgs2[index];
+        target.obj = mObjects[index];
+        mPolledTime = mTimes[index];
+        mObjects[index] = null;
+        mSequences.lazySet(index, position + mMask + 1);
+        mHead = position + 1;
+        return true;
+    }
+
+    /**
+     * Uptime at which the last polled message was sent, 0 if it wasn't measured. Consumer only.
+     */
+    long getPolledTime() {
+        return mPolledTime;
+    }
+
+    /**
+     * Consumer only.
+     */
+    boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * @return true if the caller has to post the wake-up message
+     */
+    boolean requestWakeup() {
+        return !mWakeupPending.get() && mWakeupPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the consumer before draining, messages published afterwards post a new wake-up.
+     */
+    void clearWakeup() {
+        mWakeupPending.set(false);
+    }
+}
@@ -0,0 +1,47 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Handle of the delayed, debounced or throttled messages of an ID, returned by
+ * {@link LocalMessageManager#sendDelayed(int, long)} and friends. There is one handle per ID and
+ * mode, returned by every call of that mode, and it controls all waiting messages of its mode and
+ * ID. Messages of the other modes are cancelled by {@link LocalMessageManager#cancel(int)}.
+ * <p>
+ * A throttled message which is sent right away returns the handle of the ID's trailing message,
+ * which is not pending unless a later call scheduled one.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ScheduledSend {
+
+    @NonNull
+    private final MessageTimers mTimers;
+
+    private final int mId;
+
+    private final int mMode;
+
+    ScheduledSend(@NonNull final MessageTimers timers, final int id, final int mode) {
+        mTimers = timers;
+        mId = id;
+        mMode = mode;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Cancels the messages of this handle which are not delivered yet.
+     */
+    public void cancel() {
+        mTimers.cancel(mId, mMode);
+    }
+
+    /**
+     * @return true if a message of this handle is waiting for its time
+     */
+    public boolean isPending() {
+        return mTimers.isPending(mId, mMode);
+    }
+}
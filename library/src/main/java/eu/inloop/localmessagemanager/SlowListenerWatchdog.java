@@ -0,0 +1,236 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times every main thread listener call against a budget, see
+ * {@link LocalMessageManager#setWatchdog(SlowListenerWatchdog)}.
+ * <p>
+ * Calls over budget are reported with the listener class and message ID and counted in rolling
+ * per-class statistics. Optionally, a listener going over budget repeatedly is moved with all its
+ * subscriptions to a background {@link DeliveryTarget}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SlowListenerWatchdog implements MetricsSink {
+
+    @NonNull
+    private static final String TAG = "SlowListenerWatchdog";
+
+    /**
+     * Weight of the latest call in the moving average of call duration.
+     */
+    private static final double AVERAGE_WEIGHT = 0.1;
+
+    public interface Reporter {
+
+        /**
+         * Called on the main thread right after the slow call returned.
+         * @param listenerClass - class of the slow listener
+         * @param id - message ID the listener was handling
+         * @param durationNanos - duration of the call
+         */
+        void onSlowListener(@NonNull Class<?> listenerClass, int id, long durationNanos);
+
+        /**
+         * Called when a listener was moved to the background delivery target.
+         * @param listener - the demoted listener
+         */
+        void onListenerDemoted(@NonNull LocalMessageCallback listener);
+    }
+
+    /**
+     * Default reporter writing to logcat.
+     */
+    @NonNull
+    public static final Reporter LOG_REPORTER = new Reporter() {
+        @Override
+        public void onSlowListener(@NonNull final Class<?> listenerClass, final int id, final long durationNanos) {
+            Log.w(TAG, "Listener " + listenerClass.getName() + " took " + durationNanos / 1000 + " us to handle message ID " + id);
+        }
+
+        @Override
+        public void onListenerDemoted(@NonNull final LocalMessageCallback listener) {
+            Log.w(TAG, "Listener " + listener.getClass().getName() + " was moved off the main thread");
+        }
+    };
+
+    private final long mBudgetNanos;
+
+    @NonNull
+    private final Reporter mReporter;
+
+    private int mDemoteAfter;
+
+    @Nullable
+    private DeliveryTarget mDemoteTarget;
+
+    @Nullable
+    private LocalMessageManager mManager;
+
+    // rolling statistics per listener class, guarded by this
+    @NonNull
+    private final ClassIndex mListenerClasses;
+    @NonNull
+    private final long[] mCalls;
+    @NonNull
+    private final long[] mSlowCalls;
+    @NonNull
+    private final long[] mMaxNanos;
+    @NonNull
+    private final double[] mAverageNanos;
+
+    /**
+     * @param budgetMillis - longest acceptable duration of a single listener call, such as 4 ms
+     */
+    public SlowListenerWatchdog(final long budgetMillis) {
+        this(budgetMillis, LOG_REPORTER, 64);
+    }
+
+    /**
+     * @param budgetMillis - longest acceptable duration of a single listener call, such as 4 ms
+     * @param reporter - receives the offenders
+     * @param maxListenerClasses - number of distinct listener classes with statistics
+     */
+    public SlowListenerWatchdog(final long budgetMillis, @NonNull final Reporter reporter, final int maxListenerClasses) {
+        mBudgetNanos = budgetMillis * 1000000L;
+        mReporter = reporter;
+        mListenerClasses = new ClassIndex(maxListenerClasses);
+        final int capacity = mListenerClasses.capacity();
+        mCalls = new long[capacity];
+        mSlowCalls = new long[capacity];
+        mMaxNanos = new long[capacity];
+        mAverageNanos = new double[capacity];
+    }
+
+    /**
+     * Moves a listener which went over budget the given number of times, counted per listener class,
+     * with all its subscriptions to the target. The listener must be safe to call from that thread.
+     * @param slowCalls - number of calls over budget
+     * @param target - background delivery target
+     * @return this instance
+     */
+    @NonNull
+    public synchronized SlowListenerWatchdog demoteAfter(final int slowCalls, @NonNull final DeliveryTarget target) {
+        if (target.isMainThread()) {
+            throw new IllegalArgumentException("Listeners can't be demoted to the main thread");
+        }
+        mDemoteAfter = slowCalls;
+        mDemoteTarget = target;
+        return this;
+    }
+
+    synchronized void attach(@Nullable final LocalMessageManager manager) {
+        mManager = manager;
+    }
+
+    @Override
+    public void onMessageDispatched(final int id, final long queueLatencyMillis, final int fanOut) {
+    }
+
+    @Override
+    public void onListenerHandled(final int id, @NonNull final LocalMessageCallback listener, final long durationNanos) {
+        final boolean slow = durationNanos > mBudgetNanos;
+        boolean demote = false;
+        synchronized (this) {
+            final int index = mListenerClasses.indexOf(listener.getClass());
+            if (index >= 0) {
+                if (++mCalls[index] == 1) {
+                    mAverageNanos[index] = durationNanos;
+                } else {
+                    mAverageNanos[index] += (durationNanos - mAverageNanos[index]) * AVERAGE_WEIGHT;
+                }
+                if (durationNanos > mMaxNanos[index]) {
+                    mMaxNanos[index] = durationNanos;
+                }
+                if (slow) {
+                    mSlowCalls[index]++;
+                    demote = mDemoteTarget != null && mSlowCalls[index] >= mDemoteAfter;
+                }
+            }
+        }
+        if (!slow) {
+            return;
+        }
+        mReporter.onSlowListener(listener.getClass(), id, durationNanos);
+
+        final LocalMessageManager manager = mManager;
+        final DeliveryTarget target = mDemoteTarget;
+        if (demote && manager != null && target != null && manager.transferListener(listener, target)) {
+            mReporter.onListenerDemoted(listener);
+        }
+    }
+
+    /**
+     * @return statistics of every listener class seen so far
+     */
+    @NonNull
+    public synchronized List<ListenerStats> getStatistics() {
+        final List<ListenerStats> stats = new ArrayList<>();
+        for (int index = 0; index < mListenerClasses.capacity(); index++) {
+            final Class<?> listenerClass = mListenerClasses.get(index);
+            if (listenerClass != null) {
+                stats.add(new ListenerStats(listenerClass, mCalls[index], mSlowCalls[index], mMaxNanos[index], (long) mAverageNanos[index]));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Rolling statistics of one listener class.
+     */
+    public static final class ListenerStats {
+
+        @NonNull
+        private final Class<?> mListenerClass;
+        private final long mCalls;
+        private final long mSlowCalls;
+        private final long mMaxNanos;
+        private final long mAverageNanos;
+
+        ListenerStats(@NonNull final Class<?> listenerClass, final long calls, final long slowCalls, final long maxNanos, final long averageNanos) {
+            mListenerClass = listenerClass;
+            mCalls = calls;
+            mSlowCalls = slowCalls;
+            mMaxNanos = maxNanos;
+            mAverageNanos = averageNanos;
+        }
+
+        @NonNull
+        public Class<?> getListenerClass() {
+            return mListenerClass;
+        }
+
+        public long getCalls() {
+            return mCalls;
+        }
+
+        /**
+         * Number of calls over budget.
+         */
+        public long getSlowCalls() {
+            return mSlowCalls;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * Exponentially weighted moving average of call duration.
+         */
+        public long getAverageNanos() {
+            return mAverageNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mListenerClass.getName() + " { calls=" + mCalls + " slow=" + mSlowCalls
+                    + " max=" + mMaxNanos / 1000 + "us avg=" + mAverageNanos / 1000 + "us }";
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package eu.inloop.localmessagemanager;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last value of every sticky message ID, evicted in least-recently-used order.
+ * <p>
+ * Values are copied out of the sent Message because the Message is recycled after delivery. The
+ * sent Message carries its entry until delivery, so that a listener registered meanwhile gets the
+ * queued message instead of a replay.
+ */
+final class StickyCache {
+
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    static final class Entry {
+        final int what;
+        final int arg1;
+        final int arg2;
+        @Nullable
+        final Object obj;
+        @Nullable
+        final Bundle data;
+
+        // destinations the sent message is still queued for, guarded by the entry
+        private int mQueuedOnMain;
+        @Nullable
+        private List<DeliveryLane> mQueuedOnLanes;
+
+        Entry(@NonNull final Message msg) {
+            what = msg.what;
+            arg1 = msg.arg1;
+            arg2 = msg.arg2;
+            obj = msg.obj;
+            final Bundle msgData = msg.peekData();
+            data = msgData == null ? null : new Bundle(msgData);
+        }
+
+        /**
+         * @param lane - destination of the message, null for the main thread
+         */
+        synchronized void onQueued(@Nullable final DeliveryLane lane) {
+            if (lane == null) {
+                mQueuedOnMain++;
+            } else {
+                if (mQueuedOnLanes == null) {
+                    mQueuedOnLanes = new ArrayList<>(1);
+                }
+                mQueuedOnLanes.add(lane);
+            }
+        }
+
+        synchronized void onDequeued(@Nullable final DeliveryLane lane) {
+            if (lane == null) {
+                mQueuedOnMain--;
+            } else if (mQueuedOnLanes != null) {
+                mQueuedOnLanes.remove(lane);
+            }
+        }
+
+        /**
+         * @return true if the sent message still waits for the destination and will reach its new listeners
+         */
+        synchronized boolean isQueued(@Nullable final DeliveryLane lane) {
+            return lane == null ? mQueuedOnMain > 0 : mQueuedOnLanes != null && mQueuedOnLanes.contains(lane);
+        }
+    }
+
+    /**
+     * Carrier of a cached value addressed to a single, newly registered listener.
+     */
+    static final class Replay {
+        @NonNull
+        final Entry entry;
+        @NonNull
+        final LocalMessageCallback listener;
+
+        Replay(@NonNull final Entry entry, @NonNull final LocalMessageCallback listener) {
+            this.entry = entry;
+            this.listener = listener;
+        }
+    }
+
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+
+    // guarded by this, access-ordered; never serialized
+    @NonNull
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, StickyCache.Entry> eldest) {
+            return size() > mMaxSize;
+        }
+    };
+
+    /**
+     * Caches the values of the message and makes it carry the new entry.
+     */
+    synchronized void put(@NonNull final Message msg) {
+        final Entry entry = new Entry(msg);
+        mEntries.put(msg.what, entry);
+        msg.obj = entry;
+    }
+
+    @Nullable
+    synchronized Entry get(final int id) {
+        return mEntries.get(id);
+    }
+
+    /**
+     * @return all entries, least recently used first
+     */
+    @NonNull
+    synchronized List<Entry> getAll() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    synchronized void remove(final int id) {
+        mEntries.remove(id);
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized void setMaxSize(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Size must not be negative: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        final Iterator<Integer> iterator = mEntries.keySet().iterator();
+        while (mEntries.size() > mMaxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Creates a message replaying the entry to a single listener.
+     */
+    @NonNull
+    static Message obtainReplay(@NonNull final Entry entry, @NonNull final LocalMessageCallback listener) {
+        final Message msg = Message.obtain();
+        msg.what = entry.what;
+        msg.obj = new Replay(entry, listener);
+        return msg;
+    }
+
+    /**
+     * Marks a copy of a sent sticky message as queued for the lane.
+     */
+    static void onQueued(@NonNull final Message msg, @NonNull final DeliveryLane lane) {
+        if (msg.obj instanceof Entry) {
+            ((Entry) msg.obj).onQueued(lane);
+        }
+    }
+
+    /**
+     * Restores the payload of a sent sticky message which was dropped from the main thread queue.
+     */
+    static void discard(@NonNull final Message msg) {
+        if (msg.obj instanceof Entry) {
+            final Entry entry = (Entry) msg.obj;
+            entry.onDequeued(null);
+            msg.obj = entry.obj;
+        }
+    }
+
+    /**
+     * Restores the cached values of a sent sticky message or of a replay message.
+     *
+     * @param lane - destination delivering the message, null for the main thread
+     * @return the only listener the message is addressed to, or null if it isn't a replay
+     */
+    @Nullable
+    static LocalMessageCallback resolve(@NonNull final Message msg, @Nullable final DeliveryLane lane) {
+        if (msg.obj instanceof Entry) {
+            final Entry entry = (Entry) msg.obj;
+            entry.onDequeued(lane);
+            msg.obj = entry.obj;
+            return null;
+        }
+        if (!(msg.obj instanceof Replay)) {
+            return null;
+        }
+        final Replay replay = (Replay) msg.obj;
+        msg.arg1 = replay.entry.arg1;
+        msg.arg2 = replay.entry.arg2;
+        msg.obj = replay.entry.obj;
+        if (replay.entry.data != null) {
+            msg.setData(new Bundle(replay.entry.data));
+        }
+        return replay.listener;
+    }
+}
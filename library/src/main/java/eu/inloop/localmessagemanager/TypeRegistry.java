@@ -0,0 +1,154 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Listeners of type-keyed events. Every event class is resolved once into a flat array of the
+ * listeners of all its supertypes and interfaces, so that dispatch is a single map lookup.
+ * The resolved arrays are dropped whenever a listener is added or removed.
+ */
+final class TypeRegistry {
+
+    @NonNull
+    private static final TypedCallback<?>[] EMPTY = new TypedCallback<?>[0];
+
+    /**
+     * Flattened hierarchies of event classes, most specific first. Classes don't change, so they
+     * are shared by all instances and never dropped. Guarded by itself.
+     */
+    @NonNull
+    private static final Map<Class<?>, Class<?>[]> sHierarchies = new HashMap<>();
+
+    /**
+     * Copy-on-write listener arrays by the type they were registered for. Guarded by this.
+     */
+    @NonNull
+    private final Map<Class<?>, TypedCallback<?>[]> mListeners = new HashMap<>();
+
+    /**
+     * Listeners by event class, replaced as a whole so that lookups don't lock. Written under this.
+     */
+    @NonNull
+    private volatile Map<Class<?>, TypedCallback<?>[]> mResolved = new HashMap<>();
+
+    /**
+     * @return false if the listener is already registered for the type
+     */
+    synchronized boolean add(@NonNull final Class<?> type, @NonNull final TypedCallback<?> listener) {
+        final TypedCallback<?>[] listeners = mListeners.get(type);
+        if (listeners == null) {
+            mListeners.put(type, new TypedCallback<?>[]{listener});
+        } else if (indexOf(listeners, listener) >= 0) {
+            return false;
+        } else {
+            final TypedCallback<?>[] result = new TypedCallback<?>[listeners.length + 1];
+            System.arraycopy(listeners, 0, result, 0, listeners.length);
+            result[listeners.length] = listener;
+            mListeners.put(type, result);
+        }
+        mResolved = new HashMap<>();
+        return true;
+    }
+
+    /**
+     * @return false if the listener wasn't registered for the type
+     */
+    synchronized boolean remove(@NonNull final Class<?> type, @NonNull final TypedCallback<?> listener) {
+        final TypedCallback<?>[] listeners = mListeners.get(type);
+        final int index = listeners == null ? -1 : indexOf(listeners, listener);
+        if (index < 0) {
+            return false;
+        }
+        if (listeners.length == 1) {
+            mListeners.remove(type);
+        } else {
+            final TypedCallback<?>[] result = new TypedCallback<?>[listeners.length - 1];
+            System.arraycopy(listeners, 0, result, 0, index);
+            System.arraycopy(listeners, index + 1, result, index, result.length - index);
+            mListeners.put(type, result);
+        }
+        mResolved = new HashMap<>();
+        return true;
+    }
+
+    /**
+     * @return listeners of the event class and all its supertypes, each listener once. Don't modify.
+     */
+    @NonNull
+    TypedCallback<?>[] get(@NonNull final Class<?> eventClass) {
+        final TypedCallback<?>[] resolved = mResolved.get(eventClass);
+        if (resolved != null) {
+            return resolved;
+        }
+        return resolve(eventClass);
+    }
+
+    @NonNull
+    private synchronized TypedCallback<?>[] resolve(@NonNull final Class<?> eventClass) {
+        final Map<Class<?>, TypedCallback<?>[]> resolved = mResolved;
+        final TypedCallback<?>[] cached = resolved.get(eventClass);
+        if (cached != null) {
+            return cached;
+        }
+        final List<TypedCallback<?>> result = new ArrayList<>();
+        for (final Class<?> type : hierarchy(eventClass)) {
+            final TypedCallback<?>[] listeners = mListeners.get(type);
+            if (listeners != null) {
+                for (final TypedCallback<?> listener : listeners) {
+                    if (!result.contains(listener)) {
+                        result.add(listener);
+                    }
+                }
+            }
+        }
+        final TypedCallback<?>[] listeners = result.isEmpty() ? EMPTY : result.toArray(new TypedCallback<?>[result.size()]);
+        final Map<Class<?>, TypedCallback<?>[]> copy = new HashMap<>(resolved);
+        copy.put(eventClass, listeners);
+        mResolved = copy;
+        return listeners;
+    }
+
+    @NonNull
+    private static Class<?>[] hierarchy(@NonNull final Class<?> eventClass) {
+        synchronized (sHierarchies) {
+            Class<?>[] hierarchy = sHierarchies.get(eventClass);
+            if (hierarchy == null) {
+                final Set<Class<?>> types = new LinkedHashSet<>();
+                for (Class<?> c = eventClass; c != null; c = c.getSuperclass()) {
+                    types.add(c);
+                }
+                // interfaces after all classes, so that class listeners are called first
+                for (Class<?> c = eventClass; c != null; c = c.getSuperclass()) {
+                    addInterfaces(c, types);
+                }
+                hierarchy = types.toArray(new Class<?>[types.size()]);
+                sHierarchies.put(eventClass, hierarchy);
+            }
+            return hierarchy;
+        }
+    }
+
+    private static void addInterfaces(@NonNull final Class<?> c, @NonNull final Set<Class<?>> types) {
+        for (final Class<?> i : c.getInterfaces()) {
+            if (types.add(i)) {
+                addInterfaces(i, types);
+            }
+        }
+    }
+
+    private static int indexOf(@NonNull final TypedCallback<?>[] listeners, @NonNull final TypedCallback<?> listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
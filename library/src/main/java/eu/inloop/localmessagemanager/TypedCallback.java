@@ -0,0 +1,17 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Listener for events sent by {@link LocalMessageManager#post(Object)}, registered for a class
+ * and receiving instances of its subclasses and implementations too.
+ * @param <T> type of the event
+ */
+public interface TypedCallback<T> {
+
+    /**
+     * This method is executed on the thread of the manager's Looper - the UI thread by default.
+     * @param event sent event
+     */
+    void handleEvent(@NonNull T event);
+}
@@ -0,0 +1,32 @@
+package eu.inloop.localmessagemanager;
+
+import android.support.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Registry entry of a weakly registered listener. The entry itself is the reference enqueued
+ * once the listener is collected, so the registry can prune it without scanning.
+ */
+final class WeakListener extends WeakReference<LocalMessageCallback> implements LocalMessageCallback {
+
+    final int id;
+
+    final boolean universal;
+
+    WeakListener(@NonNull final LocalMessageCallback listener, final int id, final boolean universal,
+                 @NonNull final ReferenceQueue<? super LocalMessageCallback> queue) {
+        super(listener, queue);
+        this.id = id;
+        this.universal = universal;
+    }
+
+    @Override
+    public void handleMessage(@NonNull final LocalMessage localMessage) {
+        final LocalMessageCallback listener = get();
+        if (listener != null) {
+            listener.handleMessage(localMessage);
+        }
+    }
+}
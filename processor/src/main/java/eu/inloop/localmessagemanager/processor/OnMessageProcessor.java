@@ -0,0 +1,324 @@
+package eu.inloop.localmessagemanager.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code <Class>_MessageSubscriber} listener for every class declaring methods
+ * annotated with {@code @OnMessage}. The listener registers all IDs of the class, including
+ * annotated methods inherited from superclasses, and calls the methods from a switch on the ID.
+ * The listener of a generic class accepts any parameterization of it, the switch captures the type
+ * arguments so that parameters of a type variable are cast to the variable.
+ */
+@SupportedAnnotationTypes(OnMessageProcessor.ON_MESSAGE)
+public final class OnMessageProcessor extends AbstractProcessor {
+
+    static final String ON_MESSAGE = "eu.inloop.localmessagemanager.OnMessage";
+
+    private static final String LOCAL_MESSAGE = "eu.inloop.localmessagemanager.LocalMessage";
+
+    private static final String OBJECT = "java.lang.Object";
+
+    private static final String SUFFIX = "_MessageSubscriber";
+
+    private final Set<String> mGenerated = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ON_MESSAGE);
+        if (annotation == null || annotations.isEmpty()) {
+            return false;
+        }
+        final Set<TypeElement> owners = new LinkedHashSet<TypeElement>();
+        for (final Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() == ElementKind.METHOD) {
+                owners.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+        for (final TypeElement owner : owners) {
+            if (mGenerated.add(owner.getQualifiedName().toString())) {
+                generate(owner);
+            }
+        }
+        return true;
+    }
+
+    private void generate(final TypeElement owner) {
+        if (owner.getNestingKind() == NestingKind.LOCAL || owner.getNestingKind() == NestingKind.ANONYMOUS) {
+            error(owner, "@OnMessage methods can't be declared in local or anonymous classes");
+            return;
+        }
+        for (Element e = owner; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                error(owner, "Classes with @OnMessage methods can't be private");
+                return;
+            }
+        }
+
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(owner);
+        final Map<Integer, List<String>> calls = new LinkedHashMap<Integer, List<String>>();
+        boolean valid = true;
+        for (final ExecutableElement method : collectMethods(owner)) {
+            final String arguments = getArguments(owner, method, pkg);
+            final int[] ids = getIds(method);
+            if (arguments == null || ids == null) {
+                valid = false;
+                continue;
+            }
+            for (final int id : ids) {
+                List<String> list = calls.get(id);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    calls.put(id, list);
+                }
+                list.add(method.getSimpleName() + "(" + arguments + ");");
+            }
+        }
+        if (!valid) {
+            return;
+        }
+
+        final String targetType = processingEnv.getTypeUtils().erasure(owner.asType()).toString();
+        final StringBuilder typeParameters = new StringBuilder();
+        final StringBuilder typeArguments = new StringBuilder();
+        final StringBuilder wildcards = new StringBuilder();
+        for (final TypeParameterElement parameter : owner.getTypeParameters()) {
+            if (typeParameters.length() > 0) {
+                typeParameters.append(", ");
+                typeArguments.append(", ");
+                wildcards.append(", ");
+            }
+            typeParameters.append(parameter.getSimpleName());
+            typeArguments.append(parameter.getSimpleName());
+            wildcards.append('?');
+            final List<? extends TypeMirror> bounds = parameter.getBounds();
+            if (bounds.size() != 1 || !OBJECT.equals(bounds.get(0).toString())) {
+                for (int i = 0; i < bounds.size(); i++) {
+                    typeParameters.append(i == 0 ? " extends " : " & ").append(bounds.get(i));
+                }
+            }
+        }
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String className = getBinaryName(owner, packageName) + SUFFIX;
+        final String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        try {
+            final Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, owner).openWriter();
+            try {
+                final SubscriberWriter subscriber = typeParameters.length() == 0
+                        ? new SubscriberWriter(packageName, className, targetType, isPublic(owner), calls)
+                        : new SubscriberWriter(packageName, className, targetType + "<" + wildcards + ">",
+                        "<" + typeParameters + ">", targetType + "<" + typeArguments + ">", isPublic(owner), calls);
+                writer.write(subscriber.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (final IOException e) {
+            error(owner, "Can't write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Annotated methods of the class and its superclasses, without the overridden ones.
+     */
+    private List<ExecutableElement> collectMethods(final TypeElement owner) {
+        final List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        TypeElement type = owner;
+        while (type != null) {
+            for (final Element element : type.getEnclosedElements()) {
+                if (element.getKind() != ElementKind.METHOD || getOnMessage(element) == null) {
+                    continue;
+                }
+                final ExecutableElement method = (ExecutableElement) element;
+                boolean overridden = false;
+                for (final ExecutableElement collected : methods) {
+                    if (processingEnv.getElementUtils().overrides(collected, method, owner)) {
+                        overridden = true;
+                        break;
+                    }
+                }
+                if (!overridden) {
+                    methods.add(method);
+                }
+            }
+            final TypeMirror superclass = type.getSuperclass();
+            type = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) processingEnv.getTypeUtils().asElement(superclass) : null;
+        }
+        return methods;
+    }
+
+    /**
+     * @return arguments of the generated call, null if the method can't be called
+     */
+    private String getArguments(final TypeElement owner, final ExecutableElement method, final PackageElement pkg) {
+        final Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)) {
+            error(method, "@OnMessage methods can't be private or static");
+            return null;
+        }
+        if (!modifiers.contains(Modifier.PUBLIC) && !pkg.equals(processingEnv.getElementUtils().getPackageOf(method))) {
+            error(method, "@OnMessage methods inherited from another package have to be public");
+            return null;
+        }
+
+        // parameter types as seen from the owner, with type arguments of generic superclasses applied
+        final List<? extends TypeMirror> parameters = ((ExecutableType) processingEnv.getTypeUtils()
+                .asMemberOf((DeclaredType) owner.asType(), method)).getParameterTypes();
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        final TypeKind first = parameters.get(0).getKind();
+        if (parameters.size() == 1) {
+            switch (first) {
+                case INT:
+                    return "msg.getArg1()";
+                case LONG:
+                    return "msg.getLong()";
+                case DOUBLE:
+                    return "msg.getDouble()";
+                case DECLARED:
+                case ARRAY:
+                case TYPEVAR:
+                    final TypeMirror parameter = parameters.get(0);
+                    final String erasure = processingEnv.getTypeUtils().erasure(parameter).toString();
+                    if (LOCAL_MESSAGE.equals(erasure)) {
+                        return "msg";
+                    }
+                    // type variables of the method itself aren't in scope of the generated call
+                    final String type = isInScope(parameter, owner) ? parameter.toString() : erasure;
+                    return OBJECT.equals(type) ? "msg.getObject()" : "(" + type + ") msg.getObject()";
+                default:
+                    break;
+            }
+        } else if (parameters.size() == 2 && first == parameters.get(1).getKind()) {
+            if (first == TypeKind.INT) {
+                return "msg.getArg1(), msg.getArg2()";
+            } else if (first == TypeKind.LONG) {
+                return "msg.getLong(), msg.getLong2()";
+            }
+        }
+        error(method, "Unsupported @OnMessage parameters, use none, LocalMessage, int, (int, int), long, (long, long), double or an object");
+        return null;
+    }
+
+    /**
+     * @return false if the type refers to a type variable which isn't declared by the owner
+     */
+    private static boolean isInScope(final TypeMirror type, final TypeElement owner) {
+        switch (type.getKind()) {
+            case TYPEVAR:
+                return ((TypeVariable) type).asElement().getEnclosingElement().equals(owner);
+            case ARRAY:
+                return isInScope(((ArrayType) type).getComponentType(), owner);
+            case WILDCARD:
+                final WildcardType wildcard = (WildcardType) type;
+                return (wildcard.getExtendsBound() == null || isInScope(wildcard.getExtendsBound(), owner))
+                        && (wildcard.getSuperBound() == null || isInScope(wildcard.getSuperBound(), owner));
+            case DECLARED:
+                for (final TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                    if (!isInScope(argument, owner)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return IDs of the annotation, null if there are none
+     */
+    private int[] getIds(final ExecutableElement method) {
+        final AnnotationMirror mirror = getOnMessage(method);
+        final List<Integer> ids = new ArrayList<Integer>();
+        for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            if (!entry.getKey().getSimpleName().contentEquals("value")) {
+                continue;
+            }
+            final Object value = entry.getValue().getValue();
+            if (value instanceof List) {
+                for (final Object item : (List<?>) value) {
+                    ids.add((Integer) ((AnnotationValue) item).getValue());
+                }
+            } else {
+                ids.add((Integer) value);
+            }
+        }
+        if (ids.isEmpty()) {
+            error(method, "@OnMessage needs at least one message ID");
+            return null;
+        }
+        final int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private static AnnotationMirror getOnMessage(final Element element) {
+        for (final AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(ON_MESSAGE)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Outer_Inner for nested classes.
+     */
+    private static String getBinaryName(final TypeElement type, final String packageName) {
+        final String name = type.getQualifiedName().toString();
+        return (packageName.isEmpty() ? name : name.substring(packageName.length() + 1)).replace('.', '_');
+    }
+
+    private static boolean isPublic(final TypeElement type) {
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (!e.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void error(final Element element, final String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,132 @@
+package eu.inloop.localmessagemanager.processor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source code of one generated subscriber. Library types are fully qualified so that they can't
+ * clash with the names used by the target class.
+ */
+final class SubscriberWriter {
+
+    private static final String PACKAGE = "eu.inloop.localmessagemanager.";
+
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    SubscriberWriter(final String packageName, final String className, final String targetType,
+                     final boolean isPublic, final Map<Integer, List<String>> calls) {
+        this(packageName, className, targetType, null, null, isPublic, calls);
+    }
+
+    /**
+     * @param targetType - type of the target, with wildcards for a generic class
+     * @param typeParameters - type parameters of a generic class, null if it isn't generic
+     * @param typedTargetType - type of the target with its type parameters as arguments
+     * @param calls - method calls without receiver by message ID
+     */
+    SubscriberWriter(final String packageName, final String className, final String targetType,
+                     final String typeParameters, final String typedTargetType,
+                     final boolean isPublic, final Map<Integer, List<String>> calls) {
+        line(0, "// Generated by the @OnMessage annotation processor, do not edit.");
+        if (!packageName.isEmpty()) {
+            line(0, "package " + packageName + ";");
+        }
+        line(0, "");
+        line(0, "/**");
+        final int arguments = targetType.indexOf('<');
+        line(0, " * Calls the {@code @OnMessage} methods of {@link " + (arguments < 0 ? targetType : targetType.substring(0, arguments)) + "}.");
+        line(0, " */");
+        line(0, (isPublic ? "public " : "") + "final class " + className + " implements " + PACKAGE + "LocalMessageCallback {");
+        line(0, "");
+
+        final StringBuilder ids = new StringBuilder();
+        for (final Integer id : calls.keySet()) {
+            if (ids.length() > 0) {
+                ids.append(", ");
+            }
+            ids.append(id);
+        }
+        line(1, "private static final int[] IDS = {" + ids + "};");
+        line(0, "");
+        line(1, "private final " + targetType + " mTarget;");
+        line(0, "");
+        line(1, "public " + className + "(final " + targetType + " target) {");
+        line(2, "mTarget = target;");
+        line(1, "}");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * Registers a new subscriber of the target for all its message IDs on the main thread.");
+        line(1, " * Remove it by {@link #unregister}.");
+        line(1, " */");
+        line(1, "public static " + className + " register(final " + PACKAGE + "LocalMessageManager manager, final " + targetType + " target) {");
+        line(2, "return register(manager, target, " + PACKAGE + "DeliveryTarget.mainThread());");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Registers a new subscriber of the target for all its message IDs on the delivery target.");
+        line(1, " */");
+        line(1, "public static " + className + " register(final " + PACKAGE + "LocalMessageManager manager, final " + targetType
+                + " target, final " + PACKAGE + "DeliveryTarget deliveryTarget) {");
+        line(2, "final " + className + " subscriber = new " + className + "(target);");
+        line(2, "manager.addListener(IDS, subscriber, deliveryTarget);");
+        line(2, "return subscriber;");
+        line(1, "}");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * Removes this subscriber from all its message IDs.");
+        line(1, " */");
+        line(1, "public void unregister(final " + PACKAGE + "LocalMessageManager manager) {");
+        line(2, "manager.removeListener(IDS, this);");
+        line(1, "}");
+        line(0, "");
+
+        if (typeParameters == null) {
+            line(1, "@Override");
+            line(1, "@SuppressWarnings(\"unchecked\")");
+            line(1, "public void handleMessage(final " + PACKAGE + "LocalMessage msg) {");
+            dispatch("mTarget", calls);
+            line(1, "}");
+        } else {
+            line(1, "@Override");
+            line(1, "public void handleMessage(final " + PACKAGE + "LocalMessage msg) {");
+            line(2, "dispatch(mTarget, msg);");
+            line(1, "}");
+            line(0, "");
+            // captures the wildcards of the target, so that the type variables can be named
+            line(1, "@SuppressWarnings(\"unchecked\")");
+            line(1, "private static " + typeParameters + " void dispatch(final " + typedTargetType + " target, final "
+                    + PACKAGE + "LocalMessage msg) {");
+            dispatch("target", calls);
+            line(1, "}");
+        }
+        line(0, "}");
+    }
+
+    private void dispatch(final String receiver, final Map<Integer, List<String>> calls) {
+        line(2, "switch (msg.getId()) {");
+        for (final Map.Entry<Integer, List<String>> entry : calls.entrySet()) {
+            line(3, "case " + entry.getKey() + ":");
+            for (final String call : entry.getValue()) {
+                line(4, receiver + "." + call);
+            }
+            line(4, "break;");
+        }
+        line(3, "default:");
+        line(4, "break;");
+        line(2, "}");
+    }
+
+    private void line(final int indent, final String text) {
+        for (int i = 0; i < indent; i++) {
+            mBuilder.append("    ");
+        }
+        mBuilder.append(text).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        return mBuilder.toString();
+    }
+}
@@ -0,0 +1,274 @@
+package eu.inloop.localmessagemanager.processor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor on sources compiled against a minimal copy of the library API, which also
+ * compiles the generated subscribers.
+ */
+public class OnMessageProcessorTest {
+
+    private static final String[] LIBRARY = {
+            "eu/inloop/localmessagemanager/OnMessage.java",
+            "package eu.inloop.localmessagemanager;\n"
+                    + "public @interface OnMessage { int[] value(); }\n",
+            "eu/inloop/localmessagemanager/LocalMessage.java",
+            "package eu.inloop.localmessagemanager;\n"
+                    + "public class LocalMessage {\n"
+                    + "    public int getId() { return 0; }\n"
+                    + "    public int getArg1() { return 0; }\n"
+                    + "    public int getArg2() { return 0; }\n"
+                    + "    public long getLong() { return 0; }\n"
+                    + "    public long getLong2() { return 0; }\n"
+                    + "    public double getDouble() { return 0; }\n"
+                    + "    public Object getObject() { return null; }\n"
+                    + "}\n",
+            "eu/inloop/localmessagemanager/LocalMessageCallback.java",
+            "package eu.inloop.localmessagemanager;\n"
+                    + "public interface LocalMessageCallback { void handleMessage(LocalMessage msg); }\n",
+            "eu/inloop/localmessagemanager/DeliveryTarget.java",
+            "package eu.inloop.localmessagemanager;\n"
+                    + "public class DeliveryTarget { public static DeliveryTarget mainThread() { return null; } }\n",
+            "eu/inloop/localmessagemanager/LocalMessageManager.java",
+            "package eu.inloop.localmessagemanager;\n"
+                    + "public class LocalMessageManager {\n"
+                    + "    public void addListener(int[] ids, LocalMessageCallback listener, DeliveryTarget target) {}\n"
+                    + "    public void removeListener(int[] ids, LocalMessageCallback listener) {}\n"
+                    + "}\n",
+    };
+
+    private File mDirectory;
+
+    private final List<String> mErrors = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("processor").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walkFileTree(mDirectory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void genericOwnerTest() throws IOException {
+        assertTrue(mErrors.toString(), compile("test/Screen.java",
+                "package test;\n"
+                        + "import eu.inloop.localmessagemanager.OnMessage;\n"
+                        + "import java.util.List;\n"
+                        + "public class Screen<T extends CharSequence> {\n"
+                        + "    @OnMessage(1) public void onText(T text) {}\n"
+                        + "    @OnMessage(2) public void onObject(Object value) {}\n"
+                        + "    @OnMessage({3, 4}) public void onTexts(List<T> texts) {}\n"
+                        + "    @OnMessage(5) public void onArg(int arg) {}\n"
+                        + "}\n"));
+
+        assertEquals("// Generated by the @OnMessage annotation processor, do not edit.\n"
+                        + "package test;\n"
+                        + "\n"
+                        + "/**\n"
+                        + " * Calls the {@code @OnMessage} methods of {@link test.Screen}.\n"
+                        + " */\n"
+                        + "public final class Screen_MessageSubscriber implements eu.inloop.localmessagemanager.LocalMessageCallback {\n"
+                        + "\n"
+                        + "    private static final int[] IDS = {1, 2, 3, 4, 5};\n"
+                        + "\n"
+                        + "    private final test.Screen<?> mTarget;\n"
+                        + "\n"
+                        + "    public Screen_MessageSubscriber(final test.Screen<?> target) {\n"
+                        + "        mTarget = target;\n"
+                        + "    }\n"
+                        + "\n"
+                        + "    /**\n"
+                        + "     * Registers a new subscriber of the target for all its message IDs on the main thread.\n"
+                        + "     * Remove it by {@link #unregister}.\n"
+                        + "     */\n"
+                        + "    public static Screen_MessageSubscriber register(final eu.inloop.localmessagemanager.LocalMessageManager manager, final test.Screen<?> target) {\n"
+                        + "        return register(manager, target, eu.inloop.localmessagemanager.DeliveryTarget.mainThread());\n"
+                        + "    }\n"
+                        + "\n"
+                        + "    /**\n"
+                        + "     * Registers a new subscriber of the target for all its message IDs on the delivery target.\n"
+                        + "     */\n"
+                        + "    public static Screen_MessageSubscriber register(final eu.inloop.localmessagemanager.LocalMessageManager manager, final test.Screen<?> target, final eu.inloop.localmessagemanager.DeliveryTarget deliveryTarget) {\n"
+                        + "        final Screen_MessageSubscriber subscriber = new Screen_MessageSubscriber(target);\n"
+                        + "        manager.addListener(IDS, subscriber, deliveryTarget);\n"
+                        + "        return subscriber;\n"
+                        + "    }\n"
+                        + "\n"
+                        + "    /**\n"
+                        + "     * Removes this subscriber from all its message IDs.\n"
+                        + "     */\n"
+                        + "    public void unregister(final eu.inloop.localmessagemanager.LocalMessageManager manager) {\n"
+                        + "        manager.removeListener(IDS, this);\n"
+                        + "    }\n"
+                        + "\n"
+                        + "    @Override\n"
+                        + "    public void handleMessage(final eu.inloop.localmessagemanager.LocalMessage msg) {\n"
+                        + "        dispatch(mTarget, msg);\n"
+                        + "    }\n"
+                        + "\n"
+                        + "    @SuppressWarnings(\"unchecked\")\n"
+                        + "    private static <T extends java.lang.CharSequence> void dispatch(final test.Screen<T> target, final eu.inloop.localmessagemanager.LocalMessage msg) {\n"
+                        + "        switch (msg.getId()) {\n"
+                        + "            case 1:\n"
+                        + "                target.onText((T) msg.getObject());\n"
+                        + "                break;\n"
+                        + "            case 2:\n"
+                        + "                target.onObject(msg.getObject());\n"
+                        + "                break;\n"
+                        + "            case 3:\n"
+                        + "                target.onTexts((java.util.List<T>) msg.getObject());\n"
+                        + "                break;\n"
+                        + "            case 4:\n"
+                        + "                target.onTexts((java.util.List<T>) msg.getObject());\n"
+                        + "                break;\n"
+                        + "            case 5:\n"
+                        + "                target.onArg(msg.getArg1());\n"
+                        + "                break;\n"
+                        + "            default:\n"
+                        + "                break;\n"
+                        + "        }\n"
+                        + "    }\n"
+                        + "}\n",
+                readGenerated("test/Screen_MessageSubscriber.java"));
+    }
+
+    @Test
+    public void genericSuperclassTest() throws IOException {
+        assertTrue(mErrors.toString(), compile("test/Screen.java",
+                "package test;\n"
+                        + "import eu.inloop.localmessagemanager.OnMessage;\n"
+                        + "public class Screen extends Base<String> {\n"
+                        + "    @OnMessage(2) public <V> void onValue(V value) {}\n"
+                        + "}\n"
+                        + "class Base<T> {\n"
+                        + "    @OnMessage(1) public void onData(T data) {}\n"
+                        + "}\n"));
+
+        final String generated = readGenerated("test/Screen_MessageSubscriber.java");
+        assertTrue(generated, generated.contains("private final test.Screen mTarget;"));
+        // the superclass parameter is resolved, the method's own type variable is erased
+        assertTrue(generated, generated.contains("mTarget.onData((java.lang.String) msg.getObject());"));
+        assertTrue(generated, generated.contains("mTarget.onValue(msg.getObject());"));
+    }
+
+    @Test
+    public void privateMethodTest() throws IOException {
+        assertEquals(false, compile("test/Screen.java",
+                "package test;\n"
+                        + "import eu.inloop.localmessagemanager.OnMessage;\n"
+                        + "public class Screen {\n"
+                        + "    @OnMessage(1) private void onMessage() {}\n"
+                        + "}\n"));
+
+        assertEquals(Collections.singletonList("@OnMessage methods can't be private or static"), mErrors);
+        assertEquals(false, new File(mDirectory, "generated/test/Screen_MessageSubscriber.java").exists());
+    }
+
+    @Test
+    public void unsupportedParametersTest() throws IOException {
+        assertEquals(false, compile("test/Screen.java",
+                "package test;\n"
+                        + "import eu.inloop.localmessagemanager.OnMessage;\n"
+                        + "public class Screen {\n"
+                        + "    @OnMessage(1) void onMixed(int arg, long value) {}\n"
+                        + "    @OnMessage(2) void onTriple(int arg1, int arg2, int arg3) {}\n"
+                        + "    @OnMessage(3) void onFloat(float value) {}\n"
+                        + "}\n"));
+
+        final String error = "Unsupported @OnMessage parameters, use none, LocalMessage, int, (int, int), long, (long, long), double or an object";
+        assertEquals(Arrays.asList(error, error, error), mErrors);
+    }
+
+    /**
+     * Compiles the source together with the library API, collecting the error messages.
+     *
+     * @param path - path of the source relative to the source root
+     * @return true if the compilation succeeded
+     */
+    private boolean compile(final String path, final String source) throws IOException {
+        final List<File> sources = new ArrayList<File>();
+        for (int i = 0; i < LIBRARY.length; i += 2) {
+            sources.add(write(new File(mDirectory, "src/" + LIBRARY[i]), LIBRARY[i + 1]));
+        }
+        sources.add(write(new File(mDirectory, "src/" + path), source));
+        final File generated = new File(mDirectory, "generated");
+        final File classes = new File(mDirectory, "classes");
+        assertTrue(generated.mkdirs() && classes.mkdirs());
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        final StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT, null);
+        try {
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-s", generated.getPath(), "-d", classes.getPath()), null,
+                    fileManager.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singletonList(new OnMessageProcessor()));
+            final boolean success = task.call();
+            for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    mErrors.add(diagnostic.getMessage(Locale.ROOT));
+                }
+            }
+            return success;
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    private String readGenerated(final String path) throws IOException {
+        return new String(Files.readAllBytes(new File(mDirectory, "generated/" + path).toPath()), Charset.forName("UTF-8"));
+    }
+
+    private static File write(final File file, final String content) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        final Writer writer = Files.newBufferedWriter(file.toPath(), Charset.forName("UTF-8"));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}